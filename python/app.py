@@ -118,6 +118,26 @@ def handle_search():
     except Exception as e:
         return jsonify({"error": str(e)}), 500
 
+@app.route('/msg_to_vector', methods=['GET'])
+def msg_to_vector():
+    """文本向量化接口（已归一化），供 Java 端进程内检索使用"""
+    msg = request.args.get('msg')
+    if not msg:
+        return jsonify({"error": "Missing msg parameter"}), 400
+
+    vector = model.encode([msg], normalize_embeddings=True).astype('float32')[0]
+    return jsonify({"vector": vector.tolist()})
+
+@app.route('/batch_msg_to_vector', methods=['POST'])
+def batch_msg_to_vector():
+    """批量文本向量化接口（已归一化），Java 端会把并发请求合并后调用"""
+    msgs = (request.get_json(silent=True) or {}).get('msgs')
+    if not msgs or not isinstance(msgs, list):
+        return jsonify({"error": "Missing msgs parameter"}), 400
+
+    vectors = model.encode(msgs, normalize_embeddings=True).astype('float32')
+    return jsonify({"vectors": vectors.tolist()})
+
 @app.route('/api/generate-index', methods=['POST'])
 def generate_index():
     """
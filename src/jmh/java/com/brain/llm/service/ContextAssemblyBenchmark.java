@@ -0,0 +1,99 @@
+package com.brain.llm.service;
+
+import com.brain.llm.domain.Passage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 上下文拼装：联网搜索和知识库结果去重、按 token 预算拼成参考信息（ContextPacker）以及
+ * 系统提示词、历史和参考信息组装成 deepseek 的 messages
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextAssemblyBenchmark {
+
+    // 联网搜索结果条数
+    @Param({"3", "10"})
+    private int results;
+    // 历史消息条数
+    @Param({"2", "20"})
+    private int historySize;
+
+    private Map<String, List<Passage>> sources;
+    private List<Map<String, String>> history;
+    private String context;
+    private PromptAssembler promptAssembler;
+    private ContextPacker contextPacker;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        List<Map<String, String>> searchResults = new ArrayList<>();
+        for (int i = 0; i < results; i++) {
+            Map<String, String> result = new HashMap<>();
+            result.put("title", "小数大小比较的方法（第 " + i + " 篇）");
+            result.put("content", "比较小数大小时，先比较整数部分，整数部分相同再依次比较十分位、百分位……".repeat(3));
+            result.put("url", "https://example.com/article/" + i);
+            searchResults.add(result);
+        }
+        // 知识库片段每隔一个与前一个近似重复
+        List<Passage> rag = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rag.add(new Passage(RetrievalService.SOURCE_RAG, i, null, null, "数学教材\n第 " + (i / 2) + " 章\n"
+                    + "小数的大小比较：先看整数部分，整数部分大的小数就大。整数部分相同时比较十分位。".repeat(4) + (i % 2)));
+        }
+        sources = new LinkedHashMap<>();
+        sources.put(RetrievalService.SOURCE_SEARCH, RetrievalService.searchPassages(searchResults));
+        sources.put(RetrievalService.SOURCE_RAG, rag);
+
+        contextPacker = new ContextPacker();
+        set(contextPacker, "enabled", true);
+        set(contextPacker, "maxTokens", 3000);
+        set(contextPacker, "maxToggleMaxTokens", 6000);
+        set(contextPacker, "nearDuplicateThreshold", 0.8);
+        set(contextPacker, "shingleSize", 3);
+        set(contextPacker, "minHashSize", 64);
+        set(contextPacker, "minTruncatedTokens", 40);
+        set(contextPacker, "ragWeight", 1.0);
+        set(contextPacker, "searchWeight", 0.8);
+        set(contextPacker, "chatMetrics", new ChatMetrics(new SimpleMeterRegistry()));
+        context = contextPacker.pack(sources, false).getContext();
+
+        history = new ArrayList<>();
+        for (int i = 0; i < historySize - 1; i++) {
+            history.add(PromptAssembler.message(i % 2 == 0 ? "user" : "assistant", "第 " + i + " 轮对话内容。".repeat(20)));
+        }
+        history.add(PromptAssembler.message("user", "10.11 和 10.12 哪个更大"));
+
+        promptAssembler = new PromptAssembler();
+        set(promptAssembler, "systemPrompt", "你是一个智能助手，请使用中文回答用户问题。如果用户消息中提供了参考信息，请优先基于参考信息回答。");
+    }
+
+    // 包含 MinHash 签名计算和两两比较
+    @Benchmark
+    public String packContext() {
+        return contextPacker.pack(sources, false).getContext();
+    }
+
+    @Benchmark
+    public List<Map<String, String>> assemblePrompt() {
+        return promptAssembler.assemble(history, context);
+    }
+
+    private static void set(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
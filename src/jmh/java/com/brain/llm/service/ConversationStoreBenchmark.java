@@ -0,0 +1,57 @@
+package com.brain.llm.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话历史：每轮追加一问一答并按 token 预算裁剪，返回历史副本
+ * 预热后会话始终处于预算附近，每隔几轮触发一次裁剪
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversationStoreBenchmark {
+
+    // 单个会话的 token 预算
+    @Param({"2000", "8000"})
+    private int maxTokens;
+
+    private ConversationStore store;
+    private final List<Map<String, String>> turn = List.of(
+            PromptAssembler.message("user", "10.11 和 10.12 哪个更大？请详细说明比较过程。"),
+            PromptAssembler.message("assistant", "10.12 更大。整数部分相同，十分位相同，百分位 2 大于 1。".repeat(8)));
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        store = new ConversationStore();
+        set("maxTokens", maxTokens);
+        set("trimRatio", 0.75);
+        set("maxTotalChars", 20_000_000L);
+        set("maxSessions", 10_000);
+        set("idleTtl", Duration.ofMinutes(30));
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.shutdown();
+    }
+
+    @Benchmark
+    public List<Map<String, String>> appendAndTrim() {
+        return store.appendAndSnapshot("bench", turn);
+    }
+
+    private void set(String name, Object value) throws ReflectiveOperationException {
+        Field field = ConversationStore.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(store, value);
+    }
+}
@@ -0,0 +1,119 @@
+package com.brain.llm.service;
+
+import com.brain.llm.util.EsHits;
+import com.brain.llm.util.EsQueryTemplates;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * es kNN 查询构建（预拼模板 vs XContentBuilder）和搜索响应解析（流式直接拼接 vs 整体解析为 Map）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KnnQueryBenchmark {
+
+    private static final List<String> METADATA_FIELDS = List.of("doc_name", "chapter", "item_number");
+    private static final String MESSAGE = "10.11 和 10.12 哪个更大";
+
+    // 向量维度
+    @Param({"768", "1024"})
+    private int dim;
+
+    private float[] queryVector;
+    private EsQueryTemplates templates;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // 10 个命中、只含过滤后字段的响应
+    private byte[] filteredResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        queryVector = new float[dim];
+        for (int i = 0; i < dim; i++) {
+            queryVector[i] = (float) random.nextDouble(-1, 1);
+        }
+        List<String> sourceFields = new ArrayList<>(METADATA_FIELDS);
+        sourceFields.add("content");
+        templates = new EsQueryTemplates("content", "content_vector", sourceFields, "match", "and", "45%");
+
+        List<Map<String, Object>> hits = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> source = new LinkedHashMap<>();
+            source.put("doc_name", "文档" + i);
+            source.put("chapter", "第" + i + "章");
+            source.put("item_number", "第" + i + "条");
+            source.put("content", "知识库内容".repeat(60));
+            hits.add(Map.of("_id", "id-" + i, "_source", source));
+        }
+        filteredResponse = objectMapper.writeValueAsBytes(Map.of("hits", Map.of("hits", hits)));
+    }
+
+    @Benchmark
+    public String templateKnnQuery() {
+        return templates.filteredKnn(queryVector, 5, 50, MESSAGE);
+    }
+
+    // 原来的 XContentBuilder 构建方式，作为对照
+    @Benchmark
+    public String xContentKnnQuery() throws IOException {
+        XContentBuilder xContentBuilder = XContentFactory.jsonBuilder();
+        xContentBuilder.startObject()
+                .startObject("knn")
+                .field("field", "content_vector")
+                .array("query_vector", queryVector)
+                .field("k", 5)
+                .field("num_candidates", 50)
+                .startObject("filter")
+                .startObject("match")
+                .startObject("content")
+                .field("query", MESSAGE)
+                .field("operator", "and")
+                .field("minimum_should_match", "45%")
+                .endObject()
+                .endObject()
+                .endObject()
+                .endObject()
+                .endObject();
+        return Strings.toString(xContentBuilder);
+    }
+
+    @Benchmark
+    public List<EsHits.Hit> parseHitsStreaming() throws IOException {
+        return EsHits.parse(new ByteArrayInputStream(filteredResponse), jsonFactory, "content", METADATA_FIELDS);
+    }
+
+    // 整体解析为 Map 再拼接，作为对照
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<String> parseHitsMap() throws IOException {
+        Map<String, Object> response = objectMapper.readValue(new String(filteredResponse, StandardCharsets.UTF_8), Map.class);
+        List<Map<String, Object>> hits = (List<Map<String, Object>>) ((Map<String, Object>) response.get("hits")).get("hits");
+        List<String> results = new ArrayList<>();
+        for (Map<String, Object> hit : hits) {
+            Map<String, Object> source = (Map<String, Object>) hit.get("_source");
+            StringBuilder text = new StringBuilder();
+            for (String field : METADATA_FIELDS) {
+                if (source.get(field) != null) {
+                    text.append(source.get(field)).append('\n');
+                }
+            }
+            results.add(text.append(source.get("content")).append('\n').toString());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,127 @@
+package com.brain.llm.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * deepseek SSE 流解码：按上游实际的分块大小把录制的流喂给 DeepSeekStreamDecoder，
+ * 并与最初按行 readValue 成 Map 再取 delta 的实现对比
+ * 每次调用处理一整条流（约 650 个数据块），结果除以块数即为单 token 成本
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeepSeekStreamDecoderBenchmark {
+
+    private static final Flow.Subscription NO_OP_SUBSCRIPTION = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    // 上游每次到达的字节数：HTTP/2 数据帧通常在几百字节到 16KB 之间
+    @Param({"256", "4096", "16384"})
+    private int chunkSize;
+
+    private byte[] stream;
+    private List<List<ByteBuffer>> chunks;
+    private String[] lines;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Setup
+    public void setup() throws IOException {
+        try (InputStream in = DeepSeekStreamDecoderBenchmark.class.getResourceAsStream("/fixtures/deepseek-reasoner-stream.txt")) {
+            stream = in.readAllBytes();
+        }
+        chunks = new ArrayList<>();
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            chunks.add(List.of(ByteBuffer.wrap(stream, offset, Math.min(chunkSize, stream.length - offset)).slice()));
+        }
+        lines = new String(stream, StandardCharsets.UTF_8).split("\n");
+    }
+
+    @Benchmark
+    public int streamingDecoder(Blackhole blackhole) {
+        for (List<ByteBuffer> chunk : chunks) {
+            chunk.get(0).rewind();
+        }
+        CountingListener listener = new CountingListener(blackhole);
+        DeepSeekStreamDecoder decoder = new DeepSeekStreamDecoder(listener);
+        decoder.onSubscribe(NO_OP_SUBSCRIPTION);
+        for (List<ByteBuffer> chunk : chunks) {
+            decoder.onNext(chunk);
+        }
+        decoder.onComplete();
+        return listener.count;
+    }
+
+    // 最初的实现：HttpResponse.BodyHandlers.ofLines() 逐行读取，每行 readValue 成 Map
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public int legacyMapPerLine(Blackhole blackhole) throws IOException {
+        int count = 0;
+        for (String line : lines) {
+            if (!line.startsWith("data: ")) {
+                continue;
+            }
+            String jsonData = line.substring(6);
+            if ("[DONE]".equals(jsonData)) {
+                continue;
+            }
+            Map<String, Object> response = objectMapper.readValue(jsonData, Map.class);
+            List<Map<String, Object>> choices = (List<Map<String, Object>>) response.get("choices");
+            if (choices == null || choices.isEmpty()) {
+                continue;
+            }
+            Map<String, Object> delta = (Map<String, Object>) choices.get(0).get("delta");
+            if (delta != null && delta.get("reasoning_content") != null) {
+                blackhole.consume(delta.get("reasoning_content"));
+                count++;
+            }
+            if (delta != null && delta.get("content") != null) {
+                blackhole.consume(delta.get("content"));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class CountingListener implements DeepSeekStreamDecoder.Listener {
+        private final Blackhole blackhole;
+        private int count;
+
+        CountingListener(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void onReasoning(String reasoningContent) {
+            blackhole.consume(reasoningContent);
+            count++;
+        }
+
+        @Override
+        public void onContent(String content) {
+            blackhole.consume(content);
+            count++;
+        }
+    }
+}
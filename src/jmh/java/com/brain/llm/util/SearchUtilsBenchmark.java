@@ -0,0 +1,49 @@
+package com.brain.llm.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 联网搜索响应解析：searXNG 和 tavily 返回的 json 映射成结果列表
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchUtilsBenchmark {
+
+    private SearchUtils searchUtils;
+    private String searxngBody;
+    private String tavilyBody;
+
+    @Setup
+    public void setup() throws IOException {
+        searchUtils = new SearchUtils("http://localhost:8080", "");
+        searxngBody = read("/fixtures/searxng-response.json");
+        tavilyBody = read("/fixtures/tavily-response.json");
+    }
+
+    @Benchmark
+    public List<Map<String, String>> searXNG() throws IOException {
+        return searchUtils.parseSearXNG(searxngBody, 3);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> tavily() throws IOException {
+        return searchUtils.parseTavily(tavilyBody);
+    }
+
+    private static String read(String resource) throws IOException {
+        try (InputStream in = SearchUtilsBenchmark.class.getResourceAsStream(resource)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.brain.llm.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 模拟并发用户：每个用户串行地发起 /api/chat 请求并读取 SSE 流，
+ * 记录首个 token 延迟、token 间隔、整体耗时和错误原因
+ * 所有连接都是异步的，几千个并发流只占用 HttpClient 的少量线程
+ */
+class ChatLoadClient {
+
+    private final LoadTest.Options options;
+    private final URI chatUri;
+    private final HttpClient client;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ScheduledExecutorService starter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "load-starter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ChatLoadClient(LoadTest.Options options, URI chatUri) {
+        this.options = options;
+        this.chatUri = chatUri;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /**
+     * 在 duration 内持续施压，所有用户的最后一个请求结束后完成
+     * @param maxRequests 最多发起的请求数，0 表示不限
+     */
+    CompletableFuture<Results> run(Duration duration, long maxRequests) {
+        Results results = new Results();
+        long deadline = System.nanoTime() + duration.toNanos();
+        AtomicLong remaining = new AtomicLong(maxRequests > 0 ? maxRequests : Long.MAX_VALUE);
+        CompletableFuture<?>[] users = new CompletableFuture[options.concurrency];
+        long rampUpNanos = options.rampUp.toNanos();
+        for (int i = 0; i < options.concurrency; i++) {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            users[i] = done;
+            byte[] body = requestBody(i);
+            long delay = options.concurrency > 1 ? rampUpNanos * i / options.concurrency : 0;
+            starter.schedule(() -> loop(body, deadline, remaining, results, done), delay, TimeUnit.NANOSECONDS);
+        }
+        results.startNanos = System.nanoTime();
+        return CompletableFuture.allOf(users).thenApply(ignored -> {
+            results.endNanos = System.nanoTime();
+            return results;
+        });
+    }
+
+    // 一个用户：上一个请求结束后立即发起下一个
+    private void loop(byte[] body, long deadline, AtomicLong remaining, Results results, CompletableFuture<Void> done) {
+        if (System.nanoTime() >= deadline || remaining.getAndDecrement() <= 0) {
+            done.complete(null);
+            return;
+        }
+        // 异步切换线程，连接立即失败时不会递归加深调用栈
+        send(body, results).whenCompleteAsync((ignored, e) -> loop(body, deadline, remaining, results, done));
+    }
+
+    private CompletableFuture<Void> send(byte[] body, Results results) {
+        HttpRequest request = HttpRequest.newBuilder(chatUri)
+                .header("Content-Type", "application/json")
+                .header("Accept", "text/event-stream")
+                .timeout(options.requestTimeout)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        SseListener listener = new SseListener(results);
+        results.started.increment();
+        CompletableFuture<HttpResponse<Void>> exchange = client.sendAsync(request, responseInfo -> {
+            listener.status = responseInfo.statusCode();
+            return responseInfo.statusCode() == 200
+                    ? HttpResponse.BodySubscribers.fromLineSubscriber(listener)
+                    : HttpResponse.BodySubscribers.discarding();
+        });
+        return exchange.copy().orTimeout(options.streamTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .handle((response, e) -> {
+                    if (e != null) {
+                        // 超时后中止连接，服务端随之取消上游请求
+                        exchange.cancel(true);
+                    }
+                    listener.finish(e);
+                    return null;
+                });
+    }
+
+    private byte[] requestBody(int user) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("sessionId", "load-" + (user % options.sessions));
+        body.put("message", options.message);
+        body.put("useSearch", options.useSearch);
+        body.put("useRAG", options.useRag);
+        body.put("maxToggle", false);
+        if (options.streamPreset != null) {
+            body.put("streamPreset", options.streamPreset);
+        }
+        try {
+            return objectMapper.writeValueAsBytes(body);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 按行解析 SseEmitter 输出的事件（event:xxx / data:xxx / 空行）
+     */
+    private static class SseListener implements Flow.Subscriber<String> {
+        private final Results results;
+        private final long startNanos = System.nanoTime();
+        private volatile int status;
+        private String event;
+        private long lastTokenNanos;
+        private boolean firstReasoning = true;
+        private boolean firstAnswer = true;
+        private int answerTokens;
+        private boolean queued;
+
+        SseListener(Results results) {
+            this.results = results;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(String line) {
+            if (line.isEmpty()) {
+                event = null;
+            } else if (line.startsWith("event:")) {
+                event = line.substring(6).trim();
+            } else if (line.startsWith("data:") && event != null) {
+                onEvent(event);
+            }
+        }
+
+        private void onEvent(String name) {
+            long now = System.nanoTime();
+            switch (name) {
+                case "reasoning" -> {
+                    if (firstReasoning) {
+                        firstReasoning = false;
+                        results.firstReasoningToken.record(now - startNanos);
+                    }
+                    onToken(now);
+                }
+                case "answer" -> {
+                    if (firstAnswer) {
+                        firstAnswer = false;
+                        results.firstAnswerToken.record(now - startNanos);
+                    }
+                    answerTokens++;
+                    onToken(now);
+                }
+                case "queued" -> {
+                    if (!queued) {
+                        queued = true;
+                        results.queuedRequests.increment();
+                    }
+                }
+                case "retrieval" -> results.partialRetrievals.increment();
+                default -> {
+                }
+            }
+        }
+
+        private void onToken(long now) {
+            if (lastTokenNanos != 0) {
+                results.interToken.record(now - lastTokenNanos);
+            } else {
+                results.firstToken.record(now - startNanos);
+            }
+            lastTokenNanos = now;
+            results.tokens.increment();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        // 请求结束（包括失败），按结果分类
+        void finish(Throwable error) {
+            results.duration.record(System.nanoTime() - startNanos);
+            String failure = null;
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                failure = cause instanceof TimeoutException ? "stream_timeout" : cause.getClass().getSimpleName();
+            } else if (status != 200) {
+                failure = "http_" + status;
+            } else if (answerTokens == 0) {
+                // 服务端 completeWithError 后连接正常关闭，但没有任何回答
+                failure = "no_answer";
+            }
+            if (failure == null) {
+                results.succeeded.increment();
+            } else {
+                results.failures.computeIfAbsent(failure, key -> new LongAdder()).increment();
+            }
+        }
+    }
+
+    static class Results {
+        final LatencyHistogram firstToken = new LatencyHistogram();
+        final LatencyHistogram firstReasoningToken = new LatencyHistogram();
+        final LatencyHistogram firstAnswerToken = new LatencyHistogram();
+        final LatencyHistogram interToken = new LatencyHistogram();
+        final LatencyHistogram duration = new LatencyHistogram();
+        final LongAdder started = new LongAdder();
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder tokens = new LongAdder();
+        final LongAdder queuedRequests = new LongAdder();
+        final LongAdder partialRetrievals = new LongAdder();
+        final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+        volatile long startNanos;
+        volatile long endNanos;
+
+        double seconds() {
+            return (endNanos - startNanos) / 1e9;
+        }
+
+        long failed() {
+            return failures.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.brain.llm.loadtest;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本地的上游替身，一个端口上提供：
+ * deepseek 兼容的流式接口 /chat/completions（可配置 token 速率、思考长度和错误注入），
+ * tavily（/tavily/search）、searXNG（/search），以及 python 服务的 /api/search、/msg_to_vector、/batch_msg_to_vector
+ * 流式输出和延迟响应都由定时线程写出，不为每个连接占用一个线程
+ */
+class FakeUpstreams {
+
+    private static final String CHUNK_ID = "d3b1f6c2-5a7e-4f0b-9c61-2e8a4b7d9f13";
+
+    private final LoadTest.Options options;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService writers;
+
+    private final byte[] roleEvent;
+    private final byte[] reasoningEvent;
+    private final byte[] answerEvent;
+    private final byte[] stopEvent;
+    private final byte[] usageEvent;
+    private final byte[] doneEvent = "data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8);
+    private final byte[] searxngBody;
+    private final byte[] tavilyBody;
+    private final byte[] ragBody;
+    private final String vectorJson;
+
+    final LongAdder chatRequests = new LongAdder();
+    final LongAdder injected429 = new LongAdder();
+    final LongAdder injected500 = new LongAdder();
+    final LongAdder truncated = new LongAdder();
+    final LongAdder clientAborts = new LongAdder();
+    final LongAdder searchRequests = new LongAdder();
+    final LongAdder ragRequests = new LongAdder();
+    final LongAdder embeddingRequests = new LongAdder();
+
+    FakeUpstreams(LoadTest.Options options) throws IOException {
+        this.options = options;
+        this.roleEvent = chunk(Map.of("role", "assistant", "content", "", "reasoning_content", ""), null);
+        Map<String, Object> reasoningDelta = new LinkedHashMap<>();
+        reasoningDelta.put("content", null);
+        reasoningDelta.put("reasoning_content", "嗯，");
+        this.reasoningEvent = chunk(reasoningDelta, null);
+        Map<String, Object> answerDelta = new LinkedHashMap<>();
+        answerDelta.put("content", "10.12");
+        answerDelta.put("reasoning_content", null);
+        this.answerEvent = chunk(answerDelta, null);
+        this.stopEvent = chunk(Map.of("content", ""), "stop");
+        this.usageEvent = usage();
+        this.searxngBody = searxng();
+        this.tavilyBody = tavily();
+        this.ragBody = ("第一章 总则\n第一条\n比较小数大小时，先比较整数部分，整数部分相同再依次比较十分位、百分位。\n\n").repeat(3)
+                .getBytes(StandardCharsets.UTF_8);
+        this.vectorJson = vector(options.embeddingDim);
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        handlers = Executors.newFixedThreadPool(16, daemon("fake-upstream"));
+        writers = Executors.newScheduledThreadPool(options.writerThreads, daemon("fake-upstream-writer"));
+        server.setExecutor(handlers);
+        server.createContext("/chat/completions", exchange -> guard(exchange, this::chat));
+        server.createContext("/tavily/search", exchange -> guard(exchange, this::tavilySearch));
+        server.createContext("/search", exchange -> guard(exchange, this::searxngSearch));
+        server.createContext("/api/search", exchange -> guard(exchange, this::ragSearch));
+        server.createContext("/batch_msg_to_vector", exchange -> guard(exchange, this::batchEmbedding));
+        server.createContext("/msg_to_vector", exchange -> guard(exchange, this::embedding));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        writers.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private static void guard(HttpExchange exchange, Handler handler) {
+        try {
+            handler.handle(exchange);
+        } catch (IOException | RuntimeException e) {
+            exchange.close();
+        }
+    }
+
+    // deepseek 流式接口
+    private void chat(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        chatRequests.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double roll = random.nextDouble();
+        if (roll < options.error429Rate) {
+            injected429.increment();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 429, "{\"error\":{\"message\":\"Rate limit reached\",\"type\":\"rate_limit_error\"}}");
+            return;
+        }
+        if (roll < options.error429Rate + options.error500Rate) {
+            injected500.increment();
+            respond(exchange, 500, "{\"error\":{\"message\":\"Internal server error\",\"type\":\"server_error\"}}");
+            return;
+        }
+        int events = 1 + options.reasoningTokens + options.answerTokens;
+        // 截断：在随机位置直接结束响应，不发送 [DONE]
+        int cutAt = random.nextDouble() < options.truncateRate ? random.nextInt(1, events) : -1;
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        new Stream(exchange, cutAt).start();
+    }
+
+    // 一条 deepseek 响应流，按 token 速率由定时线程逐个写出
+    private class Stream implements Runnable {
+        private final HttpExchange exchange;
+        private final OutputStream out;
+        private final int cutAt;
+        private int sent;
+        private boolean finished;
+        private volatile ScheduledFuture<?> task;
+
+        Stream(HttpExchange exchange, int cutAt) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.cutAt = cutAt;
+        }
+
+        void start() {
+            long period = Math.max(1, (long) (1e9 / options.tokenRate));
+            task = writers.scheduleAtFixedRate(this, options.firstTokenDelay.toNanos(), period, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (finished) {
+                return;
+            }
+            try {
+                if (sent == cutAt) {
+                    truncated.increment();
+                    finish();
+                    return;
+                }
+                if (sent == 0) {
+                    out.write(roleEvent);
+                } else if (sent <= options.reasoningTokens) {
+                    out.write(reasoningEvent);
+                } else if (sent <= options.reasoningTokens + options.answerTokens) {
+                    out.write(answerEvent);
+                } else {
+                    out.write(stopEvent);
+                    out.write(usageEvent);
+                    out.write(doneEvent);
+                    finish();
+                    return;
+                }
+                out.flush();
+                sent++;
+            } catch (IOException e) {
+                // 服务端取消了上游请求（前端断开）
+                clientAborts.increment();
+                finish();
+            }
+        }
+
+        private void finish() {
+            finished = true;
+            ScheduledFuture<?> current = task;
+            if (current != null) {
+                current.cancel(false);
+            }
+            exchange.close();
+        }
+    }
+
+    private void tavilySearch(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        searchRequests.increment();
+        respondLater(exchange, tavilyBody, "application/json", options.searchLatency.toNanos());
+    }
+
+    private void searxngSearch(HttpExchange exchange) {
+        searchRequests.increment();
+        respondLater(exchange, searxngBody, "application/json", options.searchLatency.toNanos());
+    }
+
+    private void ragSearch(HttpExchange exchange) {
+        ragRequests.increment();
+        respondLater(exchange, ragBody, "text/plain; charset=utf-8", options.ragLatency.toNanos());
+    }
+
+    private void embedding(HttpExchange exchange) {
+        embeddingRequests.increment();
+        byte[] body = ("{\"vector\":" + vectorJson + "}").getBytes(StandardCharsets.UTF_8);
+        respondLater(exchange, body, "application/json", options.embeddingLatency.toNanos());
+    }
+
+    private void batchEmbedding(HttpExchange exchange) throws IOException {
+        embeddingRequests.increment();
+        int count = countMessages(exchange.getRequestBody().readAllBytes());
+        StringBuilder body = new StringBuilder(16 + count * (vectorJson.length() + 1)).append("{\"vectors\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append(vectorJson);
+        }
+        body.append("]}");
+        respondLater(exchange, body.toString().getBytes(StandardCharsets.UTF_8), "application/json",
+                options.embeddingLatency.toNanos());
+    }
+
+    // {"msgs": [...]} 中的文本个数
+    private int countMessages(byte[] body) throws IOException {
+        int count = 0;
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            JsonToken token;
+            boolean inMessages = false;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME && "msgs".equals(parser.currentName())) {
+                    inMessages = parser.nextToken() == JsonToken.START_ARRAY;
+                } else if (inMessages && token == JsonToken.VALUE_STRING) {
+                    count++;
+                } else if (inMessages && token == JsonToken.END_ARRAY) {
+                    inMessages = false;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void respondLater(HttpExchange exchange, byte[] body, String contentType, long delayNanos) {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        writers.schedule(() -> {
+            try {
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } catch (IOException e) {
+                clientAborts.increment();
+            } finally {
+                exchange.close();
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    // 与 deepseek-reasoner 实际返回的数据块结构一致
+    private byte[] chunk(Map<String, ?> delta, String finishReason) throws IOException {
+        Map<String, Object> choice = new LinkedHashMap<>();
+        choice.put("index", 0);
+        choice.put("delta", delta);
+        choice.put("logprobs", null);
+        choice.put("finish_reason", finishReason);
+        Map<String, Object> chunk = chunkEnvelope();
+        chunk.put("choices", List.of(choice));
+        chunk.put("usage", null);
+        return ("data: " + objectMapper.writeValueAsString(chunk) + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] usage() throws IOException {
+        int completion = options.reasoningTokens + options.answerTokens;
+        Map<String, Object> usage = new LinkedHashMap<>();
+        usage.put("prompt_tokens", 96);
+        usage.put("completion_tokens", completion);
+        usage.put("total_tokens", 96 + completion);
+        usage.put("prompt_tokens_details", Map.of("cached_tokens", 64));
+        usage.put("completion_tokens_details", Map.of("reasoning_tokens", options.reasoningTokens));
+        usage.put("prompt_cache_hit_tokens", 64);
+        usage.put("prompt_cache_miss_tokens", 32);
+        Map<String, Object> chunk = chunkEnvelope();
+        chunk.put("choices", List.of());
+        chunk.put("usage", usage);
+        return ("data: " + objectMapper.writeValueAsString(chunk) + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, Object> chunkEnvelope() {
+        Map<String, Object> chunk = new LinkedHashMap<>();
+        chunk.put("id", CHUNK_ID);
+        chunk.put("object", "chat.completion.chunk");
+        chunk.put("created", 1739871234);
+        chunk.put("model", "deepseek-reasoner");
+        chunk.put("system_fingerprint", "fp_7e73fd9a08_prod0225");
+        return chunk;
+    }
+
+    private byte[] searxng() throws IOException {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("url", "https://example.com/article/" + i);
+            result.put("title", "小数大小比较的方法（第 " + i + " 篇）");
+            result.put("content", "比较小数大小时，先比较整数部分，整数部分相同再依次比较十分位、百分位。".repeat(2));
+            result.put("engine", "bing");
+            result.put("score", 1.0 / (i + 1));
+            results.add(result);
+        }
+        return objectMapper.writeValueAsBytes(Map.of("query", "load-test", "results", results));
+    }
+
+    private byte[] tavily() throws IOException {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("title", "小数大小比较的方法（第 " + i + " 篇）");
+            result.put("url", "https://example.com/article/" + i);
+            result.put("content", "比较小数大小时，先比较整数部分，整数部分相同再依次比较十分位、百分位。".repeat(2));
+            result.put("score", 0.9 - i * 0.1);
+            results.add(result);
+        }
+        return objectMapper.writeValueAsBytes(Map.of("query", "load-test", "results", results, "response_time", 0.42));
+    }
+
+    // 归一化的固定向量
+    private static String vector(int dim) {
+        StringBuilder vector = new StringBuilder(dim * 12).append('[');
+        float value = (float) (1 / Math.sqrt(dim));
+        for (int i = 0; i < dim; i++) {
+            if (i > 0) {
+                vector.append(',');
+            }
+            vector.append(value);
+        }
+        return vector.append(']').toString();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
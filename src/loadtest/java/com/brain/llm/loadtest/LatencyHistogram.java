@@ -0,0 +1,77 @@
+package com.brain.llm.loadtest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的对数分桶直方图，相对误差约 2%，内存固定，适合记录上百万个逐 token 延迟
+ * 记录的单位为纳秒，范围 1 微秒到约 1 小时
+ */
+class LatencyHistogram {
+
+    private static final double GROWTH = 1.02;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+    private static final long MIN_NANOS = 1_000;
+    private static final int BUCKETS = (int) Math.ceil(Math.log(TimeUnit.HOURS.toNanos(1) / (double) MIN_NANOS) / LOG_GROWTH) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        max.accumulateAndGet(nanos, Math::max);
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    double meanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / 1e6 / n;
+    }
+
+    double maxMillis() {
+        return max.get() / 1e6;
+    }
+
+    // 返回桶的上界，percentile 取 0-100
+    double percentileMillis(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get()) / 1e6;
+            }
+        }
+        return maxMillis();
+    }
+
+    String summary() {
+        return String.format("n=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+                count(), meanMillis(), percentileMillis(50), percentileMillis(90), percentileMillis(99),
+                percentileMillis(99.9), maxMillis());
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos <= MIN_NANOS) {
+            return 0;
+        }
+        int index = (int) Math.ceil(Math.log(nanos / (double) MIN_NANOS) / LOG_GROWTH);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) (MIN_NANOS * Math.pow(GROWTH, bucket));
+    }
+}
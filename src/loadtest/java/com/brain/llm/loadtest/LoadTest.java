@@ -0,0 +1,238 @@
+package com.brain.llm.loadtest;
+
+import com.brain.llm.LlmApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 离线压测：启动本地上游替身和应用本身，模拟大量并发的 /api/chat SSE 客户端，
+ * 输出首个 token 延迟、token 间隔、吞吐量和错误分布
+ * 不访问任何外部网络，不消耗 deepseek / tavily 额度
+ *
+ * 参数均为 --name=value 形式，--app.xxx=yyy 会作为 xxx=yyy 传给应用，例如
+ * --concurrency=2000 --duration=2m --token-rate=30 --error-429-rate=0.05 --app.chat.scheduler.max-limit=256
+ */
+public class LoadTest {
+
+    static class Options {
+        // 并发用户数，每个用户串行发起请求
+        int concurrency = 200;
+        // 不同的会话数，默认每个用户一个会话
+        int sessions = -1;
+        Duration duration = Duration.ofSeconds(60);
+        Duration warmup = Duration.ofSeconds(5);
+        Duration rampUp = Duration.ofSeconds(5);
+        // 最多发起的请求数，0 表示只按 duration 结束
+        long requests = 0;
+        Duration requestTimeout = Duration.ofSeconds(30);
+        // 单个流的最长时间
+        Duration streamTimeout = Duration.ofMinutes(5);
+        String message = "10.11 和 10.12 哪个更大";
+        boolean useSearch = true;
+        boolean useRag = true;
+        // tavily 或 searxng
+        String searchEngine = "tavily";
+        // SSE 输出预设，不传则使用应用的默认预设
+        String streamPreset;
+
+        // 上游替身：每个流每秒输出的 token 数
+        double tokenRate = 50;
+        int reasoningTokens = 200;
+        int answerTokens = 100;
+        Duration firstTokenDelay = Duration.ofMillis(300);
+        double error429Rate = 0;
+        double error500Rate = 0;
+        // 响应中途结束且不发送 [DONE] 的比例
+        double truncateRate = 0;
+        Duration searchLatency = Duration.ofMillis(200);
+        Duration ragLatency = Duration.ofMillis(50);
+        Duration embeddingLatency = Duration.ofMillis(10);
+        int embeddingDim = 768;
+        int writerThreads = 4;
+
+        final Map<String, Object> appProperties = new LinkedHashMap<>();
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("Expected --name=value: " + arg);
+                }
+                String name = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                if (name.startsWith("app.")) {
+                    options.appProperties.put(name.substring(4), value);
+                    continue;
+                }
+                switch (name) {
+                    case "concurrency" -> options.concurrency = Integer.parseInt(value);
+                    case "sessions" -> options.sessions = Integer.parseInt(value);
+                    case "duration" -> options.duration = DurationStyle.detectAndParse(value);
+                    case "warmup" -> options.warmup = DurationStyle.detectAndParse(value);
+                    case "ramp-up" -> options.rampUp = DurationStyle.detectAndParse(value);
+                    case "requests" -> options.requests = Long.parseLong(value);
+                    case "request-timeout" -> options.requestTimeout = DurationStyle.detectAndParse(value);
+                    case "stream-timeout" -> options.streamTimeout = DurationStyle.detectAndParse(value);
+                    case "message" -> options.message = value;
+                    case "use-search" -> options.useSearch = Boolean.parseBoolean(value);
+                    case "use-rag" -> options.useRag = Boolean.parseBoolean(value);
+                    case "search-engine" -> options.searchEngine = value;
+                    case "stream-preset" -> options.streamPreset = value;
+                    case "token-rate" -> options.tokenRate = Double.parseDouble(value);
+                    case "reasoning-tokens" -> options.reasoningTokens = Integer.parseInt(value);
+                    case "answer-tokens" -> options.answerTokens = Integer.parseInt(value);
+                    case "first-token-delay" -> options.firstTokenDelay = DurationStyle.detectAndParse(value);
+                    case "error-429-rate" -> options.error429Rate = Double.parseDouble(value);
+                    case "error-500-rate" -> options.error500Rate = Double.parseDouble(value);
+                    case "truncate-rate" -> options.truncateRate = Double.parseDouble(value);
+                    case "search-latency" -> options.searchLatency = DurationStyle.detectAndParse(value);
+                    case "rag-latency" -> options.ragLatency = DurationStyle.detectAndParse(value);
+                    case "embedding-latency" -> options.embeddingLatency = DurationStyle.detectAndParse(value);
+                    case "embedding-dim" -> options.embeddingDim = Integer.parseInt(value);
+                    case "writer-threads" -> options.writerThreads = Integer.parseInt(value);
+                    default -> throw new IllegalArgumentException("Unknown option: --" + name);
+                }
+            }
+            if (options.sessions <= 0) {
+                options.sessions = options.concurrency;
+            }
+            if (options.answerTokens < 1) {
+                throw new IllegalArgumentException("answer-tokens must be at least 1");
+            }
+            return options;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+
+        FakeUpstreams upstreams = new FakeUpstreams(options);
+        upstreams.start();
+        boolean passed = false;
+        try {
+            passed = run(options, upstreams);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            upstreams.stop();
+        }
+        // 替身的 HttpServer 和应用的线程池不全是守护线程，应用启动失败时也要退出
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean run(Options options, FakeUpstreams upstreams) {
+        String upstreamUrl = upstreams.baseUrl();
+
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("server.port", 0);
+        properties.put("spring.main.banner-mode", "off");
+        properties.put("logging.level.root", "WARN");
+        properties.put("deepseek.url", upstreamUrl + "/chat/completions");
+        properties.put("deepseek.api-key", "Bearer load-test");
+        properties.put("deepseek.search-engine", "searxng".equals(options.searchEngine) ? upstreamUrl : upstreamUrl + "/tavily/search");
+        properties.put("deepseek.search-key", "load-test");
+        properties.put("upstream.deepseek.http2", false);
+        properties.put("upstream.rag.base-url", upstreamUrl);
+        // 没有本地索引文件，知识库走 /api/search
+        properties.put("vector-search.enabled", false);
+        properties.put("chat.debug.echo-tokens", false);
+        properties.putAll(options.appProperties);
+
+        // 以命令行参数传入：SpringApplicationBuilder.properties 只是默认值，会被 application.yml 覆盖
+        String[] appArgs = properties.entrySet().stream()
+                .map(entry -> "--" + entry.getKey() + "=" + entry.getValue())
+                .toArray(String[]::new);
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(LlmApplication.class).run(appArgs);
+        try {
+            int port = Integer.parseInt(context.getEnvironment().getProperty("local.server.port"));
+            String appUrl = "http://127.0.0.1:" + port;
+            System.out.println("upstream stand-ins: " + upstreamUrl + ", app: " + appUrl);
+
+            ChatLoadClient client = new ChatLoadClient(options, URI.create(appUrl + "/api/chat"));
+            if (!options.warmup.isZero()) {
+                System.out.println("warming up for " + options.warmup + " ...");
+                client.run(options.warmup, 0).join();
+            }
+            System.out.println("running " + options.concurrency + " concurrent clients for " + options.duration + " ...");
+            ChatLoadClient.Results results = client.run(options.duration, options.requests).join();
+            report(options, results, upstreams);
+            System.out.println("\napp /api/chat-stats: " + get(appUrl + "/api/chat-stats"));
+            System.out.println("app /api/upstream-stats: " + get(appUrl + "/api/upstream-stats"));
+            return verifyTraffic(options, upstreams);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * 确认应用确实在调用上游替身而不是配置文件里的真实上游，否则压测结果没有意义
+     */
+    private static boolean verifyTraffic(Options options, FakeUpstreams upstreams) {
+        List<String> missing = new ArrayList<>();
+        if (upstreams.chatRequests.sum() == 0) {
+            missing.add("chat");
+        }
+        if (options.useSearch && upstreams.searchRequests.sum() == 0) {
+            missing.add("search");
+        }
+        if (options.useRag && upstreams.ragRequests.sum() + upstreams.embeddingRequests.sum() == 0) {
+            missing.add("rag");
+        }
+        if (!missing.isEmpty()) {
+            System.err.println("upstream stand-ins received no " + missing + " requests, the app is not using the stand-ins");
+            return false;
+        }
+        return true;
+    }
+
+    private static void report(Options options, ChatLoadClient.Results results, FakeUpstreams upstreams) {
+        double seconds = results.seconds();
+        long completed = results.succeeded.sum() + results.failed();
+        System.out.println();
+        System.out.printf("duration            %.1fs, %d clients, token rate %.0f/s, %d reasoning + %d answer tokens%n",
+                seconds, options.concurrency, options.tokenRate, options.reasoningTokens, options.answerTokens);
+        System.out.printf("requests            %d completed, %d succeeded, %d failed (%.2f%%)%n",
+                completed, results.succeeded.sum(), results.failed(),
+                completed == 0 ? 0 : results.failed() * 100.0 / completed);
+        System.out.printf("throughput          %.1f req/s, %.0f tokens/s%n",
+                results.succeeded.sum() / seconds, results.tokens.sum() / seconds);
+        System.out.println("first token         " + results.firstToken.summary());
+        System.out.println("first reasoning     " + results.firstReasoningToken.summary());
+        System.out.println("first answer        " + results.firstAnswerToken.summary());
+        System.out.println("inter-token         " + results.interToken.summary());
+        System.out.println("request duration    " + results.duration.summary());
+        System.out.println("queued requests     " + results.queuedRequests.sum());
+        System.out.println("partial retrievals  " + results.partialRetrievals.sum());
+        if (!results.failures.isEmpty()) {
+            Map<String, Long> failures = new TreeMap<>();
+            results.failures.forEach((reason, count) -> failures.put(reason, count.sum()));
+            System.out.println("failures            " + failures);
+        }
+        System.out.printf("upstream stand-ins  chat=%d 429=%d 500=%d truncated=%d aborted=%d search=%d rag=%d embedding=%d%n",
+                upstreams.chatRequests.sum(), upstreams.injected429.sum(), upstreams.injected500.sum(),
+                upstreams.truncated.sum(), upstreams.clientAborts.sum(), upstreams.searchRequests.sum(),
+                upstreams.ragRequests.sum(), upstreams.embeddingRequests.sum());
+    }
+
+    private static String get(String url) {
+        try {
+            return HttpClient.newHttpClient()
+                    .send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofString())
+                    .body();
+        } catch (Exception e) {
+            return e.toString();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.brain.llm.config;
+
+import com.brain.llm.util.DebugEchoSink;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Configuration
+@EnableConfigurationProperties(SseProperties.class)
+public class AsyncConfig {
+
+    // 线程数上限
+    @Value("${chat.executor.max-size:64}")
+    private int maxSize;
+    // 空闲线程的存活时间，空闲时线程池可以缩到 0
+    @Value("${chat.executor.keep-alive:60s}")
+    private Duration keepAlive;
+    // 等待队列长度
+    @Value("${chat.executor.queue-capacity:1000}")
+    private int queueCapacity;
+    // 批量对话检索使用的线程数
+    @Value("${chat.batch.retrieval-threads:32}")
+    private int batchRetrievalThreads;
+    // 是否在控制台回显思考过程和回答内容（调试用）
+    @Value("${chat.debug.echo-tokens:false}")
+    private boolean echoTokens;
+    @Value("${chat.debug.echo-queue-capacity:10000}")
+    private int echoQueueCapacity;
+
+    /**
+     * 对话处理线程池，检索与上游请求都在这里执行，不占用 Tomcat 的请求线程
+     * 检索任务会阻塞等待上游，核心线程数与最大线程数相同：ThreadPoolExecutor 只有在队列满了之后才会创建
+     * 超出核心数的线程，核心数较小时并发检索会在队列里等待并耗尽检索截止时间；空闲线程按 keep-alive 回收
+     */
+    @Bean(name = "chatExecutor")
+    public ThreadPoolTaskExecutor chatExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(maxSize);
+        executor.setMaxPoolSize(maxSize);
+        executor.setKeepAliveSeconds((int) Math.max(1, keepAlive.toSeconds()));
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("chat-");
+        // 队列满时直接拒绝，由调用方把错误返回给客户端
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * 批量对话的检索线程池，与 chatExecutor 分开，批量任务的检索再多也不会占用交互对话的线程；
+     * 检索加载和结果拼装都在这里执行，超出线程数的检索排队等待（计入检索截止时间）
+     */
+    @Bean(name = "batchExecutor")
+    public ThreadPoolTaskExecutor batchExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(batchRetrievalThreads);
+        executor.setMaxPoolSize(batchRetrievalThreads);
+        executor.setKeepAliveSeconds((int) Math.max(1, keepAlive.toSeconds()));
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix("batch-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+        executor.initialize();
+        return executor;
+    }
+
+    // 控制台回显异步写出，不阻塞上游的 IO 线程
+    @Bean
+    public DebugEchoSink debugEchoSink() {
+        return new DebugEchoSink(echoTokens, echoQueueCapacity);
+    }
+
+    // 合并后的 SSE 内容到期发送，所有流共用，任务只做一次拼帧和写出
+    @Bean(name = "sseFlushScheduler", destroyMethod = "shutdownNow")
+    public ScheduledExecutorService sseFlushScheduler(SseProperties sseProperties) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newScheduledThreadPool(Math.max(1, sseProperties.getFlushThreads()), runnable -> {
+            Thread thread = new Thread(runnable, "sse-flush-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,74 @@
+package com.brain.llm.config;
+
+import com.brain.llm.util.SearchUtils;
+import com.brain.llm.util.UpstreamHttpClient;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个上游一个共享客户端，整个应用复用连接池，避免每次对话重新握手
+ */
+@Configuration
+@EnableConfigurationProperties({UpstreamProperties.class, RoutingProperties.class})
+public class HttpClientConfig {
+
+    @Value("${deepseek.search-engine}")
+    private String searchEngine;
+    @Value("${deepseek.search-key}")
+    private String searchKey;
+
+    // deepseek 对话接口
+    @Bean
+    public UpstreamHttpClient deepseekClient(UpstreamProperties properties) {
+        return buildClient("deepseek", properties.getDeepseek());
+    }
+
+    // python 知识库 / 向量接口
+    @Bean
+    public UpstreamHttpClient ragClient(UpstreamProperties properties) {
+        return buildClient("rag", properties.getRag());
+    }
+
+    // 联网搜索，沿用 OkHttp
+    @Bean
+    public OkHttpClient searchHttpClient(UpstreamProperties properties) {
+        UpstreamProperties.Client config = properties.getSearch();
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.getMaxConnections());
+        dispatcher.setMaxRequestsPerHost(config.getMaxConnections());
+        // OkHttp 没有单独的首字节超时，读取超时同时覆盖等待响应头的时间
+        Duration readTimeout = config.getFirstByteTimeout().compareTo(config.getReadTimeout()) > 0
+                ? config.getFirstByteTimeout() : config.getReadTimeout();
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(config.getMaxIdleConnections(), config.getKeepAlive().toMillis(), TimeUnit.MILLISECONDS))
+                .protocols(config.isHttp2() ? List.of(Protocol.HTTP_2, Protocol.HTTP_1_1) : List.of(Protocol.HTTP_1_1))
+                .connectTimeout(config.getConnectTimeout())
+                .readTimeout(readTimeout)
+                .build();
+    }
+
+    @Bean
+    public SearchUtils searchUtils(OkHttpClient searchHttpClient) {
+        return new SearchUtils(searchEngine, searchKey, searchHttpClient);
+    }
+
+    private UpstreamHttpClient buildClient(String name, UpstreamProperties.Client config) {
+        HttpClient client = HttpClient.newBuilder()
+                .version(config.isHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(config.getConnectTimeout())
+                .build();
+        return new UpstreamHttpClient(name, client, config.getFirstByteTimeout(), config.getReadTimeout(), config.getMaxConnections());
+    }
+}
@@ -0,0 +1,186 @@
+package com.brain.llm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 对话模型路由配置，对应 application.yml 中的 chat.routing 节点
+ * 多个 OpenAI 兼容的端点（主站、镜像、便宜的备用模型等），按优先级和首 token 延迟选择，
+ * 首 token 迟迟不到时向下一个端点发出对冲请求，先输出的一方胜出
+ */
+@ConfigurationProperties(prefix = "chat.routing")
+public class RoutingProperties {
+
+    // 为空时只使用 deepseek.url、deepseek.model-name 和 deepseek.api-key
+    private List<Endpoint> endpoints = new ArrayList<>();
+    // 每个端点保留的首 token 延迟样本数
+    private int latencyWindow = 200;
+    // 错误率（指数滑动平均）超过该值的端点排到健康端点之后
+    private double errorThreshold = 0.5;
+    private Hedge hedge = new Hedge();
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public void setEndpoints(List<Endpoint> endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    public int getLatencyWindow() {
+        return latencyWindow;
+    }
+
+    public void setLatencyWindow(int latencyWindow) {
+        this.latencyWindow = latencyWindow;
+    }
+
+    public double getErrorThreshold() {
+        return errorThreshold;
+    }
+
+    public void setErrorThreshold(double errorThreshold) {
+        this.errorThreshold = errorThreshold;
+    }
+
+    public Hedge getHedge() {
+        return hedge;
+    }
+
+    public void setHedge(Hedge hedge) {
+        this.hedge = hedge;
+    }
+
+    public static class Endpoint {
+        private String name;
+        private String url;
+        // 为空时沿用请求体中的模型
+        private String model;
+        private String apiKey;
+        // 数值小的优先，同一优先级内按首 token 延迟选择
+        private int priority;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public void setModel(String model) {
+            this.model = model;
+        }
+
+        public String getApiKey() {
+            return apiKey;
+        }
+
+        public void setApiKey(String apiKey) {
+            this.apiKey = apiKey;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public void setPriority(int priority) {
+            this.priority = priority;
+        }
+    }
+
+    public static class Hedge {
+        private boolean enabled = true;
+        // 首 token 等待时间超过首选端点延迟的该分位数时发出对冲请求
+        private double percentile = 0.95;
+        // 样本不足时使用的等待时间
+        private Duration initialDelay = Duration.ofSeconds(8);
+        private Duration minDelay = Duration.ofSeconds(1);
+        private Duration maxDelay = Duration.ofSeconds(30);
+        // 计算分位数至少需要的样本数
+        private int minSamples = 20;
+        // 对冲预算：每个请求积累该比例的额度，每次对冲消耗 1，上游整体变慢时不会让请求量翻倍
+        private double budgetRatio = 0.1;
+        // 额度上限，允许短时间内的突发对冲
+        private int budgetBurst = 10;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getPercentile() {
+            return percentile;
+        }
+
+        public void setPercentile(double percentile) {
+            this.percentile = percentile;
+        }
+
+        public Duration getInitialDelay() {
+            return initialDelay;
+        }
+
+        public void setInitialDelay(Duration initialDelay) {
+            this.initialDelay = initialDelay;
+        }
+
+        public Duration getMinDelay() {
+            return minDelay;
+        }
+
+        public void setMinDelay(Duration minDelay) {
+            this.minDelay = minDelay;
+        }
+
+        public Duration getMaxDelay() {
+            return maxDelay;
+        }
+
+        public void setMaxDelay(Duration maxDelay) {
+            this.maxDelay = maxDelay;
+        }
+
+        public int getMinSamples() {
+            return minSamples;
+        }
+
+        public void setMinSamples(int minSamples) {
+            this.minSamples = minSamples;
+        }
+
+        public double getBudgetRatio() {
+            return budgetRatio;
+        }
+
+        public void setBudgetRatio(double budgetRatio) {
+            this.budgetRatio = budgetRatio;
+        }
+
+        public int getBudgetBurst() {
+            return budgetBurst;
+        }
+
+        public void setBudgetBurst(int budgetBurst) {
+            this.budgetBurst = budgetBurst;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.brain.llm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SSE 输出合并配置，对应 application.yml 中的 chat.sse 节点
+ * 连续的思考过程或回答增量在时间窗口内合并为一个事件，达到字节上限时立即发送
+ */
+@ConfigurationProperties(prefix = "chat.sse")
+public class SseProperties {
+
+    public static final String PRESET_LATENCY = "latency";
+    public static final String PRESET_BALANCED = "balanced";
+    public static final String PRESET_THROUGHPUT = "throughput";
+
+    // 请求未指定或指定了不存在的预设时使用
+    private String defaultPreset = PRESET_BALANCED;
+    // 定时发送合并内容的线程数
+    private int flushThreads = 2;
+    private Map<String, Preset> presets = new LinkedHashMap<>();
+
+    public SseProperties() {
+        presets.put(PRESET_LATENCY, new Preset(Duration.ZERO, 0));
+        presets.put(PRESET_BALANCED, new Preset(Duration.ofMillis(50), 1024));
+        presets.put(PRESET_THROUGHPUT, new Preset(Duration.ofMillis(200), 8192));
+    }
+
+    public String getDefaultPreset() {
+        return defaultPreset;
+    }
+
+    public void setDefaultPreset(String defaultPreset) {
+        this.defaultPreset = defaultPreset;
+    }
+
+    public int getFlushThreads() {
+        return flushThreads;
+    }
+
+    public void setFlushThreads(int flushThreads) {
+        this.flushThreads = flushThreads;
+    }
+
+    public Map<String, Preset> getPresets() {
+        return presets;
+    }
+
+    public void setPresets(Map<String, Preset> presets) {
+        this.presets = presets;
+    }
+
+    // 按名称查找预设，找不到时使用默认预设
+    public Preset resolve(String name) {
+        Preset preset = name == null ? null : presets.get(name);
+        if (preset == null) {
+            preset = presets.get(defaultPreset);
+        }
+        return preset != null ? preset : new Preset(Duration.ZERO, 0);
+    }
+
+    public static class Preset {
+        // 合并窗口，0 表示每个增量立即发送
+        private Duration window = Duration.ZERO;
+        // 合并内容达到该字节数（UTF-8 估算）时立即发送，0 表示不限
+        private int maxBytes;
+
+        public Preset() {
+        }
+
+        public Preset(Duration window, int maxBytes) {
+            this.window = window;
+            this.maxBytes = maxBytes;
+        }
+
+        public Duration getWindow() {
+            return window;
+        }
+
+        public void setWindow(Duration window) {
+            this.window = window;
+        }
+
+        public int getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(int maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+}
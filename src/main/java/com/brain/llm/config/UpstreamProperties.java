@@ -0,0 +1,126 @@
+package com.brain.llm.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+/**
+ * 上游 HTTP 客户端配置，每个上游一份，对应 application.yml 中的 upstream 节点
+ */
+@ConfigurationProperties(prefix = "upstream")
+public class UpstreamProperties {
+
+    // deepseek 对话接口
+    private Client deepseek = new Client();
+    // python 知识库 / 向量接口
+    private Client rag = new Client();
+    // 联网搜索（tavily / searXNG）
+    private Client search = new Client();
+
+    public Client getDeepseek() {
+        return deepseek;
+    }
+
+    public void setDeepseek(Client deepseek) {
+        this.deepseek = deepseek;
+    }
+
+    public Client getRag() {
+        return rag;
+    }
+
+    public void setRag(Client rag) {
+        this.rag = rag;
+    }
+
+    public Client getSearch() {
+        return search;
+    }
+
+    public void setSearch(Client search) {
+        this.search = search;
+    }
+
+    public static class Client {
+        // 服务地址，仅在上游地址未单独配置时使用
+        private String baseUrl;
+        // 是否启用 HTTP/2（多路复用），不支持的服务端会自动降级为 HTTP/1.1
+        private boolean http2 = true;
+        // 建立连接超时
+        private Duration connectTimeout = Duration.ofSeconds(10);
+        // 发出请求到收到响应头的超时（首字节超时）
+        private Duration firstByteTimeout = Duration.ofSeconds(60);
+        // 响应体两次读取之间的最大间隔
+        private Duration readTimeout = Duration.ofSeconds(60);
+        // 最大并发请求数（HTTP/1.1 下即最大连接数）
+        private int maxConnections = 64;
+        // 连接池最大空闲连接数
+        private int maxIdleConnections = 16;
+        // 空闲连接保活时间
+        private Duration keepAlive = Duration.ofMinutes(5);
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        public void setBaseUrl(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        public boolean isHttp2() {
+            return http2;
+        }
+
+        public void setHttp2(boolean http2) {
+            this.http2 = http2;
+        }
+
+        public Duration getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        public void setConnectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+        }
+
+        public Duration getFirstByteTimeout() {
+            return firstByteTimeout;
+        }
+
+        public void setFirstByteTimeout(Duration firstByteTimeout) {
+            this.firstByteTimeout = firstByteTimeout;
+        }
+
+        public Duration getReadTimeout() {
+            return readTimeout;
+        }
+
+        public void setReadTimeout(Duration readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        public int getMaxConnections() {
+            return maxConnections;
+        }
+
+        public void setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
+        public int getMaxIdleConnections() {
+            return maxIdleConnections;
+        }
+
+        public void setMaxIdleConnections(int maxIdleConnections) {
+            this.maxIdleConnections = maxIdleConnections;
+        }
+
+        public Duration getKeepAlive() {
+            return keepAlive;
+        }
+
+        public void setKeepAlive(Duration keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+    }
+}
@@ -2,26 +2,100 @@ package com.brain.llm.controller;
 
 import com.brain.llm.domain.ChatRequest;
 import com.brain.llm.domain.ChatResponse;
+import com.brain.llm.service.BatchChatService;
 import com.brain.llm.service.ChatService;
+import com.brain.llm.service.ContextPacker;
+import com.brain.llm.service.ConversationStore;
+import com.brain.llm.service.ResponseCache;
+import com.brain.llm.service.RetrievalCache;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
 @RestController
 @RequestMapping("/api")
 public class ChatController {
 
     @Autowired
     private ChatService chatService;
+    @Autowired
+    private BatchChatService batchChatService;
+    @Autowired
+    private RetrievalCache retrievalCache;
+    @Autowired
+    private ContextPacker contextPacker;
+    @Autowired
+    private ResponseCache responseCache;
+    @Autowired
+    private ConversationStore conversationStore;
 
     @PostMapping("/chat")
     public SseEmitter chat(@RequestBody ChatRequest request) {
         return chatService.handleChatRequest(request);
     }
 
+    // 批量对话：请求体为 JSON 数组或 NDJSON，结果按完成顺序逐行返回 NDJSON，处理期间占用当前请求线程
+    @PostMapping("/chat/batch")
+    public void chatBatch(InputStream body,
+                          @RequestParam(value = "concurrency", defaultValue = "8") int concurrency,
+                          @RequestParam(value = "reasoning", defaultValue = "false") boolean reasoning,
+                          HttpServletResponse response) throws IOException {
+        OutputStream output = response.getOutputStream();
+        if (!batchChatService.tryStart()) {
+            throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many batch jobs running");
+        }
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        batchChatService.run(body, output, concurrency, reasoning);
+    }
+
+    // 批量对话任务和项数统计
+    @GetMapping("/batch-stats")
+    public Map<String, Object> batchStats() {
+        return batchChatService.stats();
+    }
+
     @PostMapping("/clear-history")
-    public ChatResponse clearHistory() {
-        chatService.clearHistory();
+    public ChatResponse clearHistory(@RequestParam(value = "sessionId", required = false) String sessionId) {
+        chatService.clearHistory(sessionId);
         return new ChatResponse("历史记录已清除");
     }
-}
\ No newline at end of file
+
+    // 检索结果缓存命中统计
+    @GetMapping("/retrieval-cache-stats")
+    public Map<String, Object> retrievalCacheStats() {
+        return retrievalCache.stats();
+    }
+
+    // 参考信息去重和按预算截断节省的 token 数
+    @GetMapping("/context-stats")
+    public Map<String, Object> contextStats() {
+        return contextPacker.stats();
+    }
+
+    // 回答缓存命中、跟随和淘汰统计
+    @GetMapping("/response-cache-stats")
+    public Map<String, Object> responseCacheStats() {
+        return responseCache.stats();
+    }
+
+    // 会话数、历史内容大小和持久化日志写入统计
+    @GetMapping("/history-stats")
+    public Map<String, Object> historyStats() {
+        return conversationStore.stats();
+    }
+
+    // 流式会话计数：进行中、完成、失败、客户端断开、超时
+    @GetMapping("/chat-stats")
+    public Map<String, Object> chatStats() {
+        return chatService.stats();
+    }
+}
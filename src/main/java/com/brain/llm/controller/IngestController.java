@@ -0,0 +1,101 @@
+package com.brain.llm.controller;
+
+import com.brain.llm.service.KnowledgeIngestionService;
+import jakarta.annotation.Resource;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 知识库导入任务：文档为 JSON 数组或 NDJSON，字段 doc_name、chapter、item_number、content
+ */
+@RestController
+@ConditionalOnProperty(name = "ingest.enabled", havingValue = "true", matchIfMissing = true)
+@RequestMapping("/api/ingest")
+public class IngestController {
+
+    @Resource
+    private KnowledgeIngestionService ingestionService;
+
+    // 导入服务器上 ingest.import-dir 中的文件，path 为相对该目录的路径；resume=true 时从同名任务的断点继续
+    @PostMapping(params = "path")
+    public Map<String, Object> ingestFile(@RequestParam("path") String path,
+                                          @RequestParam(value = "name", required = false) String name,
+                                          @RequestParam(value = "resume", defaultValue = "true") boolean resume) throws IOException {
+        Path source;
+        try {
+            source = ingestionService.importPath(path);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        return start(name != null ? name : jobName(source.getFileName().toString()), source, resume);
+    }
+
+    // 上传文件导入，文件先写入磁盘，不整体读入内存
+    @PostMapping(consumes = "multipart/form-data")
+    public Map<String, Object> ingestUpload(@RequestParam("file") MultipartFile file,
+                                            @RequestParam(value = "name", required = false) String name,
+                                            @RequestParam(value = "resume", defaultValue = "true") boolean resume) throws IOException {
+        String jobName = name != null ? name : jobName(String.valueOf(file.getOriginalFilename()));
+        Path target;
+        try {
+            target = ingestionService.uploadPath(jobName);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        if (ingestionService.isRunning(jobName)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Ingestion job already running: " + jobName);
+        }
+        file.transferTo(target);
+        return start(jobName, target, resume);
+    }
+
+    @GetMapping
+    public List<Map<String, Object>> jobs() {
+        return ingestionService.list();
+    }
+
+    @GetMapping("/{name}")
+    public Map<String, Object> status(@PathVariable("name") String name) throws IOException {
+        Map<String, Object> status;
+        try {
+            status = ingestionService.status(name);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        if (status == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown ingestion job: " + name);
+        }
+        return status;
+    }
+
+    // 取消正在运行的任务，已写入的内容和断点保留
+    @DeleteMapping("/{name}")
+    public Map<String, Object> cancel(@PathVariable("name") String name) {
+        return Map.of("cancelled", ingestionService.cancel(name));
+    }
+
+    private Map<String, Object> start(String name, Path source, boolean resume) {
+        try {
+            return ingestionService.start(name, source, resume);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+    }
+
+    // 默认使用去掉扩展名的文件名作为任务名
+    private static String jobName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        return base.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
@@ -0,0 +1,56 @@
+package com.brain.llm.controller;
+
+import com.brain.llm.service.ElasticsearchKnnSearch;
+import com.brain.llm.service.ModelRouter;
+import com.brain.llm.service.StartupReport;
+import com.brain.llm.service.UpstreamScheduler;
+import com.brain.llm.util.SearchUtils;
+import com.brain.llm.util.UpstreamHttpClient;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api")
+public class UpstreamController {
+
+    @Resource
+    private List<UpstreamHttpClient> upstreamClients;
+    @Resource
+    private SearchUtils searchUtils;
+    @Resource
+    private UpstreamScheduler upstreamScheduler;
+    // 没有开启 es 检索和知识库导入时不存在
+    @Autowired(required = false)
+    private ElasticsearchKnnSearch elasticsearchKnnSearch;
+    @Resource
+    private ModelRouter modelRouter;
+    @Resource
+    private StartupReport startupReport;
+
+    // 上游连接池、deepseek 准入控制、模型路由和 es 混合检索候选数统计
+    @GetMapping("/upstream-stats")
+    public List<Map<String, Object>> upstreamStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        upstreamClients.forEach(client -> stats.add(client.stats()));
+        stats.add(searchUtils.stats());
+        stats.add(upstreamScheduler.stats());
+        stats.add(modelRouter.stats());
+        if (elasticsearchKnnSearch != null) {
+            stats.add(elasticsearchKnnSearch.stats());
+        }
+        return stats;
+    }
+
+    // 启动耗时、加载的类数和内存占用，以及各检索后端是否创建、是否已初始化
+    @GetMapping("/startup-stats")
+    public Map<String, Object> startupStats() {
+        return startupReport.stats();
+    }
+}
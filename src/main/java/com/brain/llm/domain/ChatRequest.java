@@ -2,10 +2,14 @@ package com.brain.llm.domain;
 
 
 public class ChatRequest {
+    // 会话 id，不传则使用默认会话
+    private String sessionId;
     private String message;
     private boolean useSearch;
     private boolean useRAG;
     private boolean maxToggle;
+    // SSE 输出预设：latency、balanced、throughput，不传则使用 chat.sse.default-preset
+    private String streamPreset;
 
     public ChatRequest() {
     }
@@ -17,6 +21,14 @@ public class ChatRequest {
         this.maxToggle = maxToggle;
     }
 
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
     public String getMessage() {
         return message;
     }
@@ -48,5 +60,12 @@ public class ChatRequest {
     public void setMaxToggle(boolean maxToggle) {
         this.maxToggle = maxToggle;
     }
-}
 
+    public String getStreamPreset() {
+        return streamPreset;
+    }
+
+    public void setStreamPreset(String streamPreset) {
+        this.streamPreset = streamPreset;
+    }
+}
@@ -0,0 +1,54 @@
+package com.brain.llm.domain;
+
+/**
+ * 一条检索结果：一条联网搜索结果或一个知识库片段
+ * 各检索源只返回结构化的结果，由 ContextPacker 去重、排序并按 token 预算拼成参考信息
+ */
+public class Passage {
+    // 检索源，RetrievalService.SOURCE_SEARCH 或 SOURCE_RAG
+    private final String source;
+    // 在检索源内的排名，从 0 开始
+    private final int rank;
+    // 联网搜索结果的标题和来源，知识库片段为 null
+    private final String title;
+    private final String url;
+    private final String text;
+
+    public Passage(String source, int rank, String title, String url, String text) {
+        this.source = source;
+        this.rank = rank;
+        this.title = title;
+        this.url = url;
+        this.text = text;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // 标题、来源和内容的总字符数，用于缓存容量统计
+    public int length() {
+        return text.length() + (title == null ? 0 : title.length()) + (url == null ? 0 : url.length());
+    }
+
+    // 内容截断后的副本
+    public Passage withText(String text) {
+        return new Passage(source, rank, title, url, text);
+    }
+}
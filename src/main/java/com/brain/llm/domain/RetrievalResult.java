@@ -0,0 +1,53 @@
+package com.brain.llm.domain;
+
+import java.util.List;
+
+/**
+ * 一次检索的汇总结果，包含在截止时间内返回的参考信息，以及超时或失败的检索源
+ * candidateTokens 为去重和按预算截断之前的 token 数（估算值）
+ */
+public class RetrievalResult {
+    private final String context;
+    private final List<String> timedOut;
+    private final List<String> failed;
+    private final int candidateTokens;
+    private final int contextTokens;
+
+    public RetrievalResult(String context, List<String> timedOut, List<String> failed, int candidateTokens, int contextTokens) {
+        this.context = context;
+        this.timedOut = timedOut;
+        this.failed = failed;
+        this.candidateTokens = candidateTokens;
+        this.contextTokens = contextTokens;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public List<String> getTimedOut() {
+        return timedOut;
+    }
+
+    public List<String> getFailed() {
+        return failed;
+    }
+
+    public int getCandidateTokens() {
+        return candidateTokens;
+    }
+
+    public int getContextTokens() {
+        return contextTokens;
+    }
+
+    // 去重和按预算截断节省的 token 数
+    public int getSavedTokens() {
+        return candidateTokens - contextTokens;
+    }
+
+    // 是否有检索源没有返回结果
+    public boolean isPartial() {
+        return !timedOut.isEmpty() || !failed.isEmpty();
+    }
+}
@@ -0,0 +1,70 @@
+package com.brain.llm.domain;
+
+/**
+ * deepseek 响应中的 usage 统计
+ */
+public class TokenUsage {
+    private int promptTokens;
+    private int completionTokens;
+    private int totalTokens;
+    // 命中上下文硬盘缓存的 prompt token 数
+    private int promptCacheHitTokens;
+    private int promptCacheMissTokens;
+    // 思考过程的 token 数
+    private int reasoningTokens;
+
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    public void setPromptTokens(int promptTokens) {
+        this.promptTokens = promptTokens;
+    }
+
+    public int getCompletionTokens() {
+        return completionTokens;
+    }
+
+    public void setCompletionTokens(int completionTokens) {
+        this.completionTokens = completionTokens;
+    }
+
+    public int getTotalTokens() {
+        return totalTokens;
+    }
+
+    public void setTotalTokens(int totalTokens) {
+        this.totalTokens = totalTokens;
+    }
+
+    public int getPromptCacheHitTokens() {
+        return promptCacheHitTokens;
+    }
+
+    public void setPromptCacheHitTokens(int promptCacheHitTokens) {
+        this.promptCacheHitTokens = promptCacheHitTokens;
+    }
+
+    public int getPromptCacheMissTokens() {
+        return promptCacheMissTokens;
+    }
+
+    public void setPromptCacheMissTokens(int promptCacheMissTokens) {
+        this.promptCacheMissTokens = promptCacheMissTokens;
+    }
+
+    public int getReasoningTokens() {
+        return reasoningTokens;
+    }
+
+    public void setReasoningTokens(int reasoningTokens) {
+        this.reasoningTokens = reasoningTokens;
+    }
+
+    @Override
+    public String toString() {
+        return "prompt=" + promptTokens + " (cache hit " + promptCacheHitTokens + ", miss " + promptCacheMissTokens + ")"
+                + ", completion=" + completionTokens + " (reasoning " + reasoningTokens + ")"
+                + ", total=" + totalTokens;
+    }
+}
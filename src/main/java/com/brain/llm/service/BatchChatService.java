@@ -0,0 +1,388 @@
+package com.brain.llm.service;
+
+import com.brain.llm.domain.ChatRequest;
+import com.brain.llm.domain.RetrievalResult;
+import com.brain.llm.domain.TokenUsage;
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.DeepSeekStreamDecoder;
+import com.brain.llm.util.DocumentReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 批量对话：输入为 JSON 数组或 NDJSON，每项字段 message（必填）、id、useSearch、useRAG、maxToggle
+ * 与交互对话使用同样的检索、提示词和模型路由，但不读写会话历史、不经过 SSE；
+ * 每个任务最多 concurrency 项同时处理（输入按这个速度读取），同一任务内相同的检索只执行一次，
+ * 检索在批量专用的线程池执行，上游调用作为后台请求提交，只占用准入控制的一部分并发上限，都不挤占交互对话；
+ * 结果按完成顺序逐行输出 NDJSON，包括各阶段耗时和 token 用量，最后一行为汇总
+ */
+@Service
+public class BatchChatService {
+
+    @Value("${deepseek.model-name}")
+    private String modelName;
+    // 单个任务同时处理的最大项数
+    @Value("${chat.batch.max-concurrency:8}")
+    private int maxConcurrency;
+    // 同时运行的任务数
+    @Value("${chat.batch.max-jobs:2}")
+    private int maxJobs;
+    // 单项（检索 + 生成）的超时时间
+    @Value("${chat.batch.item-timeout:10m}")
+    private Duration itemTimeout;
+
+    // 检索和检索之后的提交都在批量专用的线程池执行，不占用交互对话的 chatExecutor
+    @Resource(name = "batchExecutor")
+    private Executor batchExecutor;
+    @Resource
+    private RetrievalService retrievalService;
+    @Resource
+    private PromptAssembler promptAssembler;
+    @Resource
+    private UpstreamScheduler upstreamScheduler;
+    @Resource
+    private ModelRouter modelRouter;
+    @Resource
+    private ChatMetrics chatMetrics;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private Semaphore jobSlots;
+
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong completedItems = new AtomicLong();
+    private final AtomicLong failedItems = new AtomicLong();
+    // 与同一任务中正在进行的相同检索合并的项数
+    private final AtomicLong sharedRetrievals = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        jobSlots = new Semaphore(Math.max(1, maxJobs));
+    }
+
+    // 任务数已满时返回 false，成功时必须调用 run 释放
+    public boolean tryStart() {
+        return jobSlots.tryAcquire();
+    }
+
+    /**
+     * 在调用线程上读取输入、写出结果，直到所有项完成或客户端断开
+     * @param concurrency      本任务的并发项数，不超过 chat.batch.max-concurrency
+     * @param includeReasoning 结果中是否包含思考过程
+     */
+    public void run(InputStream input, OutputStream output, int concurrency, boolean includeReasoning) {
+        Job job = new Job(Math.max(1, Math.min(concurrency, maxConcurrency)), includeReasoning);
+        jobs.incrementAndGet();
+        try (DocumentReader reader = new DocumentReader(input, objectMapper.getFactory())) {
+            job.pump(reader, output);
+        } catch (IOException e) {
+            // 客户端断开，中止还在处理的项
+            job.cancellation.cancel();
+        } catch (RuntimeException e) {
+            job.cancellation.cancel();
+            throw e;
+        } finally {
+            jobSlots.release();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runningJobs", Math.max(1, maxJobs) - jobSlots.availablePermits());
+        stats.put("jobs", jobs.get());
+        stats.put("completedItems", completedItems.get());
+        stats.put("failedItems", failedItems.get());
+        stats.put("sharedRetrievals", sharedRetrievals.get());
+        return stats;
+    }
+
+    private static boolean flag(Map<String, String> item, String field) {
+        return Boolean.parseBoolean(item.get(field));
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private final class Job {
+        private final int concurrency;
+        private final boolean includeReasoning;
+        private final long startNanos = System.nanoTime();
+        private final Cancellation cancellation = new Cancellation();
+        private final Semaphore slots;
+        // 完成的结果，由读取输入的线程统一写出
+        private final LinkedBlockingQueue<Map<String, Object>> results = new LinkedBlockingQueue<>();
+        // 正在进行的检索，key 为检索源开关 + 归一化后的问题
+        private final ConcurrentHashMap<String, CompletableFuture<RetrievalResult>> retrievals = new ConcurrentHashMap<>();
+        private long launched;
+        private long written;
+        private long failed;
+
+        private Job(int concurrency, boolean includeReasoning) {
+            this.concurrency = concurrency;
+            this.includeReasoning = includeReasoning;
+            this.slots = new Semaphore(concurrency);
+        }
+
+        private void pump(DocumentReader reader, OutputStream output) throws IOException {
+            boolean inputDone = false;
+            long index = 0;
+            while (!inputDone || written < launched) {
+                drain(output);
+                if (inputDone) {
+                    Map<String, Object> result = poll(1000);
+                    if (result != null) {
+                        writeResult(output, result);
+                        output.flush();
+                    }
+                    continue;
+                }
+                // 等待空闲名额时也继续写出已完成的结果
+                if (!acquire(20)) {
+                    continue;
+                }
+                Map<String, String> item;
+                try {
+                    item = reader.next();
+                } catch (IOException e) {
+                    // 输入格式错误，不再读取，已提交的项照常完成
+                    slots.release();
+                    write(output, Map.of("index", index, "inputError", String.valueOf(e.getMessage())));
+                    inputDone = true;
+                    continue;
+                }
+                if (item == null) {
+                    slots.release();
+                    inputDone = true;
+                    continue;
+                }
+                launched++;
+                launch(index++, item);
+            }
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("summary", true);
+            summary.put("items", launched);
+            summary.put("failed", failed);
+            summary.put("concurrency", concurrency);
+            summary.put("totalMillis", millisSince(startNanos));
+            write(output, summary);
+            output.flush();
+        }
+
+        private boolean acquire(long timeoutMillis) {
+            try {
+                return slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("batch interrupted");
+            }
+        }
+
+        private Map<String, Object> poll(long timeoutMillis) {
+            try {
+                return results.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("batch interrupted");
+            }
+        }
+
+        private void drain(OutputStream output) throws IOException {
+            Map<String, Object> result;
+            boolean any = false;
+            while ((result = results.poll()) != null) {
+                writeResult(output, result);
+                any = true;
+            }
+            if (any) {
+                output.flush();
+            }
+        }
+
+        private void writeResult(OutputStream output, Map<String, Object> result) throws IOException {
+            written++;
+            if (result.containsKey("error")) {
+                failed++;
+            }
+            write(output, result);
+        }
+
+        private void write(OutputStream output, Map<String, Object> result) throws IOException {
+            output.write(objectMapper.writeValueAsBytes(result));
+            output.write('\n');
+        }
+
+        private void launch(long index, Map<String, String> item) {
+            long itemStart = System.nanoTime();
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("index", index);
+            if (item.get("id") != null) {
+                result.put("id", item.get("id"));
+            }
+            String message = item.get("message");
+            if (message == null || message.isBlank()) {
+                complete(result, null, null, new IllegalArgumentException("message is required"), itemStart);
+                return;
+            }
+            ChatRequest request = new ChatRequest(message, flag(item, "useSearch"), flag(item, "useRAG"), flag(item, "maxToggle"));
+            // 单项超时只取消本项，共享的检索使用任务级的取消信号
+            Cancellation itemCancellation = new Cancellation();
+            cancellation.onCancel(itemCancellation::cancel);
+            Collector collector = new Collector(itemCancellation);
+            Timings timings = new Timings();
+            retrieve(request)
+                    .thenComposeAsync(retrieval -> {
+                        timings.retrievalMillis = millisSince(itemStart);
+                        if (retrieval.isPartial()) {
+                            result.put("retrieval", Map.of("timedOut", retrieval.getTimedOut(), "failed", retrieval.getFailed()));
+                        }
+                        if (retrieval.getCandidateTokens() > 0) {
+                            result.put("context", Map.of("tokens", retrieval.getContextTokens(), "savedTokens", retrieval.getSavedTokens()));
+                        }
+                        return generate(request, retrieval.getContext(), collector, itemCancellation);
+                    }, batchExecutor)
+                    .orTimeout(itemTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                    .whenComplete((ignored, e) -> {
+                        if (e != null) {
+                            itemCancellation.cancel();
+                        }
+                        result.put("timings", timings.toMap(collector, itemStart));
+                        complete(result, collector, collector.usage, e, itemStart);
+                    });
+        }
+
+        // 同一任务中相同的检索同时只执行一次；跨任务和先后出现的重复问题由 RetrievalCache 复用
+        private CompletableFuture<RetrievalResult> retrieve(ChatRequest request) {
+            String key = (request.isUseSearch() ? "s" : "-") + (request.isUseRAG() ? "r" : "-")
+                    + (request.isMaxToggle() ? "m" : "-") + RetrievalCache.normalize(request.getMessage());
+            CompletableFuture<RetrievalResult> created = new CompletableFuture<>();
+            CompletableFuture<RetrievalResult> existing = retrievals.putIfAbsent(key, created);
+            if (existing != null) {
+                sharedRetrievals.incrementAndGet();
+                return existing;
+            }
+            retrievalService.retrieve(request, cancellation, batchExecutor).whenComplete((retrieval, e) -> {
+                retrievals.remove(key, created);
+                if (e != null) {
+                    created.completeExceptionally(e);
+                } else {
+                    created.complete(retrieval);
+                }
+            });
+            return created;
+        }
+
+        private CompletableFuture<?> generate(ChatRequest request, String context, Collector collector,
+                                              Cancellation itemCancellation) {
+            try {
+                Map<String, Object> requestBody = new LinkedHashMap<>();
+                requestBody.put("model", modelName);
+                requestBody.put("messages", promptAssembler.assemble(
+                        List.of(PromptAssembler.message("user", request.getMessage())), context));
+                requestBody.put("stream", true);
+                requestBody.put("stream_options", Map.of("include_usage", true));
+                String body = objectMapper.writeValueAsString(requestBody);
+                return upstreamScheduler.submitBackground(itemCancellation,
+                        permit -> modelRouter.stream(body, requestBody, collector, permit, itemCancellation),
+                        collector::hasStarted);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        private void complete(Map<String, Object> result, Collector collector, TokenUsage usage, Throwable error,
+                              long itemStart) {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                result.put("error", cause instanceof TimeoutException
+                        ? "item timed out after " + itemTimeout : String.valueOf(cause.getMessage()));
+                failedItems.incrementAndGet();
+            } else {
+                completedItems.incrementAndGet();
+            }
+            if (collector != null && error == null) {
+                if (includeReasoning) {
+                    result.put("reasoning", collector.reasoning.toString());
+                }
+                result.put("answer", collector.answer.toString());
+            }
+            if (usage != null) {
+                chatMetrics.recordUsage(usage);
+                result.put("usage", usage);
+            }
+            if (!result.containsKey("timings")) {
+                result.put("timings", Map.of("totalMillis", millisSince(itemStart)));
+            }
+            results.add(result);
+            slots.release();
+        }
+    }
+
+    private static final class Timings {
+        private volatile long retrievalMillis = -1;
+
+        private Map<String, Object> toMap(Collector collector, long itemStart) {
+            Map<String, Object> timings = new LinkedHashMap<>();
+            timings.put("retrievalMillis", retrievalMillis < 0 ? null : retrievalMillis);
+            timings.put("firstTokenMillis", collector.firstTokenNanos == 0 ? null
+                    : TimeUnit.NANOSECONDS.toMillis(collector.firstTokenNanos - itemStart));
+            timings.put("totalMillis", millisSince(itemStart));
+            return timings;
+        }
+    }
+
+    /**
+     * 收集单项的思考过程、回答和 usage，由 HttpClient 的 IO 线程回调
+     */
+    private static final class Collector implements DeepSeekStreamDecoder.Listener {
+        private final Cancellation cancellation;
+        private final StringBuilder reasoning = new StringBuilder();
+        private final StringBuilder answer = new StringBuilder();
+        private volatile TokenUsage usage;
+        private volatile long firstTokenNanos;
+
+        private Collector(Cancellation cancellation) {
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public void onReasoning(String reasoningContent) {
+            started();
+            reasoning.append(reasoningContent);
+        }
+
+        @Override
+        public void onContent(String content) {
+            started();
+            answer.append(content);
+        }
+
+        @Override
+        public void onUsage(TokenUsage usage) {
+            this.usage = usage;
+        }
+
+        private void started() {
+            if (cancellation.isCancelled()) {
+                throw new CancellationException("batch item cancelled");
+            }
+            if (firstTokenNanos == 0) {
+                firstTokenNanos = System.nanoTime();
+            }
+        }
+
+        private boolean hasStarted() {
+            return firstTokenNanos != 0;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.brain.llm.service;
+
+import com.brain.llm.domain.TokenUsage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对话链路的 Micrometer 指标，通过 actuator 的 /actuator/prometheus 暴露：
+ * 各阶段耗时、首个思考/回答 token 延迟、输出速度、deepseek 返回的 token 用量
+ * 逐 token 调用的方法只读写 volatile 字段，不做任何 IO
+ */
+@Component
+public class ChatMetrics {
+
+    public static final String STAGE_WEB_SEARCH = "web_search";
+    public static final String STAGE_RAG = "rag";
+    public static final String STAGE_EMBEDDING = "embedding";
+    public static final String STAGE_VECTOR_SEARCH = "vector_search";
+    public static final String STAGE_ES_KNN = "es_knn";
+    public static final String STAGE_ES_BM25 = "es_bm25";
+    // 发出请求到收到 deepseek 响应头
+    public static final String STAGE_UPSTREAM_CONNECT = "upstream_connect";
+
+    private final MeterRegistry registry;
+    private final Timer firstReasoningToken;
+    private final Timer firstAnswerToken;
+    private final Timer streamDuration;
+    private final DistributionSummary tokensPerSecond;
+    private final Counter promptTokens;
+    private final Counter completionTokens;
+    private final Counter reasoningTokens;
+    private final Counter cacheHitTokens;
+    private final Counter cacheMissTokens;
+    // 上游增量数与实际写出的 SSE 帧数，两者之比即合并效果
+    private final Counter sseDeltas;
+    private final Counter sseFrames;
+    // 参考信息去重、限长前后的 token 数（估算值）
+    private final DistributionSummary contextCandidateTokens;
+    private final DistributionSummary contextTokens;
+    private final Counter contextSavedTokens;
+    // stage + outcome -> timer，避免每次记录都走一遍注册表查找
+    private final Map<String, Timer> stageTimers = new ConcurrentHashMap<>();
+
+    public ChatMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.firstReasoningToken = firstTokenTimer("reasoning");
+        this.firstAnswerToken = firstTokenTimer("answer");
+        this.streamDuration = Timer.builder("chat.stream.duration")
+                .description("收到请求到上游流结束")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.tokensPerSecond = DistributionSummary.builder("chat.stream.tokens.per.second")
+                .description("首个 token 到流结束之间的输出速度")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.promptTokens = usageCounter("prompt");
+        this.completionTokens = usageCounter("completion");
+        this.reasoningTokens = usageCounter("reasoning");
+        this.cacheHitTokens = usageCounter("prompt_cache_hit");
+        this.cacheMissTokens = usageCounter("prompt_cache_miss");
+        this.sseDeltas = Counter.builder("chat.sse.deltas")
+                .description("转发给前端的思考过程和回答增量数")
+                .register(registry);
+        this.sseFrames = Counter.builder("chat.sse.frames")
+                .description("合并后实际写出的 SSE 帧数")
+                .register(registry);
+        this.contextCandidateTokens = contextTokenSummary("candidate");
+        this.contextTokens = contextTokenSummary("packed");
+        this.contextSavedTokens = Counter.builder("chat.context.tokens.saved")
+                .description("参考信息去重和按预算截断减少的 token 数（估算值）")
+                .register(registry);
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    // 记录一个阶段的耗时，startNanos 取自 System.nanoTime()
+    public void recordStage(String stage, long startNanos, boolean success) {
+        String outcome = success ? "success" : "error";
+        stageTimers.computeIfAbsent(stage + ':' + outcome, key -> Timer.builder("chat.stage.latency")
+                        .description("检索、向量化和上游连接各阶段耗时")
+                        .tag("stage", stage)
+                        .tag("outcome", outcome)
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // deepseek 流末尾返回的 token 用量
+    public void recordUsage(TokenUsage usage) {
+        promptTokens.increment(usage.getPromptTokens());
+        completionTokens.increment(usage.getCompletionTokens());
+        reasoningTokens.increment(usage.getReasoningTokens());
+        cacheHitTokens.increment(usage.getPromptCacheHitTokens());
+        cacheMissTokens.increment(usage.getPromptCacheMissTokens());
+    }
+
+    // 单个流结束时记录合并前后的数量
+    public void recordSseWrites(long deltas, long frames) {
+        sseDeltas.increment(deltas);
+        sseFrames.increment(frames);
+    }
+
+    // 一次检索的参考信息拼装前后的 token 数
+    public void recordContextTokens(int candidateTokens, int packedTokens) {
+        contextCandidateTokens.record(candidateTokens);
+        contextTokens.record(packedTokens);
+        contextSavedTokens.increment(Math.max(0, candidateTokens - packedTokens));
+    }
+
+    // 开始统计一次流式对话，startNanos 为收到请求的时间
+    public StreamTimer startStream(long startNanos) {
+        return new StreamTimer(startNanos);
+    }
+
+    private Timer firstTokenTimer(String type) {
+        return Timer.builder("chat.first.token")
+                .description("收到请求到第一个 token 发给前端")
+                .tag("type", type)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private DistributionSummary contextTokenSummary(String type) {
+        return DistributionSummary.builder("chat.context.tokens")
+                .description("每个请求的参考信息 token 数（估算值），candidate 为去重和限长之前")
+                .tag("type", type)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private Counter usageCounter(String type) {
+        return Counter.builder("deepseek.usage.tokens")
+                .description("deepseek 返回的 token 用量")
+                .tag("type", type)
+                .register(registry);
+    }
+
+    /**
+     * 单次流式对话的计时，由 HttpClient 的 IO 线程逐 token 调用
+     */
+    public class StreamTimer {
+        private final long startNanos;
+        private volatile long firstTokenNanos;
+        private volatile boolean reasoningSeen;
+        private volatile boolean answerSeen;
+
+        StreamTimer(long startNanos) {
+            this.startNanos = startNanos;
+        }
+
+        public void onReasoning() {
+            if (!reasoningSeen) {
+                reasoningSeen = true;
+                firstReasoningToken.record(markFirstToken() - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        public void onAnswer() {
+            if (!answerSeen) {
+                answerSeen = true;
+                firstAnswerToken.record(markFirstToken() - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * 流正常结束
+         * @param outputTokens 输出 token 数，优先使用上游返回的 completion_tokens
+         */
+        public void completed(int outputTokens) {
+            long now = System.nanoTime();
+            streamDuration.record(now - startNanos, TimeUnit.NANOSECONDS);
+            long first = firstTokenNanos;
+            if (first != 0 && now > first && outputTokens > 0) {
+                tokensPerSecond.record(outputTokens * 1e9 / (now - first));
+            }
+        }
+
+        private long markFirstToken() {
+            long now = System.nanoTime();
+            if (firstTokenNanos == 0) {
+                firstTokenNanos = now;
+            }
+            return now;
+        }
+    }
+}
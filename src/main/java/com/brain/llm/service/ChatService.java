@@ -1,215 +1,303 @@
 package com.brain.llm.service;
 
+import com.brain.llm.config.SseProperties;
 import com.brain.llm.domain.ChatRequest;
-import com.brain.llm.util.SearchUtils;
+import com.brain.llm.domain.RetrievalResult;
+import com.brain.llm.domain.TokenUsage;
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.DebugEchoSink;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URLEncoder;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class ChatService {
-    @Value("${deepseek.url}")
-    private String API_URL;
-    @Value("${deepseek.api-key}")
-    private String API_KEY;
     @Value("${deepseek.model-name}")
     private String modelName;
-    @Value("${deepseek.search-engine}")
-    private String searchEngine;
-    @Value("${deepseek.search-key}")
-    private String searchKey;
-    private static final int MAX_HISTORY = 10;
-    private final Deque<Map<String, String>> conversationHistory = new ArrayDeque<>();
+    // SseEmitter 超时时间（毫秒）
+    @Value("${chat.emitter-timeout:600000}")
+    private long emitterTimeout;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    // 流式请求统计
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicLong completedStreams = new AtomicLong();
+    private final AtomicLong failedStreams = new AtomicLong();
+    // 前端断开导致中止的请求
+    private final AtomicLong cancelledStreams = new AtomicLong();
+    private final AtomicLong timedOutStreams = new AtomicLong();
+
+    @Resource(name = "chatExecutor")
+    private Executor chatExecutor;
+    @Resource
+    private ModelRouter modelRouter;
+    @Resource
+    private UpstreamScheduler upstreamScheduler;
+    @Resource
+    private RetrievalService retrievalService;
+    @Resource
+    private ConversationStore conversationStore;
+    @Resource
+    private PromptAssembler promptAssembler;
+    @Resource
+    private ChatMetrics chatMetrics;
+    @Resource
+    private DebugEchoSink debugEchoSink;
+    @Resource
+    private ResponseCache responseCache;
     @Resource
-    private ElasticsearchKnnSearch elasticsearchKnnSearch;
+    private SseProperties sseProperties;
+    @Resource(name = "sseFlushScheduler")
+    private ScheduledExecutorService sseFlushScheduler;
 
     public ChatService() {
     }
 
+    @PostConstruct
+    public void registerMetrics() {
+        Gauge.builder("chat.streams.active", activeStreams, AtomicInteger::get)
+                .description("进行中的流式对话")
+                .register(chatMetrics.getRegistry());
+    }
+
+    // 立即返回 emitter，检索和上游流式请求都在后台异步执行
     public SseEmitter handleChatRequest(ChatRequest request) {
-        SseEmitter emitter = new SseEmitter();
+        long startNanos = System.nanoTime();
+        SseEmitter emitter = new SseEmitter(emitterTimeout);
+        // 增量按请求指定的预设合并后再写出
+        SseEventWriter writer = new SseEventWriter(emitter, sseProperties.resolve(request.getStreamPreset()),
+                sseFlushScheduler, chatMetrics);
+        Cancellation cancellation = new Cancellation();
+        AtomicBoolean finished = new AtomicBoolean();
+        activeStreams.incrementAndGet();
+
+        // 前端断开、超时或出错时，中止正在进行的检索和上游流，不再继续消耗 deepseek 的 token
+        emitter.onTimeout(() -> {
+            if (markFinished(finished)) {
+                timedOutStreams.incrementAndGet();
+            }
+            cancellation.cancel();
+            emitter.complete();
+        });
+        emitter.onError(e -> {
+            if (markFinished(finished)) {
+                cancelledStreams.incrementAndGet();
+            }
+            cancellation.cancel();
+        });
+        emitter.onCompletion(() -> {
+            if (markFinished(finished)) {
+                cancelledStreams.incrementAndGet();
+            }
+            cancellation.cancel();
+        });
+
         try {
-            SearchUtils searchUtils = new SearchUtils(searchEngine,searchKey);
-
-            // 获取搜索结果
-            StringBuilder context = new StringBuilder();
-            if (request.isUseSearch()) {
-                List<Map<String, String>> searchResults = new ArrayList<>();
-                if (searchEngine.contains("tavily")) {
-                    searchResults = searchUtils.tavilySearch(request.getMessage());
-                } else {
-                    searchResults = searchUtils.searXNG(request.getMessage(), 3);
-                }
-                if (!searchResults.isEmpty()) {
-                    System.out.println("search results size（联网搜索个数）: " + searchResults.size());
-                    context.append("\n\n联网搜索结果：\n");
-                    for (int i = 0; i < searchResults.size(); i++) {
-                        Map<String, String> result = searchResults.get(i);
-                        context.append(String.format("\n%d. %s\n", i + 1, result.get("title")));
-                        context.append(String.format("   %s\n", result.get("content")));
-                        context.append(String.format("   来源: %s\n", result.get("url")));
-                    }
-                }
+            retrievalService.retrieve(request, cancellation)
+                    // 检索可能在超时线程上完成，切回对话线程池再发起上游请求
+                    .thenComposeAsync(retrieval -> {
+                        notifyPartialRetrieval(retrieval, writer);
+                        return streamChat(request, retrieval.getContext(), writer, cancellation, startNanos);
+                    }, chatExecutor)
+                    .whenComplete((answer, e) -> {
+                        // 出错时也把已经合并的内容发出去，emitter 已关闭时忽略
+                        writer.closeQuietly();
+                        // 已经因为断开或超时结束的请求不再操作 emitter
+                        if (!markFinished(finished)) {
+                            return;
+                        }
+                        if (e != null) {
+                            failedStreams.incrementAndGet();
+                            emitter.completeWithError(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                        } else {
+                            completedStreams.incrementAndGet();
+                            emitter.complete();
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            // 线程池已满
+            if (markFinished(finished)) {
+                failedStreams.incrementAndGet();
             }
+            emitter.completeWithError(e);
+        }
+        return emitter;
+    }
 
-            // 是否启用知识库 es 实现
-//            if (request.isUseRAG()) {
-//                List<String> vectorSearch = elasticsearchKnnSearch.vectorSearch(request.isMaxToggle() ? 10 : 5, request.getMessage());
-//                System.out.println("知识库参考个数: " + vectorSearch.size());
-//                if (!vectorSearch.isEmpty()) {
-//                    context.append("\n\n知识库参考：\n");
-//                }
-//                vectorSearch.forEach(data -> {
-//                    context.append(data + "\n");
-//                });
-//            }
-
-            // 是否启用知识库 python 自带模型量化实现
-            if (request.isUseRAG()) {
-                HttpClient client = HttpClient.newHttpClient();
-                String encodedMsg = URLEncoder.encode(request.getMessage(), StandardCharsets.UTF_8);
-                HttpRequest vectorRequest = HttpRequest.newBuilder()
-                        .uri(URI.create("http://localhost:5001/api/search?query=" + encodedMsg + "&top_k=" + (request.isMaxToggle() ? 10 : 5)))
-                        .build();
-
-                HttpResponse<String> response = client.send(vectorRequest, HttpResponse.BodyHandlers.ofString());
-                if (response.statusCode() != 200) {
-                    throw new IOException("Failed to get vector: HTTP " + response.statusCode());
-                }
-                String body = response.body();
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("activeStreams", activeStreams.get());
+        stats.put("completedStreams", completedStreams.get());
+        stats.put("failedStreams", failedStreams.get());
+        stats.put("cancelledStreams", cancelledStreams.get());
+        stats.put("timedOutStreams", timedOutStreams.get());
+        return stats;
+    }
 
-                System.out.println("知识库参考: " + body);
-                if (!body.isEmpty()) {
-                    context.append("\n\n知识库参考：\n");
-                    context.append(body);
-                }
-            }
+    private boolean markFinished(AtomicBoolean finished) {
+        if (finished.compareAndSet(false, true)) {
+            activeStreams.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
 
-            // 如果有上下文，添加系统消息
-            if (context.length() > 0) {
-                Map<String, String> systemMessage = new HashMap<>();
-                systemMessage.put("role", "system");
-                systemMessage.put("content", "请基于以下参考信息回答用户问题：\n" + context.toString());
-                conversationHistory.add(systemMessage);
-            }
+    // 部分检索源超时或失败时通知前端
+    private void notifyPartialRetrieval(RetrievalResult retrieval, SseEventWriter writer) {
+        if (!retrieval.isPartial()) {
+            return;
+        }
+        try {
+            writer.event("retrieval", Map.of("timedOut", retrieval.getTimedOut(), "failed", retrieval.getFailed()));
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
 
-            // 创建用户消息
-            Map<String, String> userMessage = new HashMap<>();
-            userMessage.put("role", "user");
-            userMessage.put("content", request.getMessage());
-            conversationHistory.add(userMessage);
+    // 调用 deepseek 并把响应流转发给前端，返回完整的回答内容
+    private CompletableFuture<String> streamChat(ChatRequest request, String context, SseEventWriter writer,
+                                                 Cancellation cancellation, long startNanos) {
+        if (cancellation.isCancelled()) {
+            return CompletableFuture.failedFuture(new CancellationException("client disconnected"));
+        }
+        try {
+            // 历史只保存用户问题本身，参考信息只用于本轮；问题在回答成功后与回答一起写入历史
+            List<Map<String, String>> history = conversationStore.snapshot(request.getSessionId(),
+                    PromptAssembler.message("user", request.getMessage()));
 
             // 准备请求体
-            Map<String, Object> requestBody = new HashMap<>();
+            Map<String, Object> requestBody = new LinkedHashMap<>();
             requestBody.put("model", modelName);
-            requestBody.put("messages", new ArrayList<>(conversationHistory));
+            requestBody.put("messages", promptAssembler.assemble(history, context));
             requestBody.put("stream", true);
+            // 在流的最后返回 usage
+            requestBody.put("stream_options", Map.of("include_usage", true));
+            String body = objectMapper.writeValueAsString(requestBody);
+            return generate(request, body, requestBody, writer, cancellation, startNanos);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
-            // 创建 HTTP 客户端
-            HttpClient client = HttpClient.newBuilder()
-                    .connectTimeout(Duration.ofSeconds(600))
-                    .build();
-            HttpRequest httpRequest = HttpRequest.newBuilder()
-                    .uri(URI.create(API_URL))
-                    .header("Content-Type", "application/json")
-                    .header("Authorization", API_KEY)
-                    .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(requestBody)))
-                    .build();
-
-            // 发送请求并处理响应流
-            StringBuilder aiResponseBuilder = new StringBuilder();
-            StringBuilder reasoningBuilder = new StringBuilder();
-            System.out.println("\n" + "=".repeat(20) + "思考过程" + "=".repeat(20) + "\n");
-            client.send(httpRequest, HttpResponse.BodyHandlers.ofLines())
-                    .body()
-                    .forEach(line -> {
-                        try {
-                            if (line.startsWith("data: ")) {
-                                String jsonData = line.substring(6);
-                                if (!"[DONE]".equals(jsonData)) {
-                                    Map<String, Object> response = objectMapper.readValue(jsonData, Map.class);
-                                    Map<String, Object> delta = extractDeltaContent(response);
-
-                                    // 处理思考过程
-                                    if (delta != null && delta.containsKey("reasoning_content") && delta.get("reasoning_content") != null) {
-                                        String reasoningContent = (String) delta.get("reasoning_content");
-                                        reasoningBuilder.append(reasoningContent);
-                                        // 直接打印思考过程
-                                        System.out.print(reasoningContent);
-                                        System.out.flush(); // 确保立即打印
-                                        // 发送思考过程，使用不同的事件类型
-                                        emitter.send(SseEmitter.event()
-                                                .name("reasoning")
-                                                .data(Map.of("reasoning_content", reasoningContent)));
-                                    }
-
-                                    // 处理回答内容
-                                    if (delta != null && delta.containsKey("content") && delta.get("content") != null) {
-                                        // 如果是第一个回答内容，先打印分隔线
-                                        if (aiResponseBuilder.isEmpty()) {
-                                            System.out.println("\n\n" + "=".repeat(20) + "思考结束" + "=".repeat(20) + "\n");
-                                        }
-                                        String content = (String) delta.get("content");
-                                        aiResponseBuilder.append(content);
-                                        // 直接打印回答内容
-                                        System.out.print(content);
-                                        System.out.flush(); // 确保立即打印
-                                        emitter.send(SseEmitter.event()
-                                                .name("answer")
-                                                .data(Map.of("content", content)));
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            emitter.completeWithError(e);
-                        }
-                    });
-
-            // 创建AI响应消息并添加到历史记录
-            Map<String, String> aiMessage = new HashMap<>();
-            aiMessage.put("role", "assistant");
-            aiMessage.put("content", aiResponseBuilder.toString());
-            conversationHistory.add(aiMessage);
-
-            // 如果历史记录超过最大限制，移除最早的消息
-            while (conversationHistory.size() > MAX_HISTORY * 2) {
-                conversationHistory.pollFirst();
-            }
+    // 开启回答缓存时，相同请求体直接重放或跟随正在进行的生成，否则请求上游
+    private CompletableFuture<String> generate(ChatRequest request, String body, Map<String, Object> requestBody,
+                                               SseEventWriter writer, Cancellation cancellation, long startNanos) {
+        if (!responseCache.isEnabled()) {
+            return callUpstream(request, body, requestBody, writer, cancellation, startNanos, null);
+        }
+        ResponseCache.Lookup lookup = responseCache.lookup(ResponseCache.key(body));
+        ResponseCache.Recording recording = lookup.getRecording();
+        if (lookup.isOwner()) {
+            return callUpstream(request, body, requestBody, writer, cancellation, startNanos, recording);
+        }
+        try {
+            writer.event("cached", Map.of("replay", recording.isCompleted()));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return responseCache.serve(recording, writer, cancellation)
+                .thenCompose(answer -> {
+                    if (answer == null) {
+                        // 跟随的生成在输出前失败，重新查找（可能由本请求自己生成）
+                        return generate(request, body, requestBody, writer, cancellation, startNanos);
+                    }
+                    // 没有消耗 token，不发送 usage
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    commitTurn(request, answer);
+                    return CompletableFuture.completedFuture(answer);
+                });
+    }
 
-            emitter.complete();
-        } catch (Exception e) {
-            emitter.completeWithError(e);
+    private CompletableFuture<String> callUpstream(ChatRequest request, String body, Map<String, Object> requestBody,
+                                                   SseEventWriter writer, Cancellation cancellation, long startNanos,
+                                                   ResponseCache.Recording recording) {
+        // 开启回答缓存时上游由记录管理：生成方断开后如果还有跟随的请求，上游继续生成
+        Cancellation upstreamCancellation = recording == null ? cancellation : recording.attachOwner(cancellation);
+        // 经过准入控制后由模型路由选择端点发送（必要时对冲），响应流直接按字节解码；还没输出内容前失败会重试
+        ChatMetrics.StreamTimer streamTimer = chatMetrics.startStream(startNanos);
+        DeepSeekStreamHandler handler = new DeepSeekStreamHandler(writer, cancellation, upstreamCancellation, streamTimer,
+                debugEchoSink, recording);
+        CompletableFuture<?> upstream = upstreamScheduler.submit(request.getSessionId(), upstreamCancellation,
+                position -> notifyQueued(position, writer),
+                permit -> modelRouter.stream(body, requestBody, handler, permit, upstreamCancellation),
+                handler::hasStarted);
+        if (recording != null) {
+            // 按上游的结果结束记录，与生成方是否还在无关；只缓存收到 [DONE] 的完整回答
+            upstream.whenComplete((response, e) -> {
+                if (e != null) {
+                    responseCache.fail(recording, e);
+                } else {
+                    responseCache.complete(recording, handler.getAnswer(), handler.isFinished());
+                }
+            });
         }
+        return upstream.thenApply(response -> {
+            if (cancellation.isCancelled()) {
+                // 生成方已断开，上游只是为跟随的请求继续生成
+                throw new CancellationException("client disconnected");
+            }
+            String answer = handler.getAnswer();
+            TokenUsage usage = handler.getUsage();
+            streamTimer.completed(usage != null ? usage.getCompletionTokens() : handler.estimateOutputTokens());
+            reportUsage(usage, writer);
+            commitTurn(request, answer);
+            return answer;
+        });
+    }
 
-        return emitter;
+    // 问题和回答一起写入历史，超出 token 预算时由 conversationStore 裁剪最早的消息
+    private void commitTurn(ChatRequest request, String answer) {
+        conversationStore.append(request.getSessionId(), List.of(
+                PromptAssembler.message("user", request.getMessage()),
+                PromptAssembler.message("assistant", answer)));
     }
 
+    // 上游繁忙时告诉前端当前排队位置
+    private void notifyQueued(int position, SseEventWriter writer) {
+        try {
+            writer.event("queued", Map.of("position", position));
+        } catch (IOException | IllegalStateException e) {
+            // 前端已断开，由 emitter 回调取消排队
+        }
+    }
 
-    // 解析响应
-    private Map<String, Object> extractDeltaContent(Map<String, Object> response) {
-        List<Map<String, Object>> choices = (List<Map<String, Object>>) response.get("choices");
-        if (choices != null && !choices.isEmpty()) {
-            return (Map<String, Object>) choices.get(0).get("delta");
+    // 把 token 统计（包括前缀缓存命中的 token 数）和剩余的合并内容发送给前端
+    private void reportUsage(TokenUsage usage, SseEventWriter writer) {
+        try {
+            if (usage != null) {
+                chatMetrics.recordUsage(usage);
+                debugEchoSink.echo("\n\nusage: " + usage + "\n");
+                writer.event("usage", usage);
+            }
+            // 流已结束，发出最后一段合并内容
+            writer.close();
+        } catch (IOException e) {
+            throw new CompletionException(e);
         }
-        return null;
     }
 
-    // 清除上下文信息
-    public void clearHistory() {
-        conversationHistory.clear();
+    // 清除指定会话的上下文信息
+    public void clearHistory(String sessionId) {
+        conversationStore.clear(sessionId);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,251 @@
+package com.brain.llm.service;
+
+import com.brain.llm.domain.Passage;
+import com.brain.llm.util.MinHash;
+import com.brain.llm.util.TokenEstimator;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 参考信息拼装：各检索源的结构化结果去重、排序后按 token 预算拼成本轮的参考信息
+ * - 去重：归一化后完全相同的只保留一条；shingle + MinHash 估计的相似度达到阈值的视为近似重复
+ * - 排序：源内排名的倒数乘以检索源权重（与 es 混合检索的 RRF 同一思路，各检索源的原始分数不可比）
+ * - 预算：按排序依次放入，放不下的在预算内最后一个句子结尾处截断，截断后太短的丢弃
+ * 输出仍按检索源分组、组内按原排名排列，格式与原来的直接拼接一致
+ */
+@Component
+public class ContextPacker {
+
+    private static final String SEARCH_HEADER = "\n\n联网搜索结果：\n";
+    private static final String RAG_HEADER = "\n\n知识库参考：\n";
+
+    // 关闭后不去重、不限制长度，按原来的方式拼接全部结果
+    @Value("${chat.context.enabled:true}")
+    private boolean enabled;
+    // 参考信息的 token 预算（估算值），maxToggle 的请求使用单独的预算
+    @Value("${chat.context.max-tokens:3000}")
+    private int maxTokens;
+    @Value("${chat.context.max-toggle-max-tokens:6000}")
+    private int maxToggleMaxTokens;
+    // 估计的 Jaccard 相似度达到该值视为近似重复
+    @Value("${chat.context.near-duplicate-threshold:0.8}")
+    private double nearDuplicateThreshold;
+    // shingle 的字符数
+    @Value("${chat.context.shingle-size:3}")
+    private int shingleSize;
+    // MinHash 签名长度
+    @Value("${chat.context.minhash-size:64}")
+    private int minHashSize;
+    // 截断后少于该 token 数的结果直接丢弃
+    @Value("${chat.context.min-truncated-tokens:40}")
+    private int minTruncatedTokens;
+    // 检索源权重，排名相同时权重大的优先放入
+    @Value("${chat.context.rag-weight:1.0}")
+    private double ragWeight;
+    @Value("${chat.context.search-weight:0.8}")
+    private double searchWeight;
+
+    @Resource
+    private ChatMetrics chatMetrics;
+
+    private final AtomicLong packs = new AtomicLong();
+    private final AtomicLong candidateTokens = new AtomicLong();
+    private final AtomicLong contextTokens = new AtomicLong();
+    private final AtomicLong exactDuplicates = new AtomicLong();
+    private final AtomicLong nearDuplicates = new AtomicLong();
+    private final AtomicLong truncated = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param sources   检索源 -> 按相关度排列的结果，按 map 的顺序分组输出
+     * @param maxToggle 是否使用 maxToggle 的预算
+     */
+    public Packed pack(Map<String, List<Passage>> sources, boolean maxToggle) {
+        String unpacked = render(sources);
+        int unpackedTokens = TokenEstimator.estimate(unpacked);
+        if (!enabled || unpacked.isEmpty()) {
+            return new Packed(unpacked, unpackedTokens, unpackedTokens);
+        }
+
+        List<Passage> ranked = new ArrayList<>();
+        sources.values().forEach(ranked::addAll);
+        // 稳定排序，分数相同时保持检索源顺序
+        ranked.sort(Comparator.comparingDouble(this::score).reversed());
+
+        int budget = maxToggle ? maxToggleMaxTokens : maxTokens;
+        int used = 0;
+        int exact = 0;
+        int near = 0;
+        int cut = 0;
+        int over = 0;
+        Set<String> seen = new HashSet<>();
+        List<int[]> signatures = new ArrayList<>();
+        Map<String, List<Passage>> kept = new LinkedHashMap<>();
+        sources.keySet().forEach(source -> kept.put(source, new ArrayList<>()));
+        for (Passage passage : ranked) {
+            String normalized = MinHash.normalize(passage.getText());
+            if (!seen.add(normalized)) {
+                exact++;
+                continue;
+            }
+            int[] signature = MinHash.signature(normalized, shingleSize, minHashSize);
+            if (isNearDuplicate(signature, signatures)) {
+                near++;
+                continue;
+            }
+            List<Passage> group = kept.get(passage.getSource());
+            int overhead = overhead(passage) + (group.isEmpty() ? TokenEstimator.estimate(header(passage.getSource())) : 0);
+            int tokens = TokenEstimator.estimate(passage.getText());
+            if (used + overhead + tokens > budget) {
+                String text = truncate(passage.getText(), budget - used - overhead);
+                tokens = text == null ? 0 : TokenEstimator.estimate(text);
+                if (tokens < minTruncatedTokens) {
+                    over++;
+                    continue;
+                }
+                passage = passage.withText(text);
+                cut++;
+            }
+            used += overhead + tokens;
+            group.add(passage);
+            signatures.add(signature);
+        }
+        kept.values().forEach(group -> group.sort(Comparator.comparingInt(Passage::getRank)));
+        String context = render(kept);
+        int packedTokens = TokenEstimator.estimate(context);
+
+        packs.incrementAndGet();
+        candidateTokens.addAndGet(unpackedTokens);
+        contextTokens.addAndGet(packedTokens);
+        exactDuplicates.addAndGet(exact);
+        nearDuplicates.addAndGet(near);
+        truncated.addAndGet(cut);
+        dropped.addAndGet(over);
+        chatMetrics.recordContextTokens(unpackedTokens, packedTokens);
+        return new Packed(context, unpackedTokens, packedTokens);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("packs", packs.get());
+        stats.put("candidateTokens", candidateTokens.get());
+        stats.put("contextTokens", contextTokens.get());
+        stats.put("savedTokens", candidateTokens.get() - contextTokens.get());
+        stats.put("exactDuplicates", exactDuplicates.get());
+        stats.put("nearDuplicates", nearDuplicates.get());
+        stats.put("truncated", truncated.get());
+        stats.put("dropped", dropped.get());
+        return stats;
+    }
+
+    private double score(Passage passage) {
+        double weight = RetrievalService.SOURCE_SEARCH.equals(passage.getSource()) ? searchWeight : ragWeight;
+        return weight / (passage.getRank() + 1);
+    }
+
+    private boolean isNearDuplicate(int[] signature, List<int[]> signatures) {
+        for (int[] other : signatures) {
+            if (MinHash.similarity(signature, other) >= nearDuplicateThreshold) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 除内容以外的格式开销（序号、标题、来源和换行）
+    private static int overhead(Passage passage) {
+        StringBuilder format = new StringBuilder();
+        append(format, passage.withText(""), 0);
+        return TokenEstimator.estimate(format);
+    }
+
+    /**
+     * 在 maxTokens 以内最后一个句子结尾处截断，没有完整的句子时返回 null
+     */
+    static String truncate(String text, int maxTokens) {
+        if (maxTokens <= 0) {
+            return null;
+        }
+        int end = TokenEstimator.fit(text, maxTokens);
+        for (int i = end - 1; i > 0; i--) {
+            if (isSentenceEnd(text, i)) {
+                String truncated = text.substring(0, i + 1).stripTrailing();
+                return truncated.isEmpty() ? null : truncated;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSentenceEnd(String text, int index) {
+        char c = text.charAt(index);
+        if ("。！？；…\n".indexOf(c) >= 0) {
+            return true;
+        }
+        // 英文标点后面需要是空白或结尾，避免在小数点和网址中截断
+        return ".!?;".indexOf(c) >= 0 && (index + 1 == text.length() || Character.isWhitespace(text.charAt(index + 1)));
+    }
+
+    private static String render(Map<String, List<Passage>> sources) {
+        StringBuilder context = new StringBuilder();
+        sources.forEach((source, passages) -> {
+            if (passages.isEmpty()) {
+                return;
+            }
+            context.append(header(source));
+            for (int i = 0; i < passages.size(); i++) {
+                append(context, passages.get(i), i);
+            }
+        });
+        return context.toString();
+    }
+
+    private static String header(String source) {
+        return RetrievalService.SOURCE_SEARCH.equals(source) ? SEARCH_HEADER : RAG_HEADER;
+    }
+
+    // 联网搜索结果带序号、标题和来源；知识库片段之间空一行
+    private static void append(StringBuilder context, Passage passage, int index) {
+        if (RetrievalService.SOURCE_SEARCH.equals(passage.getSource())) {
+            context.append('\n').append(index + 1).append(". ").append(passage.getTitle()).append('\n');
+            context.append("   ").append(passage.getText()).append('\n');
+            context.append("   来源: ").append(passage.getUrl()).append('\n');
+        } else {
+            if (index > 0) {
+                context.append('\n');
+            }
+            context.append(passage.getText()).append('\n');
+        }
+    }
+
+    /**
+     * 拼装结果，candidateTokens 为不去重、不限长度直接拼接全部结果的 token 数
+     */
+    public static class Packed {
+        private final String context;
+        private final int candidateTokens;
+        private final int contextTokens;
+
+        Packed(String context, int candidateTokens, int contextTokens) {
+            this.context = context;
+            this.candidateTokens = candidateTokens;
+            this.contextTokens = contextTokens;
+        }
+
+        public String getContext() {
+            return context;
+        }
+
+        public int getCandidateTokens() {
+            return candidateTokens;
+        }
+
+        public int getContextTokens() {
+            return contextTokens;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.brain.llm.service;
+
+import com.brain.llm.util.TokenEstimator;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按会话隔离的对话历史
+ * 每个会话单独加锁，不同会话之间互不阻塞；按 token 预算裁剪单个会话，
+ * 按总字符数和会话数限制整体内存，空闲超时或超出上限时按最近最少使用淘汰
+ * 开启持久化时每次修改都交给 HistoryLog 异步写入，淘汰只释放内存，会话再次访问（包括重启后）时从日志恢复
+ */
+@Component
+public class ConversationStore {
+
+    public static final String DEFAULT_SESSION = "default";
+
+    // 单个会话保留的最大 token 数（估算值）
+    @Value("${chat.history.max-tokens:8000}")
+    private int maxTokens;
+    // 超出预算时一次裁剪到预算的该比例，避免每轮都移除消息导致 deepseek 前缀缓存失效
+    @Value("${chat.history.trim-ratio:0.75}")
+    private double trimRatio;
+    // 所有会话消息内容的总字符数上限
+    @Value("${chat.history.max-total-chars:20000000}")
+    private long maxTotalChars;
+    // 最大会话数
+    @Value("${chat.history.max-sessions:10000}")
+    private int maxSessions;
+    // 会话空闲超时
+    @Value("${chat.history.idle-ttl:30m}")
+    private Duration idleTtl;
+
+    @Resource
+    private HistoryLog historyLog;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong totalChars = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "history-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ConversationStore() {
+        sweeper.scheduleWithFixedDelay(this::expireIdleSessions, 1, 1, TimeUnit.MINUTES);
+    }
+
+    // 追加消息并按 token 预算裁剪
+    public void append(String sessionId, Map<String, String> message) {
+        appendAndSnapshot(sessionId, List.of(message));
+    }
+
+    // 一次追加多条消息（例如一轮问答），中间不会插入其他请求的消息
+    public void append(String sessionId, List<Map<String, String>> messages) {
+        appendAndSnapshot(sessionId, messages);
+    }
+
+    /**
+     * 返回当前历史加上 pending 之后的副本，按 token 预算裁剪副本，不修改会话
+     * 本轮的用户消息在回答成功后与回答一起追加，失败或取消时历史中不会留下没有回答的用户消息
+     */
+    public List<Map<String, String>> snapshot(String sessionId, Map<String, String> pending) {
+        String key = normalize(sessionId);
+        List<Map<String, String>> snapshot;
+        List<Integer> snapshotTokens;
+        int tokens;
+        while (true) {
+            Session session = sessions.computeIfAbsent(key, k -> new Session());
+            synchronized (session) {
+                if (session.evicted) {
+                    continue;
+                }
+                if (!session.loaded) {
+                    restore(key, session);
+                }
+                session.lastAccess = System.nanoTime();
+                snapshot = new ArrayList<>(session.messages);
+                snapshotTokens = new ArrayList<>(session.messageTokens);
+                tokens = session.tokens;
+            }
+            break;
+        }
+        int pendingTokens = TokenEstimator.estimateMessage(pending);
+        snapshot.add(pending);
+        snapshotTokens.add(pendingTokens);
+        int removed = trimCount(snapshot, snapshotTokens, tokens + pendingTokens);
+        return removed == 0 ? snapshot : new ArrayList<>(snapshot.subList(removed, snapshot.size()));
+    }
+
+    public void clear(String sessionId) {
+        String key = normalize(sessionId);
+        Session session = sessions.remove(key);
+        if (session != null) {
+            synchronized (session) {
+                release(session);
+                historyLog.clear(key);
+            }
+        } else {
+            historyLog.clear(key);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("sessions", sessions.size());
+        stats.put("totalChars", totalChars.get());
+        stats.put("evictions", evictions.get());
+        stats.put("persistence", historyLog.stats());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    // 追加消息并返回当前会话的完整历史（副本）
+    public List<Map<String, String>> appendAndSnapshot(String sessionId, List<Map<String, String>> messages) {
+        String key = normalize(sessionId);
+        List<Map<String, String>> snapshot;
+        while (true) {
+            Session session = sessions.computeIfAbsent(key, k -> new Session());
+            synchronized (session) {
+                // 会话刚好被淘汰，重新获取
+                if (session.evicted) {
+                    continue;
+                }
+                // 内存中还没有该会话时先从日志恢复
+                if (!session.loaded) {
+                    restore(key, session);
+                }
+                for (Map<String, String> message : messages) {
+                    session.add(message);
+                    historyLog.append(key, message);
+                }
+                if (session.tokens > maxTokens) {
+                    int removed = trimCount(new ArrayList<>(session.messages), new ArrayList<>(session.messageTokens),
+                            session.tokens);
+                    for (int i = 0; i < removed; i++) {
+                        session.removeFirst();
+                    }
+                    historyLog.trim(key, removed);
+                }
+                session.lastAccess = System.nanoTime();
+                snapshot = new ArrayList<>(session.messages);
+            }
+            break;
+        }
+        if (totalChars.get() > maxTotalChars || sessions.size() > maxSessions) {
+            evictLeastRecentlyUsed();
+        }
+        return snapshot;
+    }
+
+    /**
+     * 超出 token 预算时需要从最早开始移除的消息数：移除到预算的 trimRatio 以内，至少保留最新一条，
+     * 剩下的历史必须从用户消息开始
+     */
+    private int trimCount(List<Map<String, String>> messages, List<Integer> messageTokens, int tokens) {
+        if (tokens <= maxTokens) {
+            return 0;
+        }
+        int target = (int) (maxTokens * trimRatio);
+        int removed = 0;
+        while (tokens > target && messages.size() - removed > 1) {
+            tokens -= messageTokens.get(removed);
+            removed++;
+        }
+        while (messages.size() - removed > 1 && !"user".equals(messages.get(removed).get("role"))) {
+            removed++;
+        }
+        return removed;
+    }
+
+    // 读取日志中的历史，失败时从空历史开始
+    private void restore(String key, Session session) {
+        session.loaded = true;
+        if (!historyLog.isEnabled()) {
+            return;
+        }
+        try {
+            for (Map<String, String> message : historyLog.load(key)) {
+                session.add(message);
+            }
+        } catch (IOException e) {
+            System.err.println("会话历史恢复失败 " + key + ": " + e.getMessage());
+        }
+    }
+
+    // 超出内存或会话数上限时，淘汰最久未使用的会话，直到降到上限的 90%
+    private void evictLeastRecentlyUsed() {
+        synchronized (evictionLock) {
+            if (totalChars.get() <= maxTotalChars && sessions.size() <= maxSessions) {
+                return;
+            }
+            List<Map.Entry<String, Session>> entries = new ArrayList<>(sessions.entrySet());
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+            long targetChars = maxTotalChars / 10 * 9;
+            int targetSessions = maxSessions / 10 * 9;
+            for (Map.Entry<String, Session> entry : entries) {
+                if (totalChars.get() <= targetChars && sessions.size() <= targetSessions) {
+                    break;
+                }
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void expireIdleSessions() {
+        long deadline = System.nanoTime() - idleTtl.toNanos();
+        sessions.forEach((key, session) -> {
+            if (session.lastAccess - deadline < 0) {
+                evict(key, session);
+            }
+        });
+    }
+
+    private void evict(String key, Session session) {
+        if (sessions.remove(key, session)) {
+            release(session);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void release(Session session) {
+        synchronized (session) {
+            session.evicted = true;
+            totalChars.addAndGet(-session.chars);
+            session.chars = 0;
+            session.tokens = 0;
+            session.messages.clear();
+        }
+    }
+
+    private static String normalize(String sessionId) {
+        return sessionId == null || sessionId.isBlank() ? DEFAULT_SESSION : sessionId;
+    }
+
+    // 单个会话，所有字段都在 synchronized(session) 下访问
+    private class Session {
+        private final Deque<Map<String, String>> messages = new ArrayDeque<>();
+        private final Deque<Integer> messageTokens = new ArrayDeque<>();
+        private int tokens;
+        private long chars;
+        private boolean evicted;
+        // 是否已从日志恢复
+        private boolean loaded;
+        private volatile long lastAccess = System.nanoTime();
+
+        private void add(Map<String, String> message) {
+            int messageToken = TokenEstimator.estimateMessage(message);
+            int messageChars = length(message);
+            messages.addLast(message);
+            messageTokens.addLast(messageToken);
+            tokens += messageToken;
+            chars += messageChars;
+            totalChars.addAndGet(messageChars);
+        }
+
+        private void removeFirst() {
+            Map<String, String> message = messages.pollFirst();
+            tokens -= messageTokens.pollFirst();
+            int messageChars = length(message);
+            chars -= messageChars;
+            totalChars.addAndGet(-messageChars);
+        }
+
+        private int length(Map<String, String> message) {
+            String content = message.get("content");
+            return content == null ? 0 : content.length();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.brain.llm.service;
+
+import com.brain.llm.domain.TokenUsage;
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.DebugEchoSink;
+import com.brain.llm.util.DeepSeekStreamDecoder;
+import com.brain.llm.util.TokenEstimator;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+
+/**
+ * 把解码后的思考过程和回答内容转发给前端（经 SseEventWriter 合并），并累积完整回答
+ * 由 HttpClient 的 IO 线程回调，不占用任何请求线程
+ */
+public class DeepSeekStreamHandler implements DeepSeekStreamDecoder.Listener {
+
+    private final SseEventWriter writer;
+    // 前端的取消信号
+    private final Cancellation cancellation;
+    // 上游请求的取消信号：开启回答缓存时由记录管理，生成方断开后可能还在为跟随的请求生成；否则与 cancellation 相同
+    private final Cancellation upstreamCancellation;
+    private final ChatMetrics.StreamTimer streamTimer;
+    private final DebugEchoSink echo;
+    // 开启回答缓存时记录增量，否则为 null
+    private final ResponseCache.Recording recording;
+    private final StringBuilder aiResponseBuilder = new StringBuilder();
+    private final StringBuilder reasoningBuilder = new StringBuilder();
+    private volatile TokenUsage usage;
+    // 是否已经向前端输出过内容
+    private volatile boolean started;
+    // 是否收到了 [DONE]，只有完整结束的回答才能写入回答缓存
+    private volatile boolean finished;
+
+    public DeepSeekStreamHandler(SseEventWriter writer, Cancellation cancellation, Cancellation upstreamCancellation,
+                                 ChatMetrics.StreamTimer streamTimer, DebugEchoSink echo, ResponseCache.Recording recording) {
+        this.writer = writer;
+        this.cancellation = cancellation;
+        this.upstreamCancellation = upstreamCancellation;
+        this.streamTimer = streamTimer;
+        this.echo = echo;
+        this.recording = recording;
+    }
+
+    @Override
+    public void onReasoning(String reasoningContent) throws IOException {
+        checkCancelled();
+        started = true;
+        reasoningBuilder.append(reasoningContent);
+        streamTimer.onReasoning();
+        echo.echo(reasoningContent);
+        // 发送思考过程，使用不同的事件类型
+        forward("reasoning", "reasoning_content", reasoningContent);
+    }
+
+    @Override
+    public void onContent(String content) throws IOException {
+        checkCancelled();
+        started = true;
+        // 如果是第一个回答内容，先打印分隔线
+        if (aiResponseBuilder.isEmpty()) {
+            echo.echo("\n\n" + "=".repeat(20) + "思考结束" + "=".repeat(20) + "\n\n");
+        }
+        aiResponseBuilder.append(content);
+        streamTimer.onAnswer();
+        echo.echo(content);
+        forward("answer", "content", content);
+    }
+
+    @Override
+    public void onUsage(TokenUsage usage) {
+        this.usage = usage;
+    }
+
+    @Override
+    public void onDone() {
+        finished = true;
+    }
+
+    /**
+     * 写给前端并记录；开启回答缓存时生成方断开后只记录（跟随的请求还在接收），
+     * 写出失败视为生成方断开，是否中止上游由记录决定
+     */
+    private void forward(String event, String field, String text) throws IOException {
+        if (recording == null) {
+            writer.append(event, field, text);
+            return;
+        }
+        if (!cancellation.isCancelled()) {
+            try {
+                writer.append(event, field, text);
+            } catch (IOException | IllegalStateException e) {
+                cancellation.cancel();
+            }
+        }
+        recording.record(event, field, text);
+    }
+
+    // 上游已被取消时抛出，解码器随即取消订阅，不再向已关闭的 emitter 写数据
+    private void checkCancelled() {
+        if (upstreamCancellation.isCancelled()) {
+            throw new CancellationException("client disconnected");
+        }
+    }
+
+    public boolean hasStarted() {
+        return started;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    // 思考过程和回答的估算 token 数，上游没有返回 usage 时使用
+    public int estimateOutputTokens() {
+        return TokenEstimator.estimate(reasoningBuilder) + TokenEstimator.estimate(aiResponseBuilder);
+    }
+
+    // 完整的回答内容，流结束后调用
+    public String getAnswer() {
+        return aiResponseBuilder.toString();
+    }
+
+    // 流末尾的 token 统计，上游未返回时为 null
+    public TokenUsage getUsage() {
+        return usage;
+    }
+}
@@ -1,44 +1,51 @@
 package com.brain.llm.service;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.http.HttpHost;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.elasticsearch.action.search.SearchRequest;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestClientBuilder;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.common.Strings;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.builder.SearchSourceBuilder;
-import org.elasticsearch.xcontent.XContentBuilder;
-import org.elasticsearch.xcontent.XContentFactory;
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.CandidateTuner;
+import com.brain.llm.util.EsHits;
+import com.brain.llm.util.EsQueryTemplates;
+import com.brain.llm.util.LazyEsClient;
+import com.fasterxml.jackson.core.JsonFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.context.annotation.Configuration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URLEncoder;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-
-@Configuration
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * es 知识库检索，通过底层 RestClient 异步发送预先拼好的查询（EsQueryTemplates），
+ * 只取回内容和元数据字段，响应流式解析后直接拼成参考信息（EsHits）
+ * RestHighLevelClient 只保留给知识库导入使用，两者共用同一个连接池
+ * 只在开启 es 检索（esKnn.enabled）或知识库导入（ingest.enabled）时创建，客户端在第一次检索或导入时才初始化，
+ * 不访问 es 的节点启动时不加载 es 客户端
+ */
+@Service
+@ConditionalOnExpression("${esKnn.enabled:false} or ${ingest.enabled:true}")
 public class ElasticsearchKnnSearch {
 
-    private final RestHighLevelClient esClient;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    // 第一次检索或导入时才创建底层客户端
+    private LazyEsClient esClient;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private EsQueryTemplates templates;
+    private String searchEndpoint;
 
+    // es 地址，多个用逗号分隔
+    @Value("${esKnn.hosts:http://localhost:9200}")
+    private List<String> hosts;
+    // 用户名为空时不认证
+    @Value("${esKnn.username:}")
+    private String username;
+    @Value("${esKnn.password:}")
+    private String password;
     // es 索引名
     @Value("${esKnn.index-name:sora_vector_index}")
     private String indexName;
@@ -57,121 +64,212 @@ public class ElasticsearchKnnSearch {
     // 匹配逻辑，使用 and
     @Value("${esKnn.rule:and}")
     private String rule;
+    // 拼在内容前面的元数据字段，检索时只取回这些字段和内容字段
+    @Value("${esKnn.metadata-fields:doc_name,chapter,item_number}")
+    private List<String> metadataFields;
+    // 混合检索：RRF 融合的排名常数，越大排名靠后的结果权重越高
+    @Value("${esKnn.hybrid.rank-constant:60}")
+    private int rankConstant;
+    // 每一路返回个数的上限为 topK 的该倍数
+    @Value("${esKnn.hybrid.max-leg-factor:4}")
+    private int maxLegFactor;
+    // kNN 召回率目标，抽样对比精确检索得到
+    @Value("${esKnn.hybrid.recall-target:0.95}")
+    private double recallTarget;
+    // 抽样做精确检索的比例，在后台执行，不影响响应时间
+    @Value("${esKnn.hybrid.recall-sample-rate:0.02}")
+    private double recallSampleRate;
+    // num_candidates = k * 倍数；每一路初始返回 topK * 2 个，topK=5 时 num_candidates 与原来的 50 一致
+    @Value("${esKnn.hybrid.initial-candidate-factor:5}")
+    private double initialCandidateFactor;
+    @Value("${esKnn.hybrid.min-candidate-factor:2}")
+    private double minCandidateFactor;
+    @Value("${esKnn.hybrid.max-candidate-factor:40}")
+    private double maxCandidateFactor;
+
+    // topK -> 候选数调整，topK 由 maxToggle 决定
+    private final Map<Integer, CandidateTuner> tuners = new ConcurrentHashMap<>();
+
+    @Resource
+    private EmbeddingClient embeddingClient;
+    @Resource
+    private ChatMetrics chatMetrics;
+
+    @PostConstruct
+    public void init() {
+        esClient = new LazyEsClient(hosts, username, password);
+        List<String> sourceFields = new ArrayList<>(metadataFields);
+        sourceFields.add(content);
+        templates = new EsQueryTemplates(content, contentVector, sourceFields, match, rule, workCheck + "%");
+        searchEndpoint = "/" + indexName + "/_search";
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        esClient.close();
+    }
 
+    // 知识库导入共用同一个客户端和字段配置
+    public LazyEsClient getClient() {
+        return esClient;
+    }
 
-    public ElasticsearchKnnSearch() {
-        // 初始化带认证的ES客户端
-        CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-        credentialsProvider.setCredentials(
-                AuthScope.ANY,
-                new UsernamePasswordCredentials("sora33", "xxx")
-        );
+    public String getIndexName() {
+        return indexName;
+    }
 
-        RestClientBuilder builder = RestClient.builder(
-                        new HttpHost("localhost", 9200, "http"))
-                .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
-                        .setDefaultCredentialsProvider(credentialsProvider));
+    public String getContentField() {
+        return content;
+    }
 
-        this.esClient = new RestHighLevelClient(builder);
+    public String getVectorField() {
+        return contentVector;
     }
 
-    // 从接口获取向量数组
-    private List<Float> getVectorFromAPI(String message) throws IOException, InterruptedException {
-        HttpClient client = HttpClient.newHttpClient();
-        String encodedMsg = URLEncoder.encode(message, StandardCharsets.UTF_8);
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:5001/msg_to_vector?msg=" + encodedMsg))
-                .build();
+    /**
+     * 混合检索：BM25 和 kNN 两路并发执行（BM25 不等问题向量化），按 RRF 融合后取前 topK 个
+     * 某一路失败时只使用另一路的结果；每一路的返回个数和 num_candidates 由 CandidateTuner 自动调整
+     */
+    public List<String> hybridSearch(int topK, String msg, Cancellation cancellation) {
+        CandidateTuner tuner = tuners.computeIfAbsent(topK, key -> new CandidateTuner(key, maxLegFactor,
+                recallTarget, initialCandidateFactor, minCandidateFactor, maxCandidateFactor));
+        int legSize = tuner.legSize();
+        int numCandidates = tuner.numCandidates();
 
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 200) {
-            throw new IOException("Failed to get vector: HTTP " + response.statusCode());
+        CompletableFuture<List<EsHits.Hit>> bm25 = searchAsync(templates.bm25(msg, legSize), ChatMetrics.STAGE_ES_BM25, cancellation);
+        CompletableFuture<float[]> queryVector = embeddingClient.embedAsync(msg);
+        CompletableFuture<List<EsHits.Hit>> knn = queryVector.thenCompose(vector ->
+                searchAsync(templates.knn(vector, legSize, numCandidates), ChatMetrics.STAGE_ES_KNN, cancellation));
+
+        List<EsHits.Hit> bm25Hits = joinQuietly(bm25, "BM25");
+        List<EsHits.Hit> knnHits = joinQuietly(knn, "kNN");
+        if (bm25Hits == null && knnHits == null) {
+            throw new CompletionException(new IOException("Both BM25 and kNN search failed"));
         }
 
-        JsonNode root = objectMapper.readTree(response.body());
-        JsonNode vectorNode = root.get("vector");
-        List<Float> vector = new ArrayList<>(vectorNode.size());
-        for (JsonNode value : vectorNode) {
-            vector.add(value.floatValue());
+        List<EsHits.Hit> fused = fuse(bm25Hits, knnHits, topK, rankConstant, legSize, tuner);
+        if (knnHits != null && !knnHits.isEmpty() && ThreadLocalRandom.current().nextDouble() < recallSampleRate) {
+            sampleRecall(queryVector.join(), knnHits, legSize, tuner);
         }
-        return vector;
-    }
-
-    // 执行kNN搜索
-    public SearchResponse executeKnnSearch(int k, String msg) throws Exception {
-        // 1. 获取查询向量
-        List<Float> queryVector = getVectorFromAPI(msg);
-
-        // 2. 构建搜索请求
-        SearchRequest searchRequest = new SearchRequest(indexName);
-        SearchSourceBuilder sourceBuilder = new SearchSourceBuilder();
-
-        // 3. 构建kNN查询
-        // 使用 XContentBuilder 安全构建
-        XContentBuilder xContentBuilder = XContentFactory.jsonBuilder();
-        xContentBuilder.startObject()
-                .startObject("knn")
-                .field("field", contentVector)
-                .array("query_vector", queryVector.toArray())
-                .field("k", k)
-                .field("num_candidates", 50)
-                .startObject("filter")
-                .startObject(match)
-                .startObject(content)
-                .field("query", msg)
-                .field("operator", rule)
-                .field("minimum_should_match", workCheck + "%")
-                .endObject()
-                .endObject()
-                .endObject()
-                .endObject()
-                .endObject();
-
-        // 打印生成的JSON
-        String queryJson = Strings.toString(xContentBuilder);
-        System.out.println("Generated Query:\n" + queryJson);
-
-        sourceBuilder.query(QueryBuilders.wrapperQuery(queryJson));
-
-        searchRequest.source(sourceBuilder);
-
-        // 4. 执行搜索
-        return esClient.search(searchRequest, RequestOptions.DEFAULT);
+        return texts(fused);
     }
 
-    public void close() throws IOException {
-        esClient.close();
+    // 按 RRF（score = Σ 1 / (rankConstant + rank)）融合两路结果，同时记录用到的最深排名
+    static List<EsHits.Hit> fuse(List<EsHits.Hit> bm25Hits, List<EsHits.Hit> knnHits, int topK, int rankConstant,
+                                 int legSize, CandidateTuner tuner) {
+        Map<String, double[]> scores = new HashMap<>();
+        Map<String, EsHits.Hit> hits = new LinkedHashMap<>();
+        // 每个文档在两路中的排名，0 表示未出现
+        Map<String, int[]> ranks = new HashMap<>();
+        List<List<EsHits.Hit>> legs = Arrays.asList(bm25Hits, knnHits);
+        for (int leg = 0; leg < legs.size(); leg++) {
+            List<EsHits.Hit> legHits = legs.get(leg);
+            if (legHits == null) {
+                continue;
+            }
+            for (int i = 0; i < legHits.size(); i++) {
+                EsHits.Hit hit = legHits.get(i);
+                hits.putIfAbsent(hit.getId(), hit);
+                scores.computeIfAbsent(hit.getId(), id -> new double[1])[0] += 1.0 / (rankConstant + i + 1);
+                ranks.computeIfAbsent(hit.getId(), id -> new int[2])[leg] = i + 1;
+            }
+        }
+        List<EsHits.Hit> fused = new ArrayList<>(hits.values());
+        fused.sort((a, b) -> Double.compare(scores.get(b.getId())[0], scores.get(a.getId())[0]));
+        if (fused.size() > topK) {
+            fused = new ArrayList<>(fused.subList(0, topK));
+        }
+        int deepest = 0;
+        for (EsHits.Hit hit : fused) {
+            int[] rank = ranks.get(hit.getId());
+            deepest = Math.max(deepest, Math.max(rank[0], rank[1]));
+        }
+        tuner.recordDepth(deepest, legSize);
+        return fused;
     }
 
-    // List<EsVectorResponse>
-    public List<String> vectorSearch(int k, String msg) throws Exception {
-        ArrayList<String> vectorList = new ArrayList<>();
-        try {
-            SearchResponse response = executeKnnSearch(k,msg);
-            // 处理搜索结果
-            System.out.println("Search hits: " + response.getHits().getTotalHits().value);
-            response.getHits().forEach(hit -> 
-                System.out.println("Hit: " + hit.getSourceAsString()));
-
-
-            // 遍历搜索结果
-            for (SearchHit hit : response.getHits().getHits()) {
-                Map<String, Object> sourceMap = hit.getSourceAsMap();
-                if (sourceMap.containsKey(content)) {
-                    // 这里是汇总所有的信息，请灵活修改，对应 es 的字段
-                    Object contentText = sourceMap.get(content);
-                    String doc_name = sourceMap.get("doc_name") == null ? "" : sourceMap.get("doc_name") + "\n";
-                    String chapter = sourceMap.get("chapter") == null ? "" : sourceMap.get("chapter") + "\n";
-                    String item_number = sourceMap.get("item_number") == null ? "" : sourceMap.get("item_number") + "\n";
-                    if (contentText != null) {
-                        String result = doc_name + chapter + item_number + contentText + "\n";
-                        vectorList.add(result);
-                    }
+    // 后台执行一次精确检索（script_score 点积），用两者前 legSize 个结果的交集估算 kNN 召回率
+    private void sampleRecall(float[] queryVector, List<EsHits.Hit> knnHits, int legSize, CandidateTuner tuner) {
+        searchAsync(templates.exact(queryVector, legSize), null, Cancellation.none()).whenComplete((exactHits, e) -> {
+            if (e != null) {
+                System.err.println("召回率抽样失败: " + e.getMessage());
+                return;
+            }
+            if (exactHits.isEmpty()) {
+                return;
+            }
+            Set<String> approximate = new HashSet<>();
+            knnHits.forEach(hit -> approximate.add(hit.getId()));
+            int found = 0;
+            for (EsHits.Hit hit : exactHits) {
+                if (approximate.contains(hit.getId())) {
+                    found++;
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            tuner.recordRecall((double) found / exactHits.size());
+        });
+    }
+
+    /**
+     * 异步发送查询，filter_path 去掉响应中除 _id 和 _source 以外的所有内容
+     * stage 为 null 时不记录耗时；前端断开时中止 es 请求
+     */
+    private CompletableFuture<List<EsHits.Hit>> searchAsync(String query, String stage, Cancellation cancellation) {
+        long start = System.nanoTime();
+        return esClient.search(searchEndpoint, "hits.hits._id,hits.hits._source", query,
+                        body -> EsHits.parse(body, jsonFactory, content, metadataFields), cancellation)
+                .whenComplete((hits, e) -> recordStage(stage, start, e == null));
+    }
+
+    private void recordStage(String stage, long start, boolean success) {
+        if (stage != null) {
+            chatMetrics.recordStage(stage, start, success);
+        }
+    }
+
+    private static List<EsHits.Hit> joinQuietly(CompletableFuture<List<EsHits.Hit>> future, String name) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            System.err.println(name + " 检索失败: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+            return null;
+        }
+    }
+
+    private static List<String> texts(List<EsHits.Hit> hits) {
+        List<String> results = new ArrayList<>(hits.size());
+        for (EsHits.Hit hit : hits) {
+            if (hit.getText() != null) {
+                results.add(hit.getText());
+            }
+        }
+        return results;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", "es-hybrid");
+        stats.put("clientInitialized", esClient.isInitialized());
+        List<Map<String, Object>> tunerStats = new ArrayList<>();
+        new TreeMap<>(tuners).values().forEach(tuner -> tunerStats.add(tuner.stats()));
+        stats.put("tuners", tunerStats);
+        return stats;
+    }
+
+    // 带 match 过滤的 kNN 检索（esKnn.mode=knn），num_candidates 固定为 50
+    public CompletableFuture<List<String>> vectorSearchAsync(int k, String msg, Cancellation cancellation) {
+        return embeddingClient.embedAsync(msg)
+                .thenCompose(vector -> searchAsync(templates.filteredKnn(vector, k, 50, msg), ChatMetrics.STAGE_ES_KNN, cancellation))
+                .thenApply(ElasticsearchKnnSearch::texts);
+    }
+
+    // List<EsVectorResponse>
+    public List<String> vectorSearch(int k, String msg, Cancellation cancellation) {
+        try {
+            return vectorSearchAsync(k, msg, cancellation).join();
+        } catch (CompletionException | CancellationException e) {
+            System.err.println("kNN 检索失败: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+            return new ArrayList<>();
         }
-        return vectorList;
     }
 }
@@ -0,0 +1,233 @@
+package com.brain.llm.service;
+
+import com.brain.llm.util.UpstreamHttpClient;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文本向量化客户端，调用 python 服务的 /batch_msg_to_vector 接口（向量已归一化）
+ * 短时间窗口内的并发请求合并为一次批量调用；相同文本只请求一次，结果按 LRU 缓存；
+ * 向量全程使用 float[]，返回的数组为共享缓存，调用方不要修改
+ */
+@Component
+public class EmbeddingClient {
+
+    // python 向量服务地址
+    @Value("${upstream.rag.base-url:http://localhost:5001}")
+    private String ragBaseUrl;
+    // 合并请求的等待窗口
+    @Value("${embedding.batch-window:5ms}")
+    private Duration batchWindow;
+    // 单次批量请求的最大文本数，达到后立即发送
+    @Value("${embedding.max-batch-size:32}")
+    private int maxBatchSize;
+    // 向量缓存条目数
+    @Value("${embedding.cache-size:10000}")
+    private int cacheSize;
+
+    @Resource
+    private UpstreamHttpClient ragClient;
+    @Resource
+    private ChatMetrics chatMetrics;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // 正在请求中的文本，相同文本共用一个结果
+    private final ConcurrentHashMap<String, CompletableFuture<float[]>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, float[]> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+            return size() > cacheSize;
+        }
+    };
+    private final ScheduledExecutorService batcher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "embedding-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 最近一次的向量维度，用于预分配数组
+    private volatile int dimHint = 768;
+
+    public float[] embed(String message) throws IOException, InterruptedException {
+        try {
+            return embedAsync(message).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to get vector", e.getCause());
+        }
+    }
+
+    public CompletableFuture<float[]> embedAsync(String message) {
+        float[] cached;
+        synchronized (cache) {
+            cached = cache.get(message);
+        }
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        boolean[] created = new boolean[1];
+        CompletableFuture<float[]> future = inFlight.computeIfAbsent(message, key -> {
+            CompletableFuture<float[]> pending = new CompletableFuture<>();
+            queue.add(new Pending(key, pending));
+            created[0] = true;
+            return pending;
+        });
+        if (created[0]) {
+            if (queued.incrementAndGet() >= maxBatchSize) {
+                batcher.execute(this::flush);
+            } else if (flushScheduled.compareAndSet(false, true)) {
+                batcher.schedule(this::flush, batchWindow.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        return future;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        batcher.shutdownNow();
+    }
+
+    // 把队列中的请求按 maxBatchSize 分批发出，发送是异步的，不阻塞合并线程
+    private void flush() {
+        flushScheduled.set(false);
+        while (true) {
+            List<Pending> batch = new ArrayList<>(Math.min(maxBatchSize, Math.max(1, queued.get())));
+            Pending pending;
+            while (batch.size() < maxBatchSize && (pending = queue.poll()) != null) {
+                batch.add(pending);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            queued.addAndGet(-batch.size());
+            sendBatch(batch);
+        }
+    }
+
+    private void sendBatch(List<Pending> batch) {
+        List<String> messages = new ArrayList<>(batch.size());
+        batch.forEach(pending -> messages.add(pending.message));
+        embedBatch(messages).whenComplete((vectors, e) -> {
+            if (e != null) {
+                batch.forEach(pending -> fail(pending, e));
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                complete(batch.get(i), vectors[i]);
+            }
+        });
+    }
+
+    /**
+     * 直接批量向量化，不合并、不查也不写缓存，供知识库导入使用
+     * 返回的向量与 messages 一一对应
+     */
+    public CompletableFuture<float[][]> embedBatch(List<String> messages) {
+        long start = System.nanoTime();
+        HttpRequest request;
+        try {
+            request = ragClient.newRequest(URI.create(ragBaseUrl + "/batch_msg_to_vector"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(Map.of("msgs", messages))))
+                    .build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return ragClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    try {
+                        if (response.statusCode() != 200) {
+                            throw new IOException("Failed to get vector: HTTP " + response.statusCode());
+                        }
+                        return parseVectors(response.body(), messages.size());
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                })
+                .whenComplete((vectors, e) -> chatMetrics.recordStage(ChatMetrics.STAGE_EMBEDDING, start, e == null));
+    }
+
+    private void complete(Pending pending, float[] vector) {
+        synchronized (cache) {
+            cache.put(pending.message, vector);
+        }
+        inFlight.remove(pending.message, pending.future);
+        pending.future.complete(vector);
+    }
+
+    private void fail(Pending pending, Throwable error) {
+        inFlight.remove(pending.message, pending.future);
+        pending.future.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+    }
+
+    // 流式解析 {"vectors": [[...], ...]}，直接写入 float[]，不生成 JsonNode 和装箱的 Float
+    private float[][] parseVectors(byte[] body, int expected) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token == JsonToken.FIELD_NAME && "vectors".equals(parser.currentName())) {
+                    parser.nextToken();
+                    float[][] vectors = new float[expected][];
+                    int count = 0;
+                    while (parser.nextToken() == JsonToken.START_ARRAY) {
+                        if (count == expected) {
+                            throw new IOException("Unexpected vector count, expected " + expected);
+                        }
+                        vectors[count++] = readVector(parser);
+                    }
+                    if (count != expected) {
+                        throw new IOException("Unexpected vector count " + count + ", expected " + expected);
+                    }
+                    return vectors;
+                }
+            }
+            throw new IOException("Missing vectors in embedding response");
+        }
+    }
+
+    private float[] readVector(JsonParser parser) throws IOException {
+        float[] vector = new float[dimHint];
+        int length = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (length == vector.length) {
+                vector = Arrays.copyOf(vector, vector.length * 2);
+            }
+            vector[length++] = parser.getFloatValue();
+        }
+        if (length != vector.length) {
+            vector = Arrays.copyOf(vector, length);
+        }
+        dimHint = Math.max(1, length);
+        return vector;
+    }
+
+    private static class Pending {
+        private final String message;
+        private final CompletableFuture<float[]> future;
+
+        private Pending(String message, CompletableFuture<float[]> future) {
+            this.message = message;
+            this.future = future;
+        }
+    }
+}
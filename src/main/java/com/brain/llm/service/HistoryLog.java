@@ -0,0 +1,484 @@
+package com.brain.llm.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 会话历史的本地持久化：每个会话一个只追加的日志文件，通过内存映射写入
+ * ConversationStore 只把追加、裁剪、清除操作放入队列，由单个后台线程按间隔批量写入，对话路径上没有磁盘 IO；
+ * 日志中已被裁剪的内容超过一定比例时，定期重写为只包含当前历史的新文件；
+ * 重启后不预先加载，会话第一次被访问时才读取该会话的日志
+ * 记录格式：长度（int）+ CRC32（int）+ 类型（byte）+ 内容，长度为 0 或校验失败处即日志末尾
+ */
+@Component
+public class HistoryLog {
+
+    private static final byte APPEND = 1;
+    private static final byte TRIM = 2;
+    private static final byte CLEAR = 3;
+    private static final int HEADER_BYTES = 9;
+    private static final int INITIAL_MAP_BYTES = 64 * 1024;
+    private static final String SUFFIX = ".log";
+
+    @Value("${chat.history.persistence.enabled:false}")
+    private boolean enabled;
+    @Value("${chat.history.persistence.dir:data/history}")
+    private Path dir;
+    // 后台线程批量写入的间隔
+    @Value("${chat.history.persistence.flush-interval:200ms}")
+    private Duration flushInterval;
+    // 把映射内存刷到磁盘的间隔，进程崩溃不会丢失已写入映射的内容，这里只防止机器掉电
+    @Value("${chat.history.persistence.sync-interval:5s}")
+    private Duration syncInterval;
+    // 日志大小超过有效内容的该倍数（且超过 compact-min-bytes）时重写
+    @Value("${chat.history.persistence.compact-ratio:2.0}")
+    private double compactRatio;
+    @Value("${chat.history.persistence.compact-min-bytes:65536}")
+    private long compactMinBytes;
+    @Value("${chat.history.persistence.compact-interval:1m}")
+    private Duration compactInterval;
+    // 同时保持映射的会话日志数
+    @Value("${chat.history.persistence.max-open-logs:256}")
+    private int maxOpenLogs;
+    // 超过该时间没有写入的会话日志被删除
+    @Value("${chat.history.persistence.retention:7d}")
+    private Duration retention;
+
+    private final ConcurrentLinkedQueue<Op> pending = new ConcurrentLinkedQueue<>();
+    // 以下字段在 synchronized(this) 下访问，由写线程和 load 使用
+    private final LinkedHashMap<String, SegmentLog> openLogs = new LinkedHashMap<>(16, 0.75f, true);
+    // 上次压缩检查之后有写入的日志
+    private final Set<String> touched = new HashSet<>();
+    private ScheduledExecutorService writer;
+
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong expiredLogs = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(dir);
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "history-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long flushNanos = Math.max(1, flushInterval.toNanos());
+        writer.scheduleWithFixedDelay(this::flush, flushNanos, flushNanos, TimeUnit.NANOSECONDS);
+        if (!syncInterval.isZero()) {
+            writer.scheduleWithFixedDelay(this::sync, syncInterval.toNanos(), syncInterval.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        writer.scheduleWithFixedDelay(this::compactAndExpire, compactInterval.toNanos(), compactInterval.toNanos(),
+                TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // 以下三个方法只入队，不做任何 IO；同一会话的操作需要调用方按顺序提交
+    public void append(String sessionId, Map<String, String> message) {
+        if (enabled) {
+            pending.add(new Op(sessionId, APPEND, message, 0));
+        }
+    }
+
+    public void trim(String sessionId, int count) {
+        if (enabled && count > 0) {
+            pending.add(new Op(sessionId, TRIM, null, count));
+        }
+    }
+
+    public void clear(String sessionId) {
+        if (enabled) {
+            pending.add(new Op(sessionId, CLEAR, null, 0));
+        }
+    }
+
+    /**
+     * 读取会话的当前历史（已按记录的裁剪处理），先写入队列中尚未落盘的操作
+     */
+    public synchronized List<Map<String, String>> load(String sessionId) throws IOException {
+        if (!enabled) {
+            return List.of();
+        }
+        flushPending();
+        loads.incrementAndGet();
+        String name = fileName(sessionId);
+        SegmentLog log = openLogs.get(name);
+        if (log == null && !Files.exists(dir.resolve(name))) {
+            return List.of();
+        }
+        if (log == null) {
+            log = openLog(name);
+        }
+        Deque<Map<String, String>> messages = new ArrayDeque<>();
+        replay(log.buffer.duplicate(), messages, null);
+        return new ArrayList<>(messages);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("pendingOps", pending.size());
+        synchronized (this) {
+            stats.put("openLogs", openLogs.size());
+        }
+        stats.put("appendedRecords", appendedRecords.get());
+        stats.put("bytesWritten", bytesWritten.get());
+        stats.put("loads", loads.get());
+        stats.put("compactions", compactions.get());
+        stats.put("expiredLogs", expiredLogs.get());
+        stats.put("writeErrors", writeErrors.get());
+        return stats;
+    }
+
+    // 停止写线程，写完队列中的操作并刷盘
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        writer.awaitTermination(5, TimeUnit.SECONDS);
+        synchronized (this) {
+            flushPending();
+            openLogs.values().forEach(this::closeQuietly);
+            openLogs.clear();
+        }
+    }
+
+    private synchronized void flush() {
+        try {
+            flushPending();
+        } catch (RuntimeException e) {
+            System.err.println("会话历史写入失败: " + e.getMessage());
+        }
+    }
+
+    // 写入队列中的全部操作，单条失败只跳过该条
+    private void flushPending() {
+        Op op;
+        while ((op = pending.poll()) != null) {
+            String name = fileName(op.sessionId);
+            try {
+                if (op.type == CLEAR) {
+                    SegmentLog log = openLogs.remove(name);
+                    if (log != null) {
+                        closeQuietly(log);
+                    }
+                    touched.remove(name);
+                    Files.deleteIfExists(dir.resolve(name));
+                    continue;
+                }
+                SegmentLog log = openLogs.get(name);
+                if (log == null) {
+                    log = openLog(name);
+                }
+                if (op.type == APPEND) {
+                    bytesWritten.addAndGet(log.write(APPEND, encode(op.message)));
+                    appendedRecords.incrementAndGet();
+                } else {
+                    bytesWritten.addAndGet(log.write(TRIM, ByteBuffer.allocate(4).putInt(op.count).array()));
+                }
+                touched.add(name);
+            } catch (IOException e) {
+                writeErrors.incrementAndGet();
+                System.err.println("会话历史写入失败 " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void sync() {
+        try {
+            openLogs.values().forEach(SegmentLog::sync);
+        } catch (RuntimeException e) {
+            writeErrors.incrementAndGet();
+            System.err.println("会话历史刷盘失败: " + e.getMessage());
+        }
+    }
+
+    // 重写有效内容占比过低的日志，删除过期日志
+    private synchronized void compactAndExpire() {
+        try {
+            flushPending();
+            for (String name : touched) {
+                SegmentLog log = openLogs.get(name);
+                // 已经因为打开数上限被关闭的日志重新打开检查
+                if (log == null && Files.exists(dir.resolve(name))) {
+                    log = openLog(name);
+                }
+                if (log != null && log.position > compactMinBytes && log.position > log.liveBytes * compactRatio) {
+                    compact(name, log);
+                }
+            }
+            touched.clear();
+            expire();
+        } catch (IOException | RuntimeException e) {
+            writeErrors.incrementAndGet();
+            System.err.println("会话历史压缩失败: " + e.getMessage());
+        }
+    }
+
+    // 先写临时文件并刷盘，再原子替换原日志，中途崩溃时原日志仍然完整
+    private void compact(String name, SegmentLog log) throws IOException {
+        Deque<Map<String, String>> messages = new ArrayDeque<>();
+        replay(log.buffer.duplicate(), messages, null);
+        Path target = dir.resolve(name);
+        Path temp = dir.resolve(name + ".tmp");
+        Files.deleteIfExists(temp);
+        SegmentLog compacted = SegmentLog.open(temp, Math.max(INITIAL_MAP_BYTES, log.liveBytes + 4));
+        try {
+            for (Map<String, String> message : messages) {
+                compacted.write(APPEND, encode(message));
+            }
+            compacted.buffer.force();
+        } finally {
+            closeQuietly(compacted);
+        }
+        openLogs.remove(name);
+        closeQuietly(log);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        openLog(name);
+        compactions.incrementAndGet();
+    }
+
+    private void expire() throws IOException {
+        long deadline = System.currentTimeMillis() - retention.toMillis();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : logs) {
+                String name = path.getFileName().toString();
+                if (openLogs.containsKey(name) || Files.getLastModifiedTime(path).toMillis() >= deadline) {
+                    continue;
+                }
+                Files.deleteIfExists(path);
+                expiredLogs.incrementAndGet();
+            }
+        }
+    }
+
+    private SegmentLog openLog(String name) throws IOException {
+        SegmentLog log = SegmentLog.open(dir.resolve(name), INITIAL_MAP_BYTES);
+        openLogs.put(name, log);
+        // 超出上限时关闭最久未使用的日志
+        Iterator<Map.Entry<String, SegmentLog>> eldest = openLogs.entrySet().iterator();
+        while (openLogs.size() > maxOpenLogs && eldest.hasNext()) {
+            Map.Entry<String, SegmentLog> entry = eldest.next();
+            if (entry.getValue() != log) {
+                closeQuietly(entry.getValue());
+                eldest.remove();
+            }
+        }
+        return log;
+    }
+
+    private void closeQuietly(SegmentLog log) {
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.err.println("会话历史关闭失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 从头读取日志：追加记录加入 messages，裁剪记录移除最早的若干条；liveSizes 不为 null 时同步记录每条有效追加记录的字节数
+     * 返回日志末尾的位置
+     */
+    private static int replay(ByteBuffer buffer, Deque<Map<String, String>> messages, Deque<Integer> liveSizes) {
+        CRC32 crc = new CRC32();
+        int position = 0;
+        while (position + HEADER_BYTES <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 8 + length > buffer.limit()) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice(position + 8, length));
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                // 写到一半的记录
+                break;
+            }
+            byte type = buffer.get(position + 8);
+            ByteBuffer payload = buffer.slice(position + HEADER_BYTES, length - 1);
+            if (type == APPEND) {
+                if (messages != null) {
+                    messages.addLast(decode(payload));
+                }
+                if (liveSizes != null) {
+                    liveSizes.addLast(8 + length);
+                }
+            } else if (type == TRIM) {
+                int count = payload.getInt(0);
+                for (int i = 0; i < count; i++) {
+                    if (messages != null) {
+                        messages.pollFirst();
+                    }
+                    if (liveSizes != null) {
+                        liveSizes.pollFirst();
+                    }
+                }
+            }
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    // role 长度（int）+ role + content，均为 UTF-8
+    private static byte[] encode(Map<String, String> message) {
+        byte[] role = String.valueOf(message.get("role")).getBytes(StandardCharsets.UTF_8);
+        String content = message.get("content");
+        byte[] text = content == null ? new byte[0] : content.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + role.length + text.length).putInt(role.length).put(role).put(text).array();
+    }
+
+    private static Map<String, String> decode(ByteBuffer payload) {
+        int roleLength = payload.getInt(0);
+        byte[] role = new byte[roleLength];
+        byte[] text = new byte[payload.limit() - 4 - roleLength];
+        payload.get(4, role).get(4 + roleLength, text);
+        return PromptAssembler.message(new String(role, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+
+    // 会话 id 直接用作文件名，含特殊字符或过长时使用哈希
+    static String fileName(String sessionId) {
+        if (sessionId.matches("[A-Za-z0-9_-]{1,64}")) {
+            return "s-" + sessionId + SUFFIX;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(sessionId.getBytes(StandardCharsets.UTF_8));
+            return "h-" + HexFormat.of().formatHex(digest) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Op {
+        private final String sessionId;
+        private final byte type;
+        private final Map<String, String> message;
+        private final int count;
+
+        private Op(String sessionId, byte type, Map<String, String> message, int count) {
+            this.sessionId = sessionId;
+            this.type = type;
+            this.message = message;
+            this.count = count;
+        }
+    }
+
+    /**
+     * 单个会话的日志文件，整个文件映射到内存，空间不够时按两倍重新映射（文件随之变大，末尾为 0）
+     */
+    private static final class SegmentLog {
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int position;
+        // 当前有效的追加记录大小，按顺序，裁剪时从头部移除
+        private final Deque<Integer> liveSizes = new ArrayDeque<>();
+        private long liveBytes;
+        private boolean unsynced;
+
+        private SegmentLog(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private static SegmentLog open(Path path, long minBytes) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                long size = Math.max(channel.size(), minBytes);
+                SegmentLog log = new SegmentLog(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+                log.position = replay(log.buffer.duplicate(), null, log.liveSizes);
+                log.liveSizes.forEach(recordSize -> log.liveBytes += recordSize);
+                return log;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // 返回写入的字节数
+        private int write(byte type, byte[] payload) throws IOException {
+            int length = 1 + payload.length;
+            int recordSize = 8 + length;
+            // 末尾至少保留一个 0 作为结束标记
+            ensureCapacity(position + recordSize + 4);
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            buffer.put(position + 8, type);
+            buffer.put(position + HEADER_BYTES, payload);
+            // 长度最后写入，写到一半的记录读取时会被忽略
+            buffer.putInt(position, length);
+            position += recordSize;
+            unsynced = true;
+            if (type == APPEND) {
+                liveSizes.addLast(recordSize);
+                liveBytes += recordSize;
+            } else if (type == TRIM) {
+                int count = ByteBuffer.wrap(payload).getInt();
+                for (int i = 0; i < count && !liveSizes.isEmpty(); i++) {
+                    liveBytes -= liveSizes.pollFirst();
+                }
+            }
+            return recordSize;
+        }
+
+        private void ensureCapacity(long required) throws IOException {
+            if (required <= buffer.capacity()) {
+                return;
+            }
+            long size = buffer.capacity();
+            while (size < required) {
+                size *= 2;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("History log too large");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        private void sync() {
+            if (unsynced) {
+                buffer.force();
+                unsynced = false;
+            }
+        }
+
+        private void close() throws IOException {
+            sync();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,668 @@
+package com.brain.llm.service;
+
+import com.brain.llm.util.DocumentReader;
+import com.brain.llm.util.TextChunker;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * 知识库导入：流式读取文档 → 切分 → 批量向量化 → bulk 写入 es（esKnn.index-name，字段与 ElasticsearchKnnSearch 一致）
+ * 读取线程在在途批次数或并发向量化请求数达到上限时阻塞，内存占用与文件大小无关
+ * 批次按顺序编号，连续完成的批次覆盖到的文档数作为断点写入 checkpoint-dir，同名任务再次提交时从断点继续；
+ * 断点同时记录这些文档在文件中的字节数和这部分内容的 SHA-256，内容有变化时从头导入；
+ * 文档末尾追加新内容后重新提交即为增量导入。片段 id 由元数据、片段序号和内容计算，重复写入只会覆盖
+ * ingest.enabled=false 时不创建，只负责对话的节点不需要导入
+ */
+@Service
+@ConditionalOnProperty(name = "ingest.enabled", havingValue = "true", matchIfMissing = true)
+public class KnowledgeIngestionService {
+
+    public static final String STATE_RUNNING = "RUNNING";
+    public static final String STATE_COMPLETED = "COMPLETED";
+    public static final String STATE_FAILED = "FAILED";
+    public static final String STATE_CANCELLED = "CANCELLED";
+
+    private static final Pattern JOB_NAME = Pattern.compile("[A-Za-z0-9._-]{1,100}");
+
+    // 断点和上传文件的保存目录
+    @Value("${ingest.checkpoint-dir:data/ingest}")
+    private Path checkpointDir;
+    // 服务器上的文件只能从该目录导入
+    @Value("${ingest.import-dir:data/import}")
+    private Path importDir;
+    // 元数据字段，原样写入 es
+    @Value("${ingest.metadata-fields:doc_name,chapter,item_number}")
+    private List<String> metadataFields;
+    // 文档中的内容字段
+    @Value("${ingest.content-field:content}")
+    private String contentField;
+    // 每个片段的最大字符数
+    @Value("${ingest.chunk-size:500}")
+    private int chunkSize;
+    // 相邻片段的重叠字符数
+    @Value("${ingest.chunk-overlap:50}")
+    private int chunkOverlap;
+    // 每批片段数，一批对应一次向量化请求和一次 bulk 请求
+    @Value("${ingest.batch-size:64}")
+    private int batchSize;
+    // 同时进行的向量化请求数
+    @Value("${ingest.embedding-concurrency:4}")
+    private int embeddingConcurrency;
+    // 已读取但还没写入 es 的最大批次数
+    @Value("${ingest.max-in-flight-batches:8}")
+    private int maxInFlightBatches;
+    // 向量化和 bulk 请求的最大尝试次数，指数退避
+    @Value("${ingest.max-attempts:3}")
+    private int maxAttempts;
+    @Value("${ingest.retry-delay:1s}")
+    private Duration retryDelay;
+    // 两次写断点文件的最小间隔，任务结束时总会写一次
+    @Value("${ingest.checkpoint-interval:2s}")
+    private Duration checkpointInterval;
+    // 索引不存在时按该维度创建 dense_vector 映射，与 python config.json 中的 vector_dim 一致
+    @Value("${ingest.vector-dim:768}")
+    private int vectorDim;
+
+    @Resource
+    private EmbeddingClient embeddingClient;
+    @Resource
+    private ElasticsearchKnnSearch elasticsearch;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger threadCounter = new AtomicInteger();
+    // 每个任务一个读取线程
+    private final ExecutorService runner = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ingest-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 在后台开始导入，同名任务正在运行时抛出 IllegalStateException
+     * @param resume 是否从上次的断点继续，false 时从头导入
+     */
+    public Map<String, Object> start(String name, Path source, boolean resume) {
+        checkName(name);
+        if (!Files.isRegularFile(source)) {
+            throw new IllegalArgumentException("File not found: " + source);
+        }
+        Job job = new Job(name, source.toAbsolutePath().normalize());
+        Job current = jobs.compute(name, (key, existing) -> existing != null && existing.isRunning() ? existing : job);
+        if (current != job) {
+            throw new IllegalStateException("Ingestion job already running: " + name);
+        }
+        job.future = runner.submit(() -> run(job, resume));
+        return job.stats();
+    }
+
+    /**
+     * 按 import-dir 解析服务器上的文件，path 为相对 import-dir 的路径
+     * 规范化后（包括解析符号链接）不在 import-dir 中的路径抛出 IllegalArgumentException
+     */
+    public Path importPath(String path) throws IOException {
+        Path root = importDir.toAbsolutePath().normalize();
+        Path source = root.resolve(path).normalize();
+        if (!source.startsWith(root)) {
+            throw new IllegalArgumentException("Path is outside the import directory: " + path);
+        }
+        if (!Files.isRegularFile(source)) {
+            throw new IllegalArgumentException("File not found: " + path);
+        }
+        if (!source.toRealPath().startsWith(root.toRealPath())) {
+            throw new IllegalArgumentException("Path is outside the import directory: " + path);
+        }
+        return source;
+    }
+
+    // 上传的文件先落盘再导入，同名任务的上传文件会被覆盖
+    public Path uploadPath(String name) throws IOException {
+        checkName(name);
+        Path uploads = checkpointDir.resolve("uploads");
+        Files.createDirectories(uploads);
+        return uploads.resolve(name + ".json");
+    }
+
+    public boolean isRunning(String name) {
+        Job job = jobs.get(name);
+        return job != null && job.isRunning();
+    }
+
+    public boolean cancel(String name) {
+        Job job = jobs.get(name);
+        if (job == null || !job.isRunning()) {
+            return false;
+        }
+        job.cancelled = true;
+        Future<?> future = job.future;
+        if (future != null) {
+            future.cancel(true);
+        }
+        return true;
+    }
+
+    // 任务状态，本次运行中没有该任务时返回断点文件的内容，都没有时返回 null
+    public Map<String, Object> status(String name) throws IOException {
+        checkName(name);
+        Job job = jobs.get(name);
+        if (job != null) {
+            return job.stats();
+        }
+        Checkpoint checkpoint = readCheckpoint(name);
+        return checkpoint == null ? null : checkpoint.toMap();
+    }
+
+    public List<Map<String, Object>> list() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        jobs.values().forEach(job -> stats.add(job.stats()));
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 中断读取线程，各任务写入断点后退出
+        jobs.values().forEach(job -> job.cancelled = true);
+        runner.shutdownNow();
+    }
+
+    private void run(Job job, boolean resume) {
+        try {
+            Checkpoint checkpoint = resume ? readCheckpoint(job.name) : null;
+            if (checkpoint != null && !isPrefixUnchanged(job, checkpoint)) {
+                // 换了文件，或者断点之前的内容被修改（例如同名任务重新上传了编辑过的文件），断点不再有效
+                System.out.println("知识库导入 " + job.name + ": 源文件已变化，从头导入");
+                checkpoint = null;
+                job.prefixDigest = null;
+            }
+            ensureIndex();
+            try (InputStream input = new BufferedInputStream(Files.newInputStream(job.source), 1 << 16);
+                 DocumentReader reader = new DocumentReader(input, objectMapper.getFactory())) {
+                if (checkpoint != null) {
+                    long skipped = reader.skip(checkpoint.documents);
+                    job.resumedFrom = skipped;
+                    job.documentsDone = skipped;
+                    job.bytesDone = reader.getByteOffset();
+                    job.chunksIndexed.set(checkpoint.chunks);
+                    System.out.println("知识库导入 " + job.name + ": 从第 " + skipped + " 个文档继续");
+                }
+                read(job, reader);
+            } finally {
+                awaitInFlight(job);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (job.failure != null) {
+                throw job.failure;
+            }
+            elasticsearch.getClient().get().indices().refresh(new RefreshRequest(elasticsearch.getIndexName()), RequestOptions.DEFAULT);
+            job.state = STATE_COMPLETED;
+        } catch (InterruptedException e) {
+            job.state = STATE_CANCELLED;
+        } catch (Throwable e) {
+            if (job.cancelled) {
+                job.state = STATE_CANCELLED;
+            } else {
+                job.failure = e;
+                job.state = STATE_FAILED;
+                System.err.println("知识库导入失败 " + job.name + ": " + e.getMessage());
+            }
+        } finally {
+            job.finishedAt = Instant.now();
+            synchronized (job) {
+                writeCheckpointQuietly(job);
+            }
+            System.out.println("知识库导入 " + job.name + " 结束: " + job.stats());
+        }
+    }
+
+    private void read(Job job, DocumentReader reader) throws IOException, InterruptedException {
+        Batch batch = new Batch(0, job.documentsDone, job.bytesDone);
+        Map<String, String> document;
+        while (job.failure == null && (document = reader.next()) != null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            List<String> chunks = TextChunker.chunk(document.get(contentField), chunkSize, chunkOverlap);
+            if (chunks.isEmpty()) {
+                job.skippedDocuments++;
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                batch.chunks.add(new Chunk(document, i, chunks.get(i)));
+                if (batch.chunks.size() == batchSize) {
+                    submit(job, batch);
+                    batch = new Batch(batch.seq + 1, batch.documentsDone, batch.bytesDone);
+                }
+            }
+            // 该文档的最后一个片段在当前批次中，当前批次及之前的批次都完成后该文档才算导入完成
+            batch.documentsDone = reader.getPosition();
+            batch.bytesDone = reader.getByteOffset();
+            job.documentsRead = reader.getPosition();
+        }
+        // 最后一批可能没有片段，但仍然要推进断点
+        submit(job, batch);
+    }
+
+    private void submit(Job job, Batch batch) throws InterruptedException {
+        job.inFlight.acquire();
+        if (batch.chunks.isEmpty()) {
+            onBatchDone(job, batch);
+            job.inFlight.release();
+            return;
+        }
+        try {
+            job.embeddingPermits.acquire();
+        } catch (InterruptedException e) {
+            job.inFlight.release();
+            throw e;
+        }
+        job.chunksSubmitted += batch.chunks.size();
+        List<String> texts = new ArrayList<>(batch.chunks.size());
+        batch.chunks.forEach(chunk -> texts.add(chunk.text));
+        withRetry(() -> embeddingClient.embedBatch(texts), 1)
+                .whenComplete((vectors, e) -> job.embeddingPermits.release())
+                .thenCompose(vectors -> withRetry(() -> bulk(batch, vectors), 1))
+                .whenComplete((response, e) -> {
+                    try {
+                        if (e != null) {
+                            if (job.failure == null) {
+                                job.failure = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                            }
+                        } else {
+                            job.chunksIndexed.addAndGet(batch.chunks.size());
+                            onBatchDone(job, batch);
+                        }
+                    } finally {
+                        job.inFlight.release();
+                    }
+                });
+    }
+
+    // 按批次编号推进断点，只有之前的批次都完成时才前进
+    private void onBatchDone(Job job, Batch batch) {
+        synchronized (job) {
+            job.completedBatches.put(batch.seq, batch);
+            Batch done;
+            boolean advanced = false;
+            while ((done = job.completedBatches.remove(job.nextSeq)) != null) {
+                job.documentsDone = done.documentsDone;
+                job.bytesDone = done.bytesDone;
+                job.nextSeq++;
+                advanced = true;
+            }
+            long now = System.nanoTime();
+            if (advanced && now - job.lastCheckpointNanos >= checkpointInterval.toNanos()) {
+                job.lastCheckpointNanos = now;
+                writeCheckpointQuietly(job);
+            }
+        }
+    }
+
+    // 等待所有在途批次结束，es 或向量服务无响应时最多等待一分钟，超时后任务按失败处理，不能报告为完成
+    private void awaitInFlight(Job job) {
+        try {
+            if (job.inFlight.tryAcquire(maxInFlightBatches, 1, TimeUnit.MINUTES)) {
+                job.inFlight.release(maxInFlightBatches);
+            } else if (job.failure == null) {
+                job.failure = new TimeoutException((maxInFlightBatches - job.inFlight.availablePermits())
+                        + " batches still in flight after 1 minute");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private CompletableFuture<BulkResponse> bulk(Batch batch, float[][] vectors) {
+        BulkRequest request = new BulkRequest();
+        try {
+            for (int i = 0; i < batch.chunks.size(); i++) {
+                Chunk chunk = batch.chunks.get(i);
+                XContentBuilder source = XContentFactory.jsonBuilder().startObject();
+                for (String field : metadataFields) {
+                    String value = chunk.document.get(field);
+                    if (value != null) {
+                        source.field(field, value);
+                    }
+                }
+                source.field(elasticsearch.getContentField(), chunk.text)
+                        .field("chunk_index", chunk.index)
+                        .array(elasticsearch.getVectorField(), vectors[i])
+                        .endObject();
+                request.add(new IndexRequest(elasticsearch.getIndexName()).id(chunkId(chunk)).source(source));
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<BulkResponse> future = new CompletableFuture<>();
+        elasticsearch.getClient().get().bulkAsync(request, RequestOptions.DEFAULT,
+                ActionListener.wrap(future::complete, future::completeExceptionally));
+        return future.thenApply(response -> {
+            if (!response.hasFailures()) {
+                return response;
+            }
+            // 只有全部是 429（es 写入队列已满）时才值得整批重试，片段 id 固定，重试不会产生重复
+            boolean retryable = true;
+            String firstFailure = null;
+            for (BulkItemResponse item : response.getItems()) {
+                if (item.isFailed()) {
+                    retryable &= item.status() == RestStatus.TOO_MANY_REQUESTS;
+                    if (firstFailure == null) {
+                        firstFailure = item.getFailureMessage();
+                    }
+                }
+            }
+            throw new CompletionException(new BulkFailureException(firstFailure, retryable));
+        });
+    }
+
+    // 失败后按 retryDelay * 2^(attempt-1) 退避重试，bulk 中非 429 的失败不重试
+    private <T> CompletableFuture<T> withRetry(Supplier<CompletableFuture<T>> call, int attempt) {
+        return call.get().handle((result, e) -> {
+            if (e == null) {
+                return CompletableFuture.completedFuture(result);
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            boolean retryable = !(cause instanceof BulkFailureException failure) || failure.retryable;
+            if (!retryable || attempt >= maxAttempts) {
+                return CompletableFuture.<T>failedFuture(cause);
+            }
+            long delay = retryDelay.toMillis() << Math.min(attempt - 1, 10);
+            Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> null, delayed).thenCompose(ignored -> withRetry(call, attempt + 1));
+        }).thenCompose(future -> future);
+    }
+
+    // 索引不存在时创建，content 用于全文匹配，向量已归一化，使用点积
+    private void ensureIndex() throws IOException {
+        RestHighLevelClient client = elasticsearch.getClient().get();
+        String index = elasticsearch.getIndexName();
+        if (client.indices().exists(new GetIndexRequest(index), RequestOptions.DEFAULT)) {
+            return;
+        }
+        XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject("properties");
+        for (String field : metadataFields) {
+            mapping.startObject(field).field("type", "keyword").endObject();
+        }
+        mapping.startObject(elasticsearch.getContentField()).field("type", "text").endObject()
+                .startObject("chunk_index").field("type", "integer").endObject()
+                .startObject(elasticsearch.getVectorField())
+                .field("type", "dense_vector")
+                .field("dims", vectorDim)
+                .field("index", true)
+                .field("similarity", "dot_product")
+                .endObject()
+                .endObject()
+                .endObject();
+        try {
+            client.indices().create(new CreateIndexRequest(index).mapping(mapping), RequestOptions.DEFAULT);
+            System.out.println("已创建 es 索引: " + index);
+        } catch (ElasticsearchStatusException e) {
+            // 其他任务同时创建了索引
+            if (e.status() != RestStatus.BAD_REQUEST
+                    || !client.indices().exists(new GetIndexRequest(index), RequestOptions.DEFAULT)) {
+                throw e;
+            }
+        }
+    }
+
+    private String chunkId(Chunk chunk) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String field : metadataFields) {
+                digest.update(String.valueOf(chunk.document.get(field)).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            digest.update(Integer.toString(chunk.index).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(chunk.text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // 断点对应同一个文件，且其中前 sourceOffset 个字节与写断点时相同；校验通过时 job 的前缀摘要已推进到 sourceOffset
+    private boolean isPrefixUnchanged(Job job, Checkpoint checkpoint) throws IOException {
+        if (!job.source.toString().equals(checkpoint.source) || checkpoint.sourceHash == null
+                || Files.size(job.source) < checkpoint.sourceOffset) {
+            return false;
+        }
+        return checkpoint.sourceHash.equals(prefixHash(job, checkpoint.sourceOffset));
+    }
+
+    /**
+     * 源文件前 offset 个字节的 SHA-256，在 synchronized (job) 下或读取开始前调用
+     * 摘要随断点增量推进，整个任务中文件的每个字节只额外读取一次
+     */
+    private static String prefixHash(Job job, long offset) throws IOException {
+        if (job.prefixDigest == null || offset < job.hashedBytes) {
+            job.prefixDigest = sha256();
+            job.hashedBytes = 0;
+        }
+        try (FileChannel channel = FileChannel.open(job.source, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            while (job.hashedBytes < offset) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), offset - job.hashedBytes));
+                int read = channel.read(buffer, job.hashedBytes);
+                if (read < 0) {
+                    throw new EOFException("File is shorter than " + offset + " bytes: " + job.source);
+                }
+                buffer.flip();
+                job.prefixDigest.update(buffer);
+                job.hashedBytes += read;
+            }
+        }
+        try {
+            // 复制一份再结束计算，原摘要继续用于后面的断点
+            return HexFormat.of().formatHex(((MessageDigest) job.prefixDigest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Checkpoint readCheckpoint(String name) throws IOException {
+        Path file = checkpointDir.resolve(name + ".checkpoint.json");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return objectMapper.readValue(file.toFile(), Checkpoint.class);
+    }
+
+    // 先写临时文件再原子替换，进程在写入过程中退出也不会留下损坏的断点
+    private void writeCheckpointQuietly(Job job) {
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.name = job.name;
+        checkpoint.source = job.source.toString();
+        checkpoint.documents = job.documentsDone;
+        checkpoint.chunks = job.chunksIndexed.get();
+        checkpoint.state = job.state;
+        checkpoint.updatedAt = Instant.now().toString();
+        try {
+            checkpoint.sourceSize = Files.size(job.source);
+            checkpoint.sourceOffset = job.bytesDone;
+            checkpoint.sourceHash = prefixHash(job, job.bytesDone);
+            Files.createDirectories(checkpointDir);
+            Path file = checkpointDir.resolve(job.name + ".checkpoint.json");
+            Path tmp = checkpointDir.resolve(job.name + ".checkpoint.json.tmp");
+            objectMapper.writeValue(tmp.toFile(), checkpoint);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("写入导入断点失败 " + job.name + ": " + e.getMessage());
+        }
+    }
+
+    private static void checkName(String name) {
+        if (name == null || !JOB_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid job name: " + name);
+        }
+    }
+
+    private class Job {
+        private final String name;
+        private final Path source;
+        private final Instant startedAt = Instant.now();
+        private final Semaphore inFlight = new Semaphore(maxInFlightBatches);
+        private final Semaphore embeddingPermits = new Semaphore(embeddingConcurrency);
+        private final AtomicLong chunksIndexed = new AtomicLong();
+        // 已完成但前面还有未完成批次的 批次编号 -> 批次，由 synchronized (job) 保护
+        private final Map<Long, Batch> completedBatches = new HashMap<>();
+        private long nextSeq;
+        private long lastCheckpointNanos = System.nanoTime();
+        private volatile String state = STATE_RUNNING;
+        private volatile long documentsRead;
+        // 断点：之前的文档都已写入 es
+        private volatile long documentsDone;
+        // 断点之前的文档在文件中的字节数
+        private volatile long bytesDone;
+        // 文件前 hashedBytes 个字节的摘要，由 synchronized (job) 保护
+        private MessageDigest prefixDigest;
+        private long hashedBytes;
+        private volatile long resumedFrom;
+        private volatile long chunksSubmitted;
+        private volatile long skippedDocuments;
+        private volatile Throwable failure;
+        private volatile boolean cancelled;
+        private volatile Instant finishedAt;
+        private volatile Future<?> future;
+
+        private Job(String name, Path source) {
+            this.name = name;
+            this.source = source;
+        }
+
+        private boolean isRunning() {
+            return STATE_RUNNING.equals(state);
+        }
+
+        private Map<String, Object> stats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("name", name);
+            stats.put("source", source.toString());
+            stats.put("state", state);
+            stats.put("resumedFrom", resumedFrom);
+            stats.put("documentsRead", Math.max(documentsRead, resumedFrom));
+            stats.put("documentsDone", documentsDone);
+            stats.put("skippedDocuments", skippedDocuments);
+            stats.put("chunksSubmitted", chunksSubmitted);
+            stats.put("chunksIndexed", chunksIndexed.get());
+            stats.put("inFlightBatches", maxInFlightBatches - inFlight.availablePermits());
+            stats.put("startedAt", startedAt.toString());
+            Instant end = finishedAt != null ? finishedAt : Instant.now();
+            stats.put("elapsedSeconds", Duration.between(startedAt, end).toSeconds());
+            if (failure != null) {
+                stats.put("error", String.valueOf(failure.getMessage()));
+            }
+            return stats;
+        }
+    }
+
+    private static class Batch {
+        private final long seq;
+        private final List<Chunk> chunks = new ArrayList<>();
+        // 该批次完成后，文件中前 documentsDone 个文档（前 bytesDone 个字节）都已写入
+        private long documentsDone;
+        private long bytesDone;
+
+        private Batch(long seq, long documentsDone, long bytesDone) {
+            this.seq = seq;
+            this.documentsDone = documentsDone;
+            this.bytesDone = bytesDone;
+        }
+    }
+
+    private static class Chunk {
+        private final Map<String, String> document;
+        private final int index;
+        private final String text;
+
+        private Chunk(Map<String, String> document, int index, String text) {
+            this.document = document;
+            this.index = index;
+            this.text = text;
+        }
+    }
+
+    // 断点文件内容
+    public static class Checkpoint {
+        public String name;
+        public String source;
+        public long sourceSize;
+        // 前 documents 个文档在文件中的字节数及这部分内容的 SHA-256，续传前校验
+        public long sourceOffset;
+        public String sourceHash;
+        public long documents;
+        public long chunks;
+        public String state;
+        public String updatedAt;
+
+        Map<String, Object> toMap() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("name", name);
+            stats.put("source", source);
+            stats.put("state", state);
+            stats.put("documentsDone", documents);
+            stats.put("chunksIndexed", chunks);
+            stats.put("updatedAt", updatedAt);
+            return stats;
+        }
+    }
+
+    private static class BulkFailureException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean retryable;
+
+        private BulkFailureException(String message, boolean retryable) {
+            super("Bulk indexing failed: " + message);
+            this.retryable = retryable;
+        }
+    }
+}
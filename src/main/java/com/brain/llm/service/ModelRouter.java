@@ -0,0 +1,500 @@
+package com.brain.llm.service;
+
+import com.brain.llm.config.RoutingProperties;
+import com.brain.llm.domain.TokenUsage;
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.DebugEchoSink;
+import com.brain.llm.util.DeepSeekStreamDecoder;
+import com.brain.llm.util.UpstreamHttpClient;
+import com.brain.llm.util.UpstreamStatusException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 对话模型路由：在多个 OpenAI 兼容端点之间选择，记录每个端点的首 token 延迟和错误率
+ * 健康端点优先，同一优先级内选首 token 延迟（指数滑动平均）最低的；
+ * 首选端点超过其延迟分位数仍没有输出首 token 时，向下一个端点发出对冲请求，先输出的一方胜出，另一方立即取消；
+ * 输出前失败时直接切换到下一个端点
+ * 所有端点共用 deepseekClient 的连接池，连接池已满时不对冲；对冲和切换端点都不会阻塞发起的线程
+ */
+@Component
+public class ModelRouter {
+
+    private static final double LATENCY_ALPHA = 0.1;
+    private static final double ERROR_ALPHA = 0.1;
+
+    @Value("${deepseek.url}")
+    private String defaultUrl;
+    @Value("${deepseek.model-name}")
+    private String defaultModel;
+    @Value("${deepseek.api-key}")
+    private String defaultApiKey;
+
+    @Resource
+    private RoutingProperties properties;
+    @Resource
+    private UpstreamHttpClient deepseekClient;
+    @Resource
+    private DebugEchoSink debugEchoSink;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final List<EndpointState> endpoints = new ArrayList<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "model-router");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 对冲额度，在 synchronized(this) 下访问
+    private double hedgeBudget;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong hedgeBudgetExhausted = new AtomicLong();
+    private final AtomicLong hedgePoolExhausted = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        List<RoutingProperties.Endpoint> configured = properties.getEndpoints();
+        if (configured.isEmpty()) {
+            RoutingProperties.Endpoint endpoint = new RoutingProperties.Endpoint();
+            endpoint.setName("deepseek");
+            endpoint.setUrl(defaultUrl);
+            endpoint.setModel(defaultModel);
+            endpoint.setApiKey(defaultApiKey);
+            configured = List.of(endpoint);
+        }
+        for (int i = 0; i < configured.size(); i++) {
+            RoutingProperties.Endpoint endpoint = configured.get(i);
+            if (endpoint.getUrl() == null || endpoint.getUrl().isBlank()) {
+                throw new IllegalStateException("chat.routing.endpoints[" + i + "].url is required");
+            }
+            endpoints.add(new EndpointState(endpoint, i, Math.max(1, properties.getLatencyWindow())));
+        }
+        hedgeBudget = properties.getHedge().getBudgetBurst();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * 发起一次流式对话，解码后的增量只交给胜出的端点对应的 listener
+     * @param body        按 requestBody 序列化好的请求体，端点模型与请求体相同时直接使用
+     * @param requestBody 端点配置了不同模型时据此重新序列化
+     * @param permit      收到任意端点的响应头时通知准入控制
+     */
+    public CompletableFuture<HttpResponse<Void>> stream(String body, Map<String, Object> requestBody,
+                                                        DeepSeekStreamDecoder.Listener listener,
+                                                        UpstreamScheduler.Permit permit, Cancellation cancellation) {
+        requests.incrementAndGet();
+        RoutingProperties.Hedge hedge = properties.getHedge();
+        synchronized (this) {
+            hedgeBudget = Math.min(hedge.getBudgetBurst(), hedgeBudget + hedge.getBudgetRatio());
+        }
+        HedgedCall call = new HedgedCall(body, requestBody, listener, permit, cancellation, rank());
+        call.launchNext(false);
+        if (hedge.isEnabled() && call.ranked.size() > 1) {
+            try {
+                timer.schedule(call::hedge, hedgeDelayMillis(call.ranked.get(0)), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // 应用关闭中，不再对冲
+            }
+        }
+        return call.result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", "model-router");
+        stats.put("requests", requests.get());
+        stats.put("hedges", hedges.get());
+        stats.put("hedgeWins", hedgeWins.get());
+        stats.put("hedgeBudgetExhausted", hedgeBudgetExhausted.get());
+        stats.put("hedgePoolExhausted", hedgePoolExhausted.get());
+        stats.put("failovers", failovers.get());
+        List<Map<String, Object>> endpointStats = new ArrayList<>();
+        for (EndpointState endpoint : endpoints) {
+            endpointStats.add(endpoint.stats(properties.getHedge().getPercentile()));
+        }
+        stats.put("endpoints", endpointStats);
+        return stats;
+    }
+
+    // 健康的在前，然后按优先级、首 token 延迟和配置顺序；还没有延迟样本的端点排在有样本的之后
+    private List<EndpointState> rank() {
+        List<EndpointState> ranked = new ArrayList<>(endpoints);
+        double errorThreshold = properties.getErrorThreshold();
+        ranked.sort(Comparator.<EndpointState>comparingInt(endpoint -> endpoint.errorRate > errorThreshold ? 1 : 0)
+                .thenComparingInt(endpoint -> endpoint.config.getPriority())
+                .thenComparingDouble(endpoint -> Double.isNaN(endpoint.latencyEwma) ? Double.MAX_VALUE : endpoint.latencyEwma)
+                .thenComparingInt(endpoint -> endpoint.order));
+        return ranked;
+    }
+
+    // 首选端点首 token 延迟的分位数，样本不足时使用 initial-delay
+    private long hedgeDelayMillis(EndpointState primary) {
+        RoutingProperties.Hedge hedge = properties.getHedge();
+        long delay = primary.percentile(hedge.getPercentile(), hedge.getMinSamples());
+        if (delay < 0) {
+            delay = hedge.getInitialDelay().toMillis();
+        }
+        return Math.max(hedge.getMinDelay().toMillis(), Math.min(hedge.getMaxDelay().toMillis(), delay));
+    }
+
+    private synchronized boolean takeHedgeBudget() {
+        if (hedgeBudget < 1) {
+            return false;
+        }
+        hedgeBudget -= 1;
+        return true;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException || e instanceof UncheckedIOException)
+                && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    // 与准入控制的重试条件一致：429/5xx、首字节超时和连接错误换一个端点可能成功
+    private static boolean isFailoverable(Throwable e) {
+        if (e instanceof UpstreamStatusException) {
+            return ((UpstreamStatusException) e).isRetryable();
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * 一次对话请求在各端点上的尝试，最多每个端点一次
+     */
+    private final class HedgedCall {
+        private final String body;
+        private final Map<String, Object> requestBody;
+        private final DeepSeekStreamDecoder.Listener listener;
+        private final UpstreamScheduler.Permit permit;
+        private final Cancellation cancellation;
+        private final List<EndpointState> ranked;
+        private final CompletableFuture<HttpResponse<Void>> result = new CompletableFuture<>();
+        // 以下字段在 synchronized(this) 下访问
+        private final List<Attempt> attempts = new ArrayList<>();
+        private int next;
+        private Attempt winner;
+
+        private HedgedCall(String body, Map<String, Object> requestBody, DeepSeekStreamDecoder.Listener listener,
+                           UpstreamScheduler.Permit permit, Cancellation cancellation, List<EndpointState> ranked) {
+            this.body = body;
+            this.requestBody = requestBody;
+            this.listener = listener;
+            this.permit = permit;
+            this.cancellation = cancellation;
+            this.ranked = ranked;
+            cancellation.onCancel(() -> {
+                List<Attempt> running;
+                synchronized (this) {
+                    running = new ArrayList<>(attempts);
+                }
+                running.forEach(Attempt::cancel);
+            });
+        }
+
+        // 还没有端点输出首 token 时向下一个端点发出对冲请求
+        private void hedge() {
+            synchronized (this) {
+                if (winner != null || result.isDone() || next >= ranked.size()) {
+                    return;
+                }
+            }
+            // 连接池已满时对冲请求只能排队，不会比主请求更快，还会占用主请求释放的名额
+            if (deepseekClient.availablePermits() == 0) {
+                hedgePoolExhausted.incrementAndGet();
+                return;
+            }
+            if (!takeHedgeBudget()) {
+                hedgeBudgetExhausted.incrementAndGet();
+                return;
+            }
+            if (launchNext(true)) {
+                hedges.incrementAndGet();
+            }
+        }
+
+        private boolean launchNext(boolean hedged) {
+            Attempt attempt;
+            synchronized (this) {
+                if (winner != null || result.isDone() || next >= ranked.size() || cancellation.isCancelled()) {
+                    return false;
+                }
+                attempt = new Attempt(this, ranked.get(next++), hedged);
+                attempts.add(attempt);
+            }
+            attempt.send();
+            return true;
+        }
+
+        private synchronized boolean isLoser(Attempt attempt) {
+            return winner != null && winner != attempt;
+        }
+
+        // 第一个输出增量的尝试胜出，其余的取消；返回 attempt 是否为胜出方
+        private boolean claim(Attempt attempt) {
+            List<Attempt> losers = new ArrayList<>();
+            synchronized (this) {
+                if (winner != null) {
+                    return winner == attempt;
+                }
+                winner = attempt;
+                for (Attempt other : attempts) {
+                    if (other != attempt) {
+                        losers.add(other);
+                    }
+                }
+            }
+            long now = System.nanoTime();
+            attempt.endpoint.recordFirstToken(TimeUnit.NANOSECONDS.toMillis(now - attempt.startNanos));
+            if (attempt.hedged) {
+                hedgeWins.incrementAndGet();
+            }
+            for (Attempt loser : losers) {
+                if (!loser.failed) {
+                    // 被对冲取消的一方至少要这么久，作为延迟样本的下限计入
+                    loser.endpoint.recordFirstToken(TimeUnit.NANOSECONDS.toMillis(now - loser.startNanos));
+                    loser.cancel();
+                }
+            }
+            debugEchoSink.echo("\n" + "=".repeat(20) + "思考过程" + "=".repeat(20) + "\n\n");
+            return true;
+        }
+
+        private void onDone(Attempt attempt, HttpResponse<Void> response, Throwable error) {
+            if (error == null) {
+                // 没有输出任何增量就正常结束时同样算胜出
+                if (claim(attempt)) {
+                    attempt.endpoint.recordOutcome(false);
+                    result.complete(response);
+                }
+                return;
+            }
+            Throwable cause = unwrap(error);
+            boolean failover;
+            boolean othersRunning = false;
+            synchronized (this) {
+                if (winner != null && winner != attempt) {
+                    // 被取消的落后方
+                    return;
+                }
+                attempt.failed = true;
+                if (winner == null) {
+                    for (Attempt other : attempts) {
+                        othersRunning |= !other.failed;
+                    }
+                }
+                failover = winner == null && !othersRunning && next < ranked.size() && !cancellation.isCancelled()
+                        && isFailoverable(cause);
+            }
+            if (!(cause instanceof CancellationException)) {
+                attempt.endpoint.recordOutcome(true);
+            }
+            if (othersRunning) {
+                // 另一个端点还在等待首 token
+                return;
+            }
+            if (failover && launchNext(false)) {
+                failovers.incrementAndGet();
+                return;
+            }
+            result.completeExceptionally(cause);
+        }
+    }
+
+    private final class Attempt implements DeepSeekStreamDecoder.Listener {
+        private final HedgedCall call;
+        private final EndpointState endpoint;
+        private final boolean hedged;
+        private final long startNanos = System.nanoTime();
+        private volatile CompletableFuture<HttpResponse<Void>> exchange;
+        private volatile boolean won;
+        // 在 synchronized(call) 下写入
+        private volatile boolean failed;
+
+        private Attempt(HedgedCall call, EndpointState endpoint, boolean hedged) {
+            this.call = call;
+            this.endpoint = endpoint;
+            this.hedged = hedged;
+        }
+
+        private void send() {
+            endpoint.attempts.incrementAndGet();
+            String requestBody;
+            try {
+                requestBody = bodyFor(endpoint);
+            } catch (JsonProcessingException e) {
+                call.onDone(this, null, e);
+                return;
+            }
+            HttpRequest.Builder builder = deepseekClient.newRequest(URI.create(endpoint.config.getUrl()))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(requestBody));
+            if (endpoint.config.getApiKey() != null) {
+                builder.header("Authorization", endpoint.config.getApiKey());
+            }
+            CompletableFuture<HttpResponse<Void>> sent = deepseekClient.sendAsync(builder.build(), responseInfo -> {
+                call.permit.responseStarted();
+                if (responseInfo.statusCode() != 200) {
+                    return HttpResponse.BodySubscribers.mapping(
+                            HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+                            responseBody -> {
+                                throw new UncheckedIOException(new UpstreamStatusException(responseInfo.statusCode(),
+                                        UpstreamStatusException.retryAfter(responseInfo.headers()),
+                                        endpoint.config.getName() + " request failed: HTTP " + responseInfo.statusCode()
+                                                + " " + responseBody));
+                            });
+                }
+                return new DeepSeekStreamDecoder(this);
+            });
+            exchange = sent;
+            sent.whenComplete((response, e) -> call.onDone(this, response, e));
+            // 发送期间前端已断开，或者其他端点已经胜出
+            if (call.cancellation.isCancelled() || call.isLoser(this)) {
+                cancel();
+            }
+        }
+
+        private String bodyFor(EndpointState endpoint) throws JsonProcessingException {
+            String model = endpoint.config.getModel();
+            if (model == null || model.equals(call.requestBody.get("model"))) {
+                return call.body;
+            }
+            Map<String, Object> copy = new LinkedHashMap<>(call.requestBody);
+            copy.put("model", model);
+            return objectMapper.writeValueAsString(copy);
+        }
+
+        private void cancel() {
+            CompletableFuture<HttpResponse<Void>> current = exchange;
+            if (current != null) {
+                current.cancel(true);
+            }
+        }
+
+        // 落后方抛出取消异常，解码器随即停止读取
+        private void checkWinner() {
+            if (!won) {
+                if (!call.claim(this)) {
+                    throw new CancellationException("lost hedged race");
+                }
+                won = true;
+            }
+        }
+
+        @Override
+        public void onReasoning(String reasoningContent) throws IOException {
+            checkWinner();
+            call.listener.onReasoning(reasoningContent);
+        }
+
+        @Override
+        public void onContent(String content) throws IOException {
+            checkWinner();
+            call.listener.onContent(content);
+        }
+
+        @Override
+        public void onUsage(TokenUsage usage) {
+            if (won) {
+                call.listener.onUsage(usage);
+            }
+        }
+
+        @Override
+        public void onDone() {
+            if (won) {
+                call.listener.onDone();
+            }
+        }
+    }
+
+    /**
+     * 单个端点的配置和统计
+     */
+    private static final class EndpointState {
+        private final RoutingProperties.Endpoint config;
+        private final int order;
+        // 首 token 延迟的环形缓冲（毫秒），在 synchronized(this) 下访问
+        private final long[] latencies;
+        private int latencyCount;
+        private int latencyIndex;
+        private volatile double latencyEwma = Double.NaN;
+        private volatile double errorRate;
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong firstTokens = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        private EndpointState(RoutingProperties.Endpoint config, int order, int window) {
+            this.config = config;
+            this.order = order;
+            this.latencies = new long[window];
+        }
+
+        private synchronized void recordFirstToken(long millis) {
+            firstTokens.incrementAndGet();
+            latencies[latencyIndex] = millis;
+            latencyIndex = (latencyIndex + 1) % latencies.length;
+            latencyCount = Math.min(latencyCount + 1, latencies.length);
+            latencyEwma = Double.isNaN(latencyEwma) ? millis : latencyEwma + LATENCY_ALPHA * (millis - latencyEwma);
+        }
+
+        private synchronized void recordOutcome(boolean error) {
+            if (error) {
+                errors.incrementAndGet();
+            }
+            errorRate += ERROR_ALPHA * ((error ? 1 : 0) - errorRate);
+        }
+
+        // 样本数不足 minSamples 时返回 -1
+        private synchronized long percentile(double percentile, int minSamples) {
+            if (latencyCount == 0 || latencyCount < minSamples) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * latencyCount) - 1;
+            return sorted[Math.max(0, Math.min(latencyCount - 1, index))];
+        }
+
+        private Map<String, Object> stats(double hedgePercentile) {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("name", config.getName());
+            stats.put("model", config.getModel());
+            stats.put("priority", config.getPriority());
+            stats.put("firstTokenEwmaMillis", Double.isNaN(latencyEwma) ? null : Math.round(latencyEwma));
+            long p50 = percentile(0.5, 1);
+            long hedgeAt = percentile(hedgePercentile, 1);
+            stats.put("firstTokenP50Millis", p50 < 0 ? null : p50);
+            stats.put("firstTokenHedgePercentileMillis", hedgeAt < 0 ? null : hedgeAt);
+            stats.put("errorRate", Math.round(errorRate * 1000) / 1000.0);
+            stats.put("attempts", attempts.get());
+            stats.put("firstTokens", firstTokens.get());
+            stats.put("errors", errors.get());
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.brain.llm.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 组装发送给 deepseek 的 messages，尽量保持前缀不变以命中 deepseek 的上下文硬盘缓存：
+ * 固定的系统提示词在最前，其后是历史对话（只保存用户问题和回答），
+ * 本轮检索到的参考信息只拼进本轮的用户消息，不写入历史
+ */
+@Component
+public class PromptAssembler {
+
+    // 固定系统提示词，修改后所有会话的缓存前缀都会失效
+    @Value("${chat.system-prompt:你是一个智能助手，请使用中文回答用户问题。如果用户消息中提供了参考信息，请优先基于参考信息回答。}")
+    private String systemPrompt;
+
+    /**
+     * @param history 会话历史，最后一条是本轮的用户问题
+     * @param context 本轮检索到的参考信息，可以为空
+     */
+    public List<Map<String, String>> assemble(List<Map<String, String>> history, String context) {
+        List<Map<String, String>> messages = new ArrayList<>(history.size() + 1);
+        if (!systemPrompt.isEmpty()) {
+            messages.add(message("system", systemPrompt));
+        }
+        int last = history.size() - 1;
+        for (int i = 0; i < last; i++) {
+            messages.add(history.get(i));
+        }
+        Map<String, String> question = history.get(last);
+        if (context.isEmpty()) {
+            messages.add(question);
+        } else {
+            messages.add(message(question.get("role"), "请基于以下参考信息回答用户问题：\n" + context + "\n\n用户问题：" + question.get("content")));
+        }
+        return messages;
+    }
+
+    // 固定字段顺序，保证同一条消息每次序列化的字节完全一致
+    public static Map<String, String> message(String role, String content) {
+        Map<String, String> message = new LinkedHashMap<>(4);
+        message.put("role", role);
+        message.put("content", content);
+        return message;
+    }
+}
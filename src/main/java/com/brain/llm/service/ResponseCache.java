@@ -0,0 +1,483 @@
+package com.brain.llm.service;
+
+import com.brain.llm.util.Cancellation;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 完全相同请求的回答缓存（默认关闭）
+ * key 为发给 deepseek 的完整请求体的 SHA-256，包括模型、带参考信息的系统提示词、历史和问题，
+ * 参考信息或历史有任何不同都不会命中；缓存内容是思考过程和回答的增量序列，命中后按记录的节奏重放
+ * 同一个 key 正在生成时，后来的请求跟随这次生成实时输出，不重复请求上游；
+ * 生成方断开时只要还有跟随的请求，上游就继续生成，最后一个参与者离开后才中止
+ */
+@Component
+public class ResponseCache {
+
+    // 两个增量间隔小于该值且类型相同时合并为一段记录
+    private static final long MERGE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Value("${chat.response-cache.enabled:false}")
+    private boolean enabled;
+    @Value("${chat.response-cache.ttl:30m}")
+    private Duration ttl;
+    // 最大缓存条目数
+    @Value("${chat.response-cache.max-entries:1000}")
+    private int maxEntries;
+    // 所有缓存的思考过程和回答的总字符数上限
+    @Value("${chat.response-cache.max-chars:20000000}")
+    private long maxChars;
+    // 重放速度为原始生成速度的倍数，0 表示不等待直接输出
+    @Value("${chat.response-cache.replay-speed:0}")
+    private double replaySpeed;
+    // 按节奏重放时两段之间的最大等待时间
+    @Value("${chat.response-cache.max-replay-gap:200ms}")
+    private Duration maxReplayGap;
+
+    @Resource(name = "sseFlushScheduler")
+    private ScheduledExecutorService replayScheduler;
+
+    private final ConcurrentHashMap<String, Recording> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalChars = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    // 跟随正在进行的生成
+    private final AtomicLong follows = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // 生成失败或被取消，没有缓存
+    private final AtomicLong discarded = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public static String key(String requestBody) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(requestBody.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 已完成或正在生成的记录直接返回；都没有时创建新记录并由调用方生成（isOwner 为 true），
+     * 生成结束后必须调用 complete 或 fail
+     */
+    public Lookup lookup(String key) {
+        long now = System.nanoTime();
+        Recording recording = entries.get(key);
+        if (recording != null && recording.isExpired(now)) {
+            remove(key, recording);
+            recording = null;
+        }
+        if (recording != null && recording.isAbandoned()) {
+            // 所有参与者都已离开、上游正在中止的生成不再跟随
+            entries.remove(key, recording);
+            recording = null;
+        }
+        if (recording == null) {
+            Recording created = new Recording(key);
+            recording = entries.putIfAbsent(key, created);
+            if (recording == null) {
+                misses.incrementAndGet();
+                return new Lookup(created, true);
+            }
+        }
+        recording.lastAccess = now;
+        (recording.isCompleted() ? hits : follows).incrementAndGet();
+        return new Lookup(recording, false);
+    }
+
+    /**
+     * 把缓存的内容写给前端，返回完整回答
+     * 生成方在输出任何内容之前失败时返回 null，由调用方自己请求上游
+     */
+    public CompletableFuture<String> serve(Recording recording, SseEventWriter writer, Cancellation cancellation) {
+        if (recording.isCompleted()) {
+            return replay(recording, writer, cancellation);
+        }
+        return recording.follow(writer, cancellation);
+    }
+
+    /**
+     * 生成成功：通知跟随的请求，回答非空且上游完整结束时放入缓存
+     * @param finished 是否收到了 [DONE]，没有收到的回答可能被截断，只交给跟随的请求，不缓存
+     */
+    public void complete(Recording recording, String answer, boolean finished) {
+        recording.finish(answer, null);
+        if (!finished || answer == null || answer.isBlank() || recording.chars > maxChars) {
+            discarded.incrementAndGet();
+            entries.remove(recording.key, recording);
+            return;
+        }
+        recording.expiresAt = System.nanoTime() + ttl.toNanos();
+        synchronized (recording) {
+            // 生成期间已被淘汰的记录不再计入总字符数
+            if (!recording.removed) {
+                totalChars.addAndGet(recording.chars);
+                recording.counted = true;
+            }
+        }
+        if (totalChars.get() > maxChars || entries.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    // 生成失败或被取消：不缓存，跟随的请求按是否已输出内容决定报错还是自己重新请求
+    public void fail(Recording recording, Throwable error) {
+        discarded.incrementAndGet();
+        entries.remove(recording.key, recording);
+        recording.finish(null, error);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("entries", entries.size());
+        stats.put("totalChars", totalChars.get());
+        stats.put("hits", hits.get());
+        stats.put("follows", follows.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("discarded", discarded.get());
+        return stats;
+    }
+
+    // replay-speed 大于 0 时按记录的间隔（除以倍数）在定时线程上逐段输出，否则一次写完
+    private CompletableFuture<String> replay(Recording recording, SseEventWriter writer, Cancellation cancellation) {
+        List<Segment> segments = recording.segments;
+        if (replaySpeed <= 0) {
+            try {
+                for (Segment segment : segments) {
+                    writer.append(segment.event, segment.field, segment.text.toString());
+                }
+            } catch (IOException | IllegalStateException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return CompletableFuture.completedFuture(recording.answer);
+        }
+        CompletableFuture<String> result = new CompletableFuture<>();
+        replayStep(recording, 0, writer, cancellation, result);
+        return result;
+    }
+
+    private void replayStep(Recording recording, int index, SseEventWriter writer, Cancellation cancellation,
+                            CompletableFuture<String> result) {
+        List<Segment> segments = recording.segments;
+        if (cancellation.isCancelled()) {
+            result.completeExceptionally(new CancellationException("client disconnected"));
+            return;
+        }
+        if (index >= segments.size()) {
+            result.complete(recording.answer);
+            return;
+        }
+        Segment segment = segments.get(index);
+        try {
+            writer.append(segment.event, segment.field, segment.text.toString());
+        } catch (IOException | IllegalStateException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        if (index + 1 >= segments.size()) {
+            result.complete(recording.answer);
+            return;
+        }
+        long gap = (long) ((segments.get(index + 1).offsetNanos - segment.offsetNanos) / replaySpeed);
+        long delay = Math.min(gap, maxReplayGap.toNanos());
+        try {
+            replayScheduler.schedule(() -> replayStep(recording, index + 1, writer, cancellation, result),
+                    delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    // 先清理过期条目，仍超出上限时按最近最少使用淘汰已完成的记录，直到降到上限的 90%
+    private void evict() {
+        synchronized (evictionLock) {
+            long now = System.nanoTime();
+            entries.forEach((key, recording) -> {
+                if (recording.isExpired(now)) {
+                    remove(key, recording);
+                }
+            });
+            if (totalChars.get() <= maxChars && entries.size() <= maxEntries) {
+                return;
+            }
+            List<Recording> candidates = new ArrayList<>();
+            entries.values().forEach(recording -> {
+                if (recording.isCompleted()) {
+                    candidates.add(recording);
+                }
+            });
+            candidates.sort(Comparator.comparingLong(recording -> recording.lastAccess));
+            long targetChars = maxChars / 10 * 9;
+            int targetEntries = maxEntries / 10 * 9;
+            for (Recording candidate : candidates) {
+                if (totalChars.get() <= targetChars && entries.size() <= targetEntries) {
+                    break;
+                }
+                remove(candidate.key, candidate);
+            }
+        }
+    }
+
+    private void remove(String key, Recording recording) {
+        if (entries.remove(key, recording)) {
+            evictions.incrementAndGet();
+            synchronized (recording) {
+                recording.removed = true;
+                if (recording.counted) {
+                    totalChars.addAndGet(-recording.chars);
+                    recording.counted = false;
+                }
+            }
+        }
+    }
+
+    public static final class Lookup {
+        private final Recording recording;
+        private final boolean owner;
+
+        private Lookup(Recording recording, boolean owner) {
+            this.recording = recording;
+            this.owner = owner;
+        }
+
+        public Recording getRecording() {
+            return recording;
+        }
+
+        // 为 true 时由调用方请求上游并记录
+        public boolean isOwner() {
+            return owner;
+        }
+    }
+
+    private static final class Segment {
+        private final String event;
+        private final String field;
+        private final StringBuilder text;
+        // 相对记录开始的时间
+        private final long offsetNanos;
+        private long lastNanos;
+
+        private Segment(String event, String field, String text, long offsetNanos) {
+            this.event = event;
+            this.field = field;
+            this.text = new StringBuilder(text);
+            this.offsetNanos = offsetNanos;
+            this.lastNanos = offsetNanos;
+        }
+    }
+
+    private static final class Follower {
+        private final SseEventWriter writer;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        // 保证补发的内容先于后续增量写出，持有时不会再获取 recording 的锁
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        private Follower(SseEventWriter writer) {
+            this.writer = writer;
+        }
+    }
+
+    /**
+     * 一次生成的增量序列，由生成方的 IO 线程写入，同时转发给跟随的请求
+     * 完成后不再修改，重放时不需要加锁
+     */
+    public static final class Recording {
+        private final String key;
+        private final long startNanos = System.nanoTime();
+        private final List<Segment> segments = new ArrayList<>();
+        private final List<Follower> followers = new ArrayList<>();
+        // 上游请求的取消信号，生成方和所有跟随方都离开后才触发
+        private final Cancellation upstream = new Cancellation();
+        private volatile boolean completed;
+        private volatile boolean abandoned;
+        private volatile long expiresAt;
+        private volatile long lastAccess = startNanos;
+        private String answer;
+        // 以下字段在 synchronized(recording) 下访问
+        private boolean finished;
+        private int chars;
+        private boolean counted;
+        private boolean removed;
+        private boolean ownerLeft;
+
+        private Recording(String key) {
+            this.key = key;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /**
+         * 生成方用返回的取消信号请求上游：生成方断开时如果还有跟随的请求，上游继续生成
+         */
+        public Cancellation attachOwner(Cancellation ownerCancellation) {
+            ownerCancellation.onCancel(() -> {
+                synchronized (this) {
+                    ownerLeft = true;
+                }
+                cancelIfAbandoned();
+            });
+            return upstream;
+        }
+
+        private boolean isAbandoned() {
+            return abandoned;
+        }
+
+        // 生成方和所有跟随方都已离开时中止上游
+        private void cancelIfAbandoned() {
+            synchronized (this) {
+                if (!ownerLeft || !followers.isEmpty() || finished) {
+                    return;
+                }
+                abandoned = true;
+            }
+            upstream.cancel();
+        }
+
+        private boolean isExpired(long now) {
+            return completed && now - expiresAt > 0;
+        }
+
+        /**
+         * 记录一段增量并转发给跟随的请求，跟随方写出失败（前端已断开）时只移除该跟随方
+         * 在锁内只记录并复制跟随方列表，写出在锁外进行，慢的跟随方不会阻塞生成方的记录
+         */
+        public void record(String event, String field, String text) {
+            List<Follower> toWrite;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                long offset = System.nanoTime() - startNanos;
+                Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (last != null && last.event.equals(event) && offset - last.lastNanos < MERGE_NANOS) {
+                    last.text.append(text);
+                    last.lastNanos = offset;
+                } else {
+                    segments.add(new Segment(event, field, text, offset));
+                }
+                chars += text.length();
+                if (followers.isEmpty()) {
+                    return;
+                }
+                toWrite = new ArrayList<>(followers);
+            }
+            for (Follower follower : toWrite) {
+                follower.writeLock.lock();
+                try {
+                    follower.writer.append(event, field, text);
+                } catch (IOException | IllegalStateException e) {
+                    leave(follower, e);
+                } finally {
+                    follower.writeLock.unlock();
+                }
+            }
+        }
+
+        // 先补发已经记录的内容，再接收后续增量
+        private CompletableFuture<String> follow(SseEventWriter writer, Cancellation cancellation) {
+            Follower follower = new Follower(writer);
+            List<Segment> recorded;
+            synchronized (this) {
+                if (finished && !completed) {
+                    // 生成方已经失败，重新查找
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (finished) {
+                    recorded = segments;
+                } else {
+                    // 复制已记录的内容，在锁外补发；补发完成前后续增量在 writeLock 上等待，保证顺序
+                    recorded = new ArrayList<>(segments.size());
+                    for (Segment segment : segments) {
+                        recorded.add(new Segment(segment.event, segment.field, segment.text.toString(), segment.offsetNanos));
+                    }
+                    follower.writeLock.lock();
+                    followers.add(follower);
+                }
+            }
+            try {
+                for (Segment segment : recorded) {
+                    writer.append(segment.event, segment.field, segment.text.toString());
+                }
+            } catch (IOException | IllegalStateException e) {
+                leave(follower, e);
+                return CompletableFuture.failedFuture(e);
+            } finally {
+                if (follower.writeLock.isHeldByCurrentThread()) {
+                    follower.writeLock.unlock();
+                }
+            }
+            if (recorded == segments) {
+                return CompletableFuture.completedFuture(answer);
+            }
+            cancellation.onCancel(() -> leave(follower, new CancellationException("client disconnected")));
+            return follower.result;
+        }
+
+        // 跟随方断开或写出失败
+        private void leave(Follower follower, Throwable error) {
+            synchronized (this) {
+                followers.remove(follower);
+            }
+            follower.result.completeExceptionally(error);
+            cancelIfAbandoned();
+        }
+
+        private void finish(String answer, Throwable error) {
+            List<Follower> toNotify;
+            boolean hadOutput;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                this.answer = answer;
+                hadOutput = !segments.isEmpty();
+                toNotify = new ArrayList<>(followers);
+                followers.clear();
+                if (error == null) {
+                    for (Segment segment : segments) {
+                        segment.text.trimToSize();
+                    }
+                    completed = true;
+                }
+            }
+            for (Follower follower : toNotify) {
+                if (error == null) {
+                    follower.result.complete(answer);
+                } else if (hadOutput) {
+                    // 已经输出了一部分内容，无法无缝切换到新的生成
+                    follower.result.completeExceptionally(error);
+                } else {
+                    follower.result.complete(null);
+                }
+            }
+        }
+    }
+}
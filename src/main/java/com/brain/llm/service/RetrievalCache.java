@@ -0,0 +1,225 @@
+package com.brain.llm.service;
+
+import com.brain.llm.domain.Passage;
+import com.brain.llm.util.Cancellation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 联网搜索和知识库检索结果缓存
+ * key 为检索源 + 归一化后的问题 + top_k + maxToggle；同一个 key 并发未命中时只发起一次上游请求，
+ * 按条目数和总字符数限制容量，每个检索源单独设置过期时间
+ */
+@Component
+public class RetrievalCache {
+
+    @Value("${chat.retrieval.cache.enabled:true}")
+    private boolean enabled;
+    // 最大缓存条目数
+    @Value("${chat.retrieval.cache.max-entries:10000}")
+    private int maxEntries;
+    // 所有缓存内容的总字符数上限
+    @Value("${chat.retrieval.cache.max-chars:50000000}")
+    private long maxChars;
+    // 联网搜索结果过期时间
+    @Value("${chat.retrieval.cache.search-ttl:10m}")
+    private Duration searchTtl;
+    // 知识库结果过期时间
+    @Value("${chat.retrieval.cache.rag-ttl:1h}")
+    private Duration ragTtl;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalChars = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final Object evictionLock = new Object();
+
+    /**
+     * 命中直接返回缓存结果，未命中时在 executor 上执行 loader
+     * 返回的是副本，调用方取消（例如检索超时）不会影响其他等待同一结果的请求；
+     * 只有所有等待同一次加载的请求都被 cancellation 取消时，才会中止这次加载
+     */
+    public CompletableFuture<List<Passage>> get(String source, String query, int topK, boolean maxToggle,
+                                                Function<Cancellation, List<Passage>> loader, Executor executor,
+                                                Cancellation cancellation) {
+        if (!enabled) {
+            try {
+                return CompletableFuture.supplyAsync(() -> loader.apply(cancellation), executor);
+            } catch (RejectedExecutionException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        String key = source + '\u0000' + normalize(query) + '\u0000' + topK + '\u0000' + maxToggle;
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(now)) {
+            remove(key, entry);
+            entry = null;
+        }
+        if (entry != null && entry.value.isDone()) {
+            hits.incrementAndGet();
+            entry.lastAccess = now;
+            return entry.value.copy();
+        }
+
+        misses.incrementAndGet();
+        if (entry == null) {
+            Entry created = new Entry(now + ttl(source).toNanos());
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                created.join(cancellation);
+                load(key, created, loader, executor);
+                return created.value.copy();
+            }
+        }
+        // 其他请求正在加载同一个 key
+        entry.lastAccess = now;
+        entry.join(cancellation);
+        return entry.value.copy();
+    }
+
+    private void load(String key, Entry created, Function<Cancellation, List<Passage>> loader, Executor executor) {
+        CompletableFuture<List<Passage>> loading;
+        try {
+            loading = CompletableFuture.supplyAsync(() -> loader.apply(created.loadCancellation), executor);
+        } catch (RejectedExecutionException e) {
+            // 线程池已满，撤下已发布的条目，否则之后同一个 key 的请求都会等待一个永远不会完成的加载
+            loadFailures.incrementAndGet();
+            entries.remove(key, created);
+            created.value.completeExceptionally(e);
+            return;
+        }
+        loading.whenComplete((value, e) -> {
+            if (e != null) {
+                // 失败的结果不缓存
+                loadFailures.incrementAndGet();
+                entries.remove(key, created);
+                created.value.completeExceptionally(e);
+                return;
+            }
+            if (created.loadCancellation.isCancelled()) {
+                // 被取消的加载可能返回了不完整的结果，只交给仍在等待的请求，不缓存
+                entries.remove(key, created);
+                created.value.complete(value);
+                return;
+            }
+            synchronized (created) {
+                // 加载期间已被淘汰或清空的条目不再计入总字符数
+                if (!created.removed) {
+                    created.chars = value == null ? 0 : value.stream().mapToInt(Passage::length).sum();
+                    totalChars.addAndGet(created.chars);
+                }
+            }
+            created.value.complete(value);
+            if (totalChars.get() > maxChars || entries.size() > maxEntries) {
+                evict();
+            }
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("totalChars", totalChars.get());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("loadFailures", loadFailures.get());
+        return stats;
+    }
+
+    // 先清理过期条目，仍超出上限时按最近最少使用淘汰，直到降到上限的 90%
+    private void evict() {
+        synchronized (evictionLock) {
+            long now = System.nanoTime();
+            entries.forEach((key, entry) -> {
+                if (entry.isExpired(now)) {
+                    remove(key, entry);
+                }
+            });
+            if (totalChars.get() <= maxChars && entries.size() <= maxEntries) {
+                return;
+            }
+            List<Map.Entry<String, Entry>> candidates = new ArrayList<>(entries.entrySet());
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.getValue().lastAccess));
+            long targetChars = maxChars / 10 * 9;
+            int targetEntries = maxEntries / 10 * 9;
+            for (Map.Entry<String, Entry> candidate : candidates) {
+                if (totalChars.get() <= targetChars && entries.size() <= targetEntries) {
+                    break;
+                }
+                remove(candidate.getKey(), candidate.getValue());
+            }
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            evictions.incrementAndGet();
+            synchronized (entry) {
+                entry.removed = true;
+                totalChars.addAndGet(-entry.chars);
+                entry.chars = 0;
+            }
+        }
+    }
+
+    private Duration ttl(String source) {
+        return RetrievalService.SOURCE_SEARCH.equals(source) ? searchTtl : ragTtl;
+    }
+
+    // 归一化问题：全半角统一、忽略大小写、合并空白、去掉结尾标点
+    static String normalize(String query) {
+        String normalized = Normalizer.normalize(query == null ? "" : query, Normalizer.Form.NFKC)
+                .toLowerCase(Locale.ROOT)
+                .trim()
+                .replaceAll("\\s+", " ");
+        int end = normalized.length();
+        while (end > 0 && "?!.。？！~".indexOf(normalized.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        return normalized.substring(0, end);
+    }
+
+    private static class Entry {
+        private final CompletableFuture<List<Passage>> value = new CompletableFuture<>();
+        // 所有等待者都取消后中止加载
+        private final Cancellation loadCancellation = new Cancellation();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private final long expiresAt;
+        private volatile long lastAccess = System.nanoTime();
+        // 以下字段在 synchronized(entry) 下访问
+        private int chars;
+        private boolean removed;
+
+        private Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+
+        private void join(Cancellation cancellation) {
+            waiters.incrementAndGet();
+            cancellation.onCancel(() -> {
+                if (waiters.decrementAndGet() == 0 && !value.isDone()) {
+                    loadCancellation.cancel();
+                }
+            });
+        }
+    }
+}
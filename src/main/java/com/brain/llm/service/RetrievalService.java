@@ -0,0 +1,242 @@
+package com.brain.llm.service;
+
+import com.brain.llm.domain.ChatRequest;
+import com.brain.llm.domain.Passage;
+import com.brain.llm.domain.RetrievalResult;
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.SearchUtils;
+import com.brain.llm.util.UpstreamHttpClient;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 检索阶段：所有启用的检索源并发执行，共用一个截止时间，
+ * 到期后只拼装已经返回的结果，其余检索源记为超时；拼装（去重、排序、token 预算）由 ContextPacker 完成
+ */
+@Service
+public class RetrievalService {
+
+    public static final String SOURCE_SEARCH = "search";
+    public static final String SOURCE_RAG = "rag";
+    // searXNG 返回的结果个数
+    private static final int SEARCH_TOP_K = 3;
+
+    @Value("${deepseek.search-engine}")
+    private String searchEngine;
+    // python 知识库服务地址
+    @Value("${upstream.rag.base-url:http://localhost:5001}")
+    private String ragBaseUrl;
+    // 检索阶段的总截止时间
+    @Value("${chat.retrieval.deadline:8s}")
+    private Duration deadline;
+    // 是否使用 es 知识库（优先于进程内检索和 python 服务）
+    @Value("${esKnn.enabled:false}")
+    private boolean esEnabled;
+    // hybrid：BM25 + kNN 并发检索后 RRF 融合；knn：原来的带 match 过滤的 kNN 检索
+    @Value("${esKnn.mode:hybrid}")
+    private String esMode;
+
+    @Resource(name = "chatExecutor")
+    private Executor chatExecutor;
+    @Resource
+    private UpstreamHttpClient ragClient;
+    @Resource
+    private SearchUtils searchUtils;
+    // 只在 esKnn.enabled 或 ingest.enabled 开启时存在
+    @Autowired(required = false)
+    private ElasticsearchKnnSearch elasticsearchKnnSearch;
+    @Resource
+    private RetrievalCache retrievalCache;
+    @Resource
+    private VectorSearchEngine vectorSearchEngine;
+    @Resource
+    private EmbeddingClient embeddingClient;
+    @Resource
+    private ContextPacker contextPacker;
+    @Resource
+    private ChatMetrics chatMetrics;
+
+    // 前端断开时 cancellation 会中止正在进行的检索
+    public CompletableFuture<RetrievalResult> retrieve(ChatRequest request, Cancellation cancellation) {
+        return retrieve(request, cancellation, chatExecutor);
+    }
+
+    /**
+     * 检索加载和结果拼装在 executor 上执行，批量对话使用自己的线程池，不占用交互对话的 chatExecutor
+     */
+    public CompletableFuture<RetrievalResult> retrieve(ChatRequest request, Cancellation cancellation, Executor executor) {
+        // 按拼装顺序保存各检索源
+        Map<String, CompletableFuture<List<Passage>>> sources = new LinkedHashMap<>();
+        if (request.isUseSearch()) {
+            sources.put(SOURCE_SEARCH, retrievalCache.get(SOURCE_SEARCH, request.getMessage(), SEARCH_TOP_K,
+                    request.isMaxToggle(), loadCancellation -> webSearch(request, loadCancellation), executor, cancellation));
+        }
+        if (request.isUseRAG()) {
+            sources.put(SOURCE_RAG, retrievalCache.get(SOURCE_RAG, request.getMessage(), ragTopK(request),
+                    request.isMaxToggle(), loadCancellation -> knowledgeBase(request, loadCancellation), executor, cancellation));
+        }
+        if (sources.isEmpty()) {
+            return CompletableFuture.completedFuture(new RetrievalResult("", List.of(), List.of(), 0, 0));
+        }
+
+        // 全部返回或到达截止时间后拼装；截止时间由 JDK 共用的单个定时线程触发，拼装（去重、截断）交给 executor
+        CompletableFuture<RetrievalResult> result = CompletableFuture.allOf(sources.values().toArray(new CompletableFuture<?>[0]))
+                .completeOnTimeout(null, deadline.toMillis(), TimeUnit.MILLISECONDS)
+                .handleAsync((ignored, e) -> assemble(sources, request.isMaxToggle()), executor);
+        cancellation.onCancel(() -> result.cancel(false));
+        return result;
+    }
+
+    private RetrievalResult assemble(Map<String, CompletableFuture<List<Passage>>> sources, boolean maxToggle) {
+        Map<String, List<Passage>> results = new LinkedHashMap<>();
+        List<String> timedOut = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        sources.forEach((name, future) -> {
+            if (!future.isDone()) {
+                timedOut.add(name);
+                future.cancel(true);
+            } else if (future.isCompletedExceptionally()) {
+                failed.add(name);
+                future.exceptionally(e -> {
+                    System.err.println("检索失败 " + name + ": " + e.getMessage());
+                    return null;
+                });
+            } else {
+                results.put(name, future.join());
+            }
+        });
+        if (!timedOut.isEmpty()) {
+            System.out.println("检索超时: " + timedOut);
+        }
+        ContextPacker.Packed packed = contextPacker.pack(results, maxToggle);
+        if (packed.getCandidateTokens() > packed.getContextTokens()) {
+            System.out.println("参考信息 token: " + packed.getCandidateTokens() + " -> " + packed.getContextTokens());
+        }
+        return new RetrievalResult(packed.getContext(), timedOut, failed, packed.getCandidateTokens(), packed.getContextTokens());
+    }
+
+    // 知识库返回的参考个数
+    private static int ragTopK(ChatRequest request) {
+        return request.isMaxToggle() ? 10 : 5;
+    }
+
+    // 联网搜索
+    private List<Passage> webSearch(ChatRequest request, Cancellation cancellation) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<Passage> passages = searchPassages(searchWeb(request, cancellation));
+            success = true;
+            return passages;
+        } finally {
+            chatMetrics.recordStage(ChatMetrics.STAGE_WEB_SEARCH, start, success);
+        }
+    }
+
+    // 失败和取消抛出异常，不会把空结果写入缓存
+    private List<Map<String, String>> searchWeb(ChatRequest request, Cancellation cancellation) {
+        List<Map<String, String>> searchResults;
+        try {
+            if (searchEngine.contains("tavily")) {
+                searchResults = searchUtils.tavilySearch(request.getMessage(), cancellation);
+            } else {
+                searchResults = searchUtils.searXNG(request.getMessage(), SEARCH_TOP_K, cancellation);
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        System.out.println("search results size（联网搜索个数）: " + searchResults.size());
+        return searchResults;
+    }
+
+    // tavily 的摘要在 content 字段，searXNG 在 snippet 字段
+    static List<Passage> searchPassages(List<Map<String, String>> searchResults) {
+        List<Passage> passages = new ArrayList<>(searchResults.size());
+        for (Map<String, String> result : searchResults) {
+            String content = result.get("content") != null ? result.get("content") : result.get("snippet");
+            passages.add(new Passage(SOURCE_SEARCH, passages.size(), result.get("title"), result.get("url"), String.valueOf(content)));
+        }
+        return List.copyOf(passages);
+    }
+
+    // 知识库检索
+    private List<Passage> knowledgeBase(ChatRequest request, Cancellation cancellation) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            List<Passage> passages = ragPassages(searchKnowledgeBase(request, cancellation));
+            success = true;
+            return passages;
+        } finally {
+            chatMetrics.recordStage(ChatMetrics.STAGE_RAG, start, success);
+        }
+    }
+
+    // 按相关度排列的知识库片段，每个片段为元数据各一行加内容
+    private List<String> searchKnowledgeBase(ChatRequest request, Cancellation cancellation) {
+        try {
+            // es 知识库
+            if (esEnabled) {
+                List<String> vectorSearch = "knn".equals(esMode)
+                        ? elasticsearchKnnSearch.vectorSearch(ragTopK(request), request.getMessage(), cancellation)
+                        : elasticsearchKnnSearch.hybridSearch(ragTopK(request), request.getMessage(), cancellation);
+                System.out.println("知识库参考个数: " + vectorSearch.size());
+                return vectorSearch;
+            }
+
+
+            // 进程内向量检索，只有问题向量化仍调用 python 服务
+            if (vectorSearchEngine.isAvailable()) {
+                float[] queryVector = embeddingClient.embed(request.getMessage());
+                long searchStart = System.nanoTime();
+                List<String> documents = vectorSearchEngine.search(queryVector, ragTopK(request));
+                chatMetrics.recordStage(ChatMetrics.STAGE_VECTOR_SEARCH, searchStart, true);
+                return documents;
+            }
+
+            // python 自带模型量化实现
+            String encodedMsg = URLEncoder.encode(request.getMessage(), StandardCharsets.UTF_8);
+            HttpRequest vectorRequest = ragClient.newRequest(
+                            URI.create(ragBaseUrl + "/api/search?query=" + encodedMsg + "&top_k=" + ragTopK(request)))
+                    .build();
+
+            HttpResponse<String> response = ragClient.send(vectorRequest, HttpResponse.BodyHandlers.ofString(), cancellation);
+            if (response.statusCode() != 200) {
+                throw new IOException("Failed to get vector: HTTP " + response.statusCode());
+            }
+            // app.py 中每条结果以换行结尾，结果之间再用换行连接，即以空行分隔
+            return Arrays.asList(response.body().split("\n\n"));
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    private static List<Passage> ragPassages(List<String> documents) {
+        List<Passage> passages = new ArrayList<>(documents.size());
+        for (String document : documents) {
+            String text = document.strip();
+            if (!text.isEmpty()) {
+                passages.add(new Passage(SOURCE_RAG, passages.size(), null, null, text));
+            }
+        }
+        return List.copyOf(passages);
+    }
+}
@@ -0,0 +1,148 @@
+package com.brain.llm.service;
+
+import com.brain.llm.config.SseProperties;
+import com.brain.llm.util.SseFrames;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个流的 SSE 输出：连续的同类增量（思考过程或回答）先合并，
+ * 在时间窗口到期、超过字节上限或事件类型切换时写成一个预先拼好的帧
+ * 增量由 HttpClient 的 IO 线程写入，窗口到期由共享的定时线程发送，写入和发送都在同一把锁内
+ */
+public class SseEventWriter {
+
+    private final SseEmitter emitter;
+    private final long windowNanos;
+    private final int maxBytes;
+    private final ScheduledExecutorService flushScheduler;
+    private final ChatMetrics chatMetrics;
+
+    // 待发送的合并内容
+    private final StringBuilder pending = new StringBuilder();
+    private String pendingEvent;
+    private String pendingField;
+    private int pendingBytes;
+    private long pendingSinceNanos;
+    private ScheduledFuture<?> scheduledFlush;
+    // 定时发送失败的异常，下一次写入时抛出，让解码器停止
+    private IOException flushError;
+    private boolean closed;
+    private long deltas;
+    private long frames;
+
+    public SseEventWriter(SseEmitter emitter, SseProperties.Preset preset,
+                          ScheduledExecutorService flushScheduler, ChatMetrics chatMetrics) {
+        this.emitter = emitter;
+        this.windowNanos = preset.getWindow() == null ? 0 : preset.getWindow().toNanos();
+        this.maxBytes = preset.getMaxBytes();
+        this.flushScheduler = flushScheduler;
+        this.chatMetrics = chatMetrics;
+    }
+
+    /**
+     * 追加一段增量，data 为 {field: text}
+     */
+    public synchronized void append(String event, String field, String text) throws IOException {
+        if (flushError != null) {
+            throw flushError;
+        }
+        if (closed) {
+            throw new IllegalStateException("SSE writer already closed");
+        }
+        deltas++;
+        if (pendingEvent != null && !pendingEvent.equals(event)) {
+            flush();
+        }
+        long now = System.nanoTime();
+        if (pending.isEmpty()) {
+            pendingEvent = event;
+            pendingField = field;
+            pendingSinceNanos = now;
+        }
+        pending.append(text);
+        pendingBytes += SseFrames.utf8Length(text);
+
+        long elapsed = now - pendingSinceNanos;
+        if (elapsed >= windowNanos || (maxBytes > 0 && pendingBytes >= maxBytes)) {
+            flush();
+        } else if (scheduledFlush == null) {
+            try {
+                scheduledFlush = flushScheduler.schedule(this::timedFlush, windowNanos - elapsed, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // 应用关闭中，直接发送
+                flush();
+            }
+        }
+    }
+
+    /**
+     * 发送一个普通事件（排队位置、检索状态、token 统计等），之前合并的内容先发出
+     */
+    public synchronized void event(String name, Object data) throws IOException {
+        flush();
+        emitter.send(SseEmitter.event().name(name).data(data));
+        frames++;
+    }
+
+    /**
+     * 发出剩余内容，之后不再接受增量
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            chatMetrics.recordSseWrites(deltas, frames);
+        }
+    }
+
+    /**
+     * 流已经结束（出错、超时或前端断开），尽量发出剩余内容，忽略写入失败
+     */
+    public synchronized void closeQuietly() {
+        try {
+            close();
+        } catch (IOException | IllegalStateException e) {
+            // emitter 已关闭
+        }
+    }
+
+    private void flush() throws IOException {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        String frame = SseFrames.frame(pendingEvent, pendingField, pending);
+        pending.setLength(0);
+        pendingBytes = 0;
+        pendingEvent = null;
+        SseFrames.send(emitter, frame);
+        frames++;
+    }
+
+    private synchronized void timedFlush() {
+        scheduledFlush = null;
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            flushError = e;
+        } catch (IllegalStateException e) {
+            flushError = new IOException(e);
+        }
+    }
+}
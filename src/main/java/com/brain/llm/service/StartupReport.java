@@ -0,0 +1,98 @@
+package com.brain.llm.service;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import jakarta.annotation.Resource;
+import org.springframework.aot.AotDetector;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 启动耗时与内存占用报告，应用就绪时输出一次，之后通过 /api/startup-stats 查看
+ * 用于对比普通启动和 faststart 构建（Spring AOT + AppCDS）的效果
+ */
+@Component
+public class StartupReport {
+
+    @Autowired(required = false)
+    private ElasticsearchKnnSearch elasticsearchKnnSearch;
+    @Autowired(required = false)
+    private KnowledgeIngestionService ingestionService;
+    @Resource
+    private VectorSearchEngine vectorSearchEngine;
+
+    private volatile Map<String, Object> report;
+
+    @EventListener
+    public void onReady(ApplicationReadyEvent event) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        // JVM 启动到应用就绪，包含类加载和 Spring 启动前的时间
+        stats.put("jvmToReadyMillis", ManagementFactory.getRuntimeMXBean().getUptime());
+        // SpringApplication.run 开始到应用就绪
+        stats.put("contextReadyMillis", event.getTimeTaken() != null ? event.getTimeTaken().toMillis() : null);
+        stats.put("beans", event.getApplicationContext().getBeanDefinitionCount());
+        stats.put("aot", AotDetector.useGeneratedArtifacts());
+        stats.put("sharedArchive", vmOption("SharedArchiveFile"));
+        stats.put("loadedClasses", ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+        stats.putAll(footprint());
+        stats.put("backends", backends());
+        report = stats;
+        System.out.println("启动报告: " + stats);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Map<String, Object> current = report;
+        if (current != null) {
+            stats.putAll(current);
+        }
+        // 当前值，与就绪时的值对比可以看出运行后才加载的类（例如第一次访问 es 时初始化的客户端）
+        Map<String, Object> now = new LinkedHashMap<>();
+        now.put("loadedClasses", ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+        now.putAll(footprint());
+        now.put("backends", backends());
+        stats.put("current", now);
+        return stats;
+    }
+
+    private Map<String, Object> footprint() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        stats.put("heapUsedBytes", heap.getUsed());
+        stats.put("heapCommittedBytes", heap.getCommitted());
+        stats.put("nonHeapUsedBytes", nonHeap.getUsed());
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                stats.put("metaspaceUsedBytes", pool.getUsage().getUsed());
+            }
+        }
+        return stats;
+    }
+
+    private Map<String, Object> backends() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        // disabled：没有创建；lazy：已创建，客户端还没有初始化
+        stats.put("elasticsearch", elasticsearchKnnSearch == null ? "disabled"
+                : Boolean.TRUE.equals(elasticsearchKnnSearch.stats().get("clientInitialized")) ? "initialized" : "lazy");
+        stats.put("ingest", ingestionService != null);
+        stats.put("vectorSearch", vectorSearchEngine.isAvailable());
+        return stats;
+    }
+
+    private static String vmOption(String name) {
+        try {
+            String value = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).getVMOption(name).getValue();
+            return value.isEmpty() ? null : value;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package com.brain.llm.service;
+
+import com.brain.llm.util.AimdLimiter;
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.UpstreamStatusException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+/**
+ * deepseek 上游调用的准入控制：
+ * 全局并发上限按首字节延迟和 429/503 自适应调整（AIMD），超出上限的请求按会话排队，
+ * 各会话之间轮转出队，单个会话不会占满上游；排队有长度和时间上限；
+ * 还没有向前端输出任何 token 之前的失败按指数退避加随机抖动重试
+ * 批量任务等后台请求只能使用并发上限的一部分，并且只在没有交互请求排队时出队
+ */
+@Component
+public class UpstreamScheduler {
+
+    @Value("${chat.scheduler.initial-limit:16}")
+    private int initialLimit;
+    @Value("${chat.scheduler.min-limit:2}")
+    private int minLimit;
+    // 不超过 upstream.deepseek.max-connections
+    @Value("${chat.scheduler.max-limit:128}")
+    private int maxLimit;
+    // 过载时上限乘以该比例
+    @Value("${chat.scheduler.backoff-ratio:0.75}")
+    private double backoffRatio;
+    // 首字节延迟超过基线的该倍数时视为过载
+    @Value("${chat.scheduler.latency-tolerance:3.0}")
+    private double latencyTolerance;
+    // 排队请求总数上限
+    @Value("${chat.scheduler.max-queued:500}")
+    private int maxQueued;
+    // 单个会话的排队请求上限
+    @Value("${chat.scheduler.max-queued-per-session:8}")
+    private int maxQueuedPerSession;
+    // 最长排队时间
+    @Value("${chat.scheduler.queue-timeout:30s}")
+    private Duration queueTimeout;
+    // 向排队中的请求推送位置的间隔
+    @Value("${chat.scheduler.queue-notify-interval:1s}")
+    private Duration queueNotifyInterval;
+    // 包括首次请求在内的最大尝试次数
+    @Value("${chat.scheduler.retry.max-attempts:3}")
+    private int maxAttempts;
+    @Value("${chat.scheduler.retry.base-delay:500ms}")
+    private Duration retryBaseDelay;
+    @Value("${chat.scheduler.retry.max-delay:8s}")
+    private Duration retryMaxDelay;
+    // 后台请求最多占用的并发上限比例
+    @Value("${chat.scheduler.background-share:0.5}")
+    private double backgroundShare;
+
+    @Resource(name = "chatExecutor")
+    private Executor chatExecutor;
+    @Resource
+    private ChatMetrics chatMetrics;
+
+    private AimdLimiter limiter;
+    // 以下字段都在 synchronized(this) 下访问
+    private int inflight;
+    private int queued;
+    private final Map<String, ArrayDeque<Waiter>> queues = new HashMap<>();
+    // 有请求在排队的会话，按轮转顺序
+    private final ArrayDeque<String> rotation = new ArrayDeque<>();
+    // 后台请求队列，不计入 queued，没有排队时间和长度限制（由提交方控制并发）
+    private final ArrayDeque<Waiter> backgroundQueue = new ArrayDeque<>();
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queueTimeouts = new AtomicLong();
+    private final AtomicLong overloads = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "upstream-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        limiter = new AimdLimiter(initialLimit, minLimit, maxLimit, backoffRatio, latencyTolerance);
+        // 出队时取消的排队超时任务立即从定时队列中移除，不会在高负载时堆积到 queue-timeout 之后
+        timer.setRemoveOnCancelPolicy(true);
+        long interval = queueNotifyInterval.toMillis();
+        timer.scheduleWithFixedDelay(this::notifyPositions, interval, interval, TimeUnit.MILLISECONDS);
+
+        MeterRegistry registry = chatMetrics.getRegistry();
+        Gauge.builder("deepseek.scheduler.limit", this, UpstreamScheduler::currentLimit)
+                .description("自适应并发上限")
+                .register(registry);
+        Gauge.builder("deepseek.scheduler.inflight", this, UpstreamScheduler::currentInflight)
+                .register(registry);
+        Gauge.builder("deepseek.scheduler.queued", this, UpstreamScheduler::currentQueued)
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * 在并发名额内执行一次上游调用，失败且尚未开始输出时重试
+     * @param sessionId 排队使用的会话
+     * @param onQueued 需要排队时回调当前位置（从 1 开始）
+     * @param call 发起上游调用，收到响应头时调用 {@link Permit#responseStarted()}
+     * @param streamStarted 是否已经向前端输出过内容，输出后不再重试
+     */
+    public <T> CompletableFuture<T> submit(String sessionId, Cancellation cancellation, IntConsumer onQueued,
+                                           Function<Permit, CompletableFuture<T>> call, BooleanSupplier streamStarted) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(normalize(sessionId), false, cancellation, onQueued, call, streamStarted, 1, result);
+        return result;
+    }
+
+    /**
+     * 后台请求（批量任务），重试规则与 submit 相同
+     */
+    public <T> CompletableFuture<T> submitBackground(Cancellation cancellation, Function<Permit, CompletableFuture<T>> call,
+                                                     BooleanSupplier streamStarted) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(null, true, cancellation, position -> {
+        }, call, streamStarted, 1, result);
+        return result;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", "deepseek-scheduler");
+        synchronized (this) {
+            stats.put("limit", limiter.getLimit());
+            stats.put("baselineLatencyMillis", Math.round(limiter.getBaselineMillis()));
+            stats.put("inflight", inflight);
+            stats.put("queued", queued);
+            stats.put("queuedSessions", rotation.size());
+            stats.put("backgroundQueued", backgroundQueue.size());
+        }
+        stats.put("granted", granted.get());
+        stats.put("rejected", rejected.get());
+        stats.put("queueTimeouts", queueTimeouts.get());
+        stats.put("overloads", overloads.get());
+        stats.put("retries", retries.get());
+        return stats;
+    }
+
+    private synchronized double currentLimit() {
+        return limiter.getLimit();
+    }
+
+    private synchronized double currentInflight() {
+        return inflight;
+    }
+
+    private synchronized double currentQueued() {
+        return queued;
+    }
+
+    private <T> void attempt(String sessionKey, boolean background, Cancellation cancellation, IntConsumer onQueued,
+                             Function<Permit, CompletableFuture<T>> call, BooleanSupplier streamStarted,
+                             int attempt, CompletableFuture<T> result) {
+        (background ? acquireBackground(cancellation) : acquire(sessionKey, cancellation, onQueued))
+                .thenCompose(permit -> {
+                    CompletableFuture<T> future;
+                    try {
+                        future = cancellation.isCancelled()
+                                ? CompletableFuture.failedFuture(new CancellationException("client disconnected"))
+                                : call.apply(permit);
+                    } catch (RuntimeException e) {
+                        future = CompletableFuture.failedFuture(e);
+                    }
+                    return future.whenComplete((value, e) -> permit.release(e));
+                })
+                .whenComplete((value, e) -> {
+                    if (e == null) {
+                        result.complete(value);
+                        return;
+                    }
+                    Throwable cause = unwrap(e);
+                    if (attempt >= maxAttempts || cancellation.isCancelled() || streamStarted.getAsBoolean() || !isRetryable(cause)) {
+                        result.completeExceptionally(cause);
+                        return;
+                    }
+                    retries.incrementAndGet();
+                    long delay = retryDelayMillis(cause, attempt);
+                    try {
+                        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, chatExecutor).execute(() ->
+                                attempt(sessionKey, background, cancellation, onQueued, call, streamStarted, attempt + 1, result));
+                    } catch (RejectedExecutionException rejectedRetry) {
+                        result.completeExceptionally(cause);
+                    }
+                });
+    }
+
+    // 获取并发名额，名额不足时进入所属会话的队列
+    private CompletableFuture<Permit> acquire(String sessionKey, Cancellation cancellation, IntConsumer onQueued) {
+        Waiter waiter;
+        int position;
+        synchronized (this) {
+            if (inflight < limiter.getLimit() && queued == 0) {
+                return CompletableFuture.completedFuture(grant());
+            }
+            ArrayDeque<Waiter> queue = queues.get(sessionKey);
+            if (queued >= maxQueued || (queue != null && queue.size() >= maxQueuedPerSession)) {
+                rejected.incrementAndGet();
+                return CompletableFuture.failedFuture(new RejectedExecutionException(
+                        "deepseek upstream overloaded, " + queued + " requests queued"));
+            }
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(sessionKey, queue);
+                rotation.add(sessionKey);
+            }
+            waiter = new Waiter(sessionKey, onQueued);
+            queue.add(waiter);
+            queued++;
+            position = positionOf(waiter);
+            waiter.lastPosition = position;
+            // 排队超时时移出队列；在锁内设置，出队（获得名额或被移除）时一定能取消
+            waiter.timeout = timer.schedule(() -> {
+                if (remove(waiter)) {
+                    queueTimeouts.incrementAndGet();
+                    waiter.future.completeExceptionally(new TimeoutException(
+                            "queued for deepseek upstream longer than " + queueTimeout));
+                }
+            }, queueTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        notifyQueued(waiter, position);
+
+        // 前端断开时移出队列；已经出队的请求由调用方释放名额
+        cancellation.onCancel(() -> {
+            if (remove(waiter)) {
+                waiter.future.completeExceptionally(new CancellationException("client disconnected"));
+            }
+        });
+        return waiter.future;
+    }
+
+    // 后台请求：并发数低于后台上限且没有任何请求排队时直接获得名额，否则进入后台队列
+    private CompletableFuture<Permit> acquireBackground(Cancellation cancellation) {
+        Waiter waiter;
+        synchronized (this) {
+            if (inflight < backgroundLimit() && queued == 0 && backgroundQueue.isEmpty()) {
+                return CompletableFuture.completedFuture(grant());
+            }
+            waiter = new Waiter(null, position -> {
+            });
+            backgroundQueue.add(waiter);
+        }
+        cancellation.onCancel(() -> {
+            boolean removed;
+            synchronized (this) {
+                removed = backgroundQueue.remove(waiter);
+            }
+            if (removed) {
+                waiter.future.completeExceptionally(new CancellationException("client disconnected"));
+            }
+        });
+        return waiter.future;
+    }
+
+    // 调用方已持有锁
+    private int backgroundLimit() {
+        return Math.max(1, (int) (limiter.getLimit() * backgroundShare));
+    }
+
+    // 调用方已持有锁
+    private Permit grant() {
+        inflight++;
+        granted.incrementAndGet();
+        return new Permit(inflight);
+    }
+
+    private synchronized boolean remove(Waiter waiter) {
+        ArrayDeque<Waiter> queue = queues.get(waiter.sessionKey);
+        if (queue == null || !queue.remove(waiter)) {
+            return false;
+        }
+        waiter.cancelTimeout();
+        queued--;
+        if (queue.isEmpty()) {
+            queues.remove(waiter.sessionKey);
+            rotation.remove(waiter.sessionKey);
+        }
+        return true;
+    }
+
+    // 按会话轮转出队，直到并发名额用完
+    private void dispatch() {
+        List<Map.Entry<Waiter, Permit>> ready = new ArrayList<>();
+        synchronized (this) {
+            while (inflight < limiter.getLimit() && !rotation.isEmpty()) {
+                String sessionKey = rotation.poll();
+                ArrayDeque<Waiter> queue = queues.get(sessionKey);
+                Waiter waiter = queue.poll();
+                if (queue.isEmpty()) {
+                    queues.remove(sessionKey);
+                } else {
+                    rotation.add(sessionKey);
+                }
+                queued--;
+                waiter.cancelTimeout();
+                ready.add(Map.entry(waiter, grant()));
+            }
+            // 交互请求都已出队后，后台请求在各自的上限内出队
+            while (queued == 0 && inflight < backgroundLimit() && !backgroundQueue.isEmpty()) {
+                ready.add(Map.entry(backgroundQueue.poll(), grant()));
+            }
+        }
+        // 在锁外完成，后续的上游调用不占用锁
+        for (Map.Entry<Waiter, Permit> entry : ready) {
+            entry.getKey().future.complete(entry.getValue());
+        }
+    }
+
+    /**
+     * 轮转调度下的排队位置：队列中第 i 个请求之前，
+     * 轮转顺序在前的会话各出队 i+1 个，在后的会话各出队 i 个（不超过其队列长度）
+     * 调用方已持有锁
+     */
+    private int positionOf(Waiter waiter) {
+        int index = 0;
+        for (Waiter other : queues.get(waiter.sessionKey)) {
+            if (other == waiter) {
+                break;
+            }
+            index++;
+        }
+        int position = index + 1;
+        boolean ahead = true;
+        for (String sessionKey : rotation) {
+            if (sessionKey.equals(waiter.sessionKey)) {
+                ahead = false;
+                continue;
+            }
+            position += Math.min(queues.get(sessionKey).size(), ahead ? index + 1 : index);
+        }
+        return position;
+    }
+
+    // 定时推送位置变化
+    private void notifyPositions() {
+        List<Map.Entry<Waiter, Integer>> changed = new ArrayList<>();
+        synchronized (this) {
+            for (ArrayDeque<Waiter> queue : queues.values()) {
+                for (Waiter waiter : queue) {
+                    int position = positionOf(waiter);
+                    if (position != waiter.lastPosition) {
+                        waiter.lastPosition = position;
+                        changed.add(Map.entry(waiter, position));
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Waiter, Integer> entry : changed) {
+            try {
+                chatExecutor.execute(() -> notifyQueued(entry.getKey(), entry.getValue()));
+            } catch (RejectedExecutionException e) {
+                // 线程池已满时跳过本次推送
+            }
+        }
+    }
+
+    private void notifyQueued(Waiter waiter, int position) {
+        try {
+            waiter.onQueued.accept(position);
+        } catch (RuntimeException e) {
+            System.err.println("排队位置推送失败: " + e.getMessage());
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException || e instanceof UncheckedIOException)
+                && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    // 429/5xx、首字节超时和连接错误可以重试；排队被拒、排队超时和前端断开不重试
+    private static boolean isRetryable(Throwable e) {
+        if (e instanceof UpstreamStatusException) {
+            return ((UpstreamStatusException) e).isRetryable();
+        }
+        return e instanceof IOException;
+    }
+
+    private static boolean isOverload(Throwable e) {
+        if (e instanceof UpstreamStatusException) {
+            return ((UpstreamStatusException) e).isOverload();
+        }
+        return e instanceof HttpTimeoutException;
+    }
+
+    // 指数退避，在 [delay/2, delay] 之间随机；上游返回了 Retry-After 时以它为下限
+    private long retryDelayMillis(Throwable e, int attempt) {
+        long max = retryMaxDelay.toMillis();
+        long delay = Math.min(max, retryBaseDelay.toMillis() << Math.min(attempt - 1, 20));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        if (e instanceof UpstreamStatusException && ((UpstreamStatusException) e).getRetryAfter() != null) {
+            delay = Math.max(delay, Math.min(max, ((UpstreamStatusException) e).getRetryAfter().toMillis()));
+        }
+        return delay;
+    }
+
+    private static String normalize(String sessionId) {
+        return sessionId == null || sessionId.isBlank() ? ConversationStore.DEFAULT_SESSION : sessionId;
+    }
+
+    private static class Waiter {
+        private final String sessionKey;
+        private final IntConsumer onQueued;
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+        // 最近一次推送的位置
+        private int lastPosition;
+        // 交互请求的排队超时任务，在 synchronized(UpstreamScheduler) 下访问
+        private ScheduledFuture<?> timeout;
+
+        Waiter(String sessionKey, IntConsumer onQueued) {
+            this.sessionKey = sessionKey;
+            this.onQueued = onQueued;
+        }
+
+        void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+        }
+    }
+
+    /**
+     * 一个并发名额，上游调用结束后释放（只释放一次），并把结果反馈给并发上限
+     */
+    public class Permit {
+        private final long grantedAt = System.nanoTime();
+        // 获得名额时的并发数
+        private final int inflightAtGrant;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile long firstByteMillis = -1;
+
+        Permit(int inflightAtGrant) {
+            this.inflightAtGrant = inflightAtGrant;
+        }
+
+        // 收到上游响应头
+        public void responseStarted() {
+            if (firstByteMillis < 0) {
+                firstByteMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - grantedAt);
+                chatMetrics.recordStage(ChatMetrics.STAGE_UPSTREAM_CONNECT, grantedAt, true);
+            }
+        }
+
+        void release(Throwable error) {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            Throwable cause = error == null ? null : unwrap(error);
+            // 没有收到响应头就失败的请求（连接失败、首字节超时）
+            if (cause != null && firstByteMillis < 0 && !(cause instanceof CancellationException)) {
+                chatMetrics.recordStage(ChatMetrics.STAGE_UPSTREAM_CONNECT, grantedAt, false);
+            }
+            synchronized (UpstreamScheduler.this) {
+                inflight--;
+                if (cause != null && isOverload(cause)) {
+                    overloads.incrementAndGet();
+                    limiter.onOverload();
+                } else if (cause == null && firstByteMillis >= 0) {
+                    limiter.onSuccess(firstByteMillis, inflightAtGrant);
+                }
+            }
+            dispatch();
+        }
+    }
+}
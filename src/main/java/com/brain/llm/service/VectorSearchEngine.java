@@ -0,0 +1,201 @@
+package com.brain.llm.service;
+
+import com.brain.llm.util.FaissFlatIndex;
+import com.brain.llm.util.HnswIndex;
+import com.brain.llm.util.ScoredIds;
+import com.brain.llm.util.VectorMath;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 进程内向量检索，替代 python 服务的 /api/search
+ * 直接内存映射 faiss 索引文件和 jsonData.json，检索逻辑与 app.py 中 VectorSearchSystem.search 一致：
+ * 召回 top_k * 2 个结果，过滤相似度阈值以下的结果后取前 top_k 个
+ * 数据量达到 hnsw.min-size 时在后台构建 HNSW 索引，构建完成前使用暴力检索
+ */
+@Component
+public class VectorSearchEngine {
+
+    @Value("${vector-search.enabled:true}")
+    private boolean enabled;
+    // faiss 索引文件
+    @Value("${vector-search.index-file:python/data/faiss_temp.index}")
+    private Path indexFile;
+    // 文档元数据文件
+    @Value("${vector-search.json-data-file:python/data/jsonData.json}")
+    private Path jsonDataFile;
+    // 相似度阈值，与 python config.json 中的 similarity_threshold 保持一致
+    @Value("${vector-search.similarity-threshold:0.7}")
+    private float similarityThreshold;
+    // 元数据字段，按顺序拼接在内容前面
+    @Value("${vector-search.metadata-fields:doc_name,chapter,item_number}")
+    private List<String> metadataFields;
+    // 内容字段
+    @Value("${vector-search.content-field:content}")
+    private String contentField;
+    // 文件变化检查间隔，python 重新生成索引后自动重新加载
+    @Value("${vector-search.reload-interval:10s}")
+    private Duration reloadInterval;
+    // 向量数达到该值时使用 HNSW 检索
+    @Value("${vector-search.hnsw.min-size:20000}")
+    private int hnswMinSize;
+    @Value("${vector-search.hnsw.m:16}")
+    private int hnswM;
+    @Value("${vector-search.hnsw.ef-construction:200}")
+    private int hnswEfConstruction;
+    @Value("${vector-search.hnsw.ef-search:128}")
+    private int hnswEfSearch;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private volatile Snapshot snapshot;
+    private volatile long nextReloadCheck;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            snapshot = load();
+            System.out.println("向量检索已加载: " + snapshot.index.size() + " 条, SIMD: " + VectorMath.SIMD_AVAILABLE);
+        } catch (IOException e) {
+            // 文件不存在时退回 python 服务检索
+            System.err.println("向量检索加载失败，使用 python 服务检索: " + e.getMessage());
+        }
+        nextReloadCheck = System.nanoTime() + reloadInterval.toNanos();
+    }
+
+    public boolean isAvailable() {
+        return enabled && snapshot != null;
+    }
+
+    /**
+     * 检索，每条文档按 python 服务 /api/search 的格式拼好，按相似度从高到低排列
+     */
+    public List<String> search(float[] queryVector, int topK) {
+        reloadIfChanged();
+        Snapshot current = snapshot;
+        if (queryVector.length != current.index.dim()) {
+            throw new IllegalArgumentException("Query vector dim " + queryVector.length + " != index dim " + current.index.dim());
+        }
+        // 扩大召回范围
+        int candidates = topK * 2;
+        HnswIndex hnsw = current.hnsw;
+        long[] hits = hnsw != null
+                ? hnsw.search(queryVector, candidates, Math.max(hnswEfSearch, candidates))
+                : current.index.search(queryVector, candidates);
+
+        // 结果已按相似度从高到低排列，严格阈值过滤后截断
+        List<String> result = new ArrayList<>(topK);
+        for (long hit : hits) {
+            if (result.size() == topK) {
+                break;
+            }
+            int id = ScoredIds.id(hit);
+            if (ScoredIds.score(hit) < similarityThreshold || id >= current.documents.length) {
+                continue;
+            }
+            result.add(current.documents[id]);
+        }
+        return result;
+    }
+
+    private void reloadIfChanged() {
+        long now = System.nanoTime();
+        if (now - nextReloadCheck < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (now - nextReloadCheck < 0) {
+                return;
+            }
+            nextReloadCheck = now + reloadInterval.toNanos();
+            try {
+                Snapshot current = snapshot;
+                if (Files.getLastModifiedTime(indexFile).toMillis() != current.indexModified
+                        || Files.getLastModifiedTime(jsonDataFile).toMillis() != current.documentsModified) {
+                    snapshot = load();
+                    System.out.println("向量检索已重新加载: " + snapshot.index.size() + " 条");
+                }
+            } catch (IOException e) {
+                System.err.println("向量检索重新加载失败，继续使用旧索引: " + e.getMessage());
+            }
+        }
+    }
+
+    private Snapshot load() throws IOException {
+        long indexModified = Files.getLastModifiedTime(indexFile).toMillis();
+        long documentsModified = Files.getLastModifiedTime(jsonDataFile).toMillis();
+        FaissFlatIndex index = FaissFlatIndex.open(indexFile);
+        Snapshot loaded = new Snapshot(index, loadDocuments(), indexModified, documentsModified);
+        if (index.size() >= hnswMinSize) {
+            Thread builder = new Thread(() -> {
+                long start = System.nanoTime();
+                loaded.hnsw = HnswIndex.build(index, hnswM, hnswEfConstruction);
+                System.out.println("HNSW 索引构建完成，耗时 " + Duration.ofNanos(System.nanoTime() - start).toMillis() + "ms");
+            }, "hnsw-builder");
+            builder.setDaemon(true);
+            builder.start();
+        }
+        return loaded;
+    }
+
+    // 内存映射读取文档元数据，并预先格式化好每条文档
+    private String[] loadDocuments() throws IOException {
+        try (FileChannel channel = FileChannel.open(jsonDataFile, StandardOpenOption.READ);
+             InputStream in = new ByteBufferBackedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))) {
+            JsonNode root = objectMapper.readTree(in);
+            List<String> documents = new ArrayList<>(root.size());
+            for (JsonNode document : root) {
+                documents.add(format(document));
+            }
+            return documents.toArray(new String[0]);
+        }
+    }
+
+    // 与 app.py 中 format_search_result 一致：元数据每项一行，最后是内容
+    private String format(JsonNode document) {
+        StringBuilder formatted = new StringBuilder();
+        for (String field : metadataFields) {
+            String value = document.path(field).asText("");
+            if (!value.isEmpty()) {
+                formatted.append(value).append('\n');
+            }
+        }
+        String content = document.path(contentField).asText("");
+        if (!content.isEmpty()) {
+            formatted.append(content).append('\n');
+        }
+        return formatted.toString();
+    }
+
+    private static class Snapshot {
+        private final FaissFlatIndex index;
+        private final String[] documents;
+        private final long indexModified;
+        private final long documentsModified;
+        // 后台构建完成后赋值
+        private volatile HnswIndex hnsw;
+
+        private Snapshot(FaissFlatIndex index, String[] documents, long indexModified, long documentsModified) {
+            this.index = index;
+            this.documents = documents;
+            this.indexModified = indexModified;
+            this.documentsModified = documentsModified;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.brain.llm.util;
+
+/**
+ * 自适应并发上限（AIMD）：
+ * 请求成功且首字节延迟正常时加性增长（每个满载的往返 +1），
+ * 上游返回 429/503、超时或首字节延迟明显高于基线时乘性下降
+ * 非线程安全，由调用方加锁
+ */
+public class AimdLimiter {
+
+    // 基线延迟向上漂移的速度，上游整体变慢后基线逐渐跟上，不会一直判定为过载
+    private static final double BASELINE_DRIFT = 0.01;
+    // 两次下降之间的最小间隔，避免同一批并发请求的 429 把上限连续砍到最低
+    private static final long MIN_DECREASE_INTERVAL_NANOS = 100_000_000L;
+    // 延迟只比基线高出这么多时不算过载，避免基线很小时的正常抖动触发下降
+    private static final long MIN_LATENCY_SLACK_MILLIS = 100;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+
+    private double limit;
+    private double baselineMillis = -1;
+    private long lastDecrease;
+
+    public AimdLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, double latencyTolerance) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("invalid limit range [" + minLimit + ", " + maxLimit + "]");
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be in (0, 1): " + backoffRatio);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public double getBaselineMillis() {
+        return baselineMillis;
+    }
+
+    /**
+     * 请求成功
+     * @param latencyMillis 首字节延迟
+     * @param inflight 请求发出时的并发数，只有接近上限时才增长，避免空闲时上限无限膨胀
+     */
+    public void onSuccess(long latencyMillis, int inflight) {
+        if (baselineMillis < 0 || latencyMillis < baselineMillis) {
+            baselineMillis = latencyMillis;
+        } else {
+            baselineMillis += (latencyMillis - baselineMillis) * BASELINE_DRIFT;
+        }
+        if (latencyMillis > baselineMillis * latencyTolerance && latencyMillis - baselineMillis > MIN_LATENCY_SLACK_MILLIS) {
+            decrease();
+        } else if (inflight * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    // 上游过载（429、503、超时）
+    public void onOverload() {
+        decrease();
+    }
+
+    private void decrease() {
+        long now = System.nanoTime();
+        if (lastDecrease != 0 && now - lastDecrease < MIN_DECREASE_INTERVAL_NANOS) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * backoffRatio);
+    }
+}
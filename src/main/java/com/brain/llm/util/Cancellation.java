@@ -0,0 +1,56 @@
+package com.brain.llm.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 单次请求的取消信号：前端断开或超时后触发，依次执行已注册的取消动作
+ * （中止上游 HTTP 请求、取消检索等）；已取消时再注册的动作会立即执行
+ */
+public class Cancellation {
+
+    private final List<Runnable> hooks = new ArrayList<>();
+    private volatile boolean cancelled;
+
+    // 不会被取消的信号，注册的动作直接丢弃
+    public static Cancellation none() {
+        return new Cancellation() {
+            @Override
+            public void onCancel(Runnable hook) {
+            }
+        };
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void onCancel(Runnable hook) {
+        synchronized (hooks) {
+            if (!cancelled) {
+                hooks.add(hook);
+                return;
+            }
+        }
+        hook.run();
+    }
+
+    public void cancel() {
+        List<Runnable> toRun;
+        synchronized (hooks) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(hooks);
+            hooks.clear();
+        }
+        for (Runnable hook : toRun) {
+            try {
+                hook.run();
+            } catch (RuntimeException e) {
+                System.err.println("取消动作执行失败: " + e.getMessage());
+            }
+        }
+    }
+}
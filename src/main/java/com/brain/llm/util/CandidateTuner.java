@@ -0,0 +1,96 @@
+package com.brain.llm.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 混合检索的候选数自适应调整，每个 topK（即 maxToggle 的两种取值）一份：
+ * - 每一路的返回个数（kNN 的 k、BM25 的 size）：融合后的前 topK 经常用到某一路靠后的结果时增大，只用到前面一半时减小
+ * - kNN 的 num_candidates = k * 倍数：抽样对比近似检索与精确检索得到的召回率，低于目标时增大倍数，明显高于目标时缓慢减小
+ */
+public class CandidateTuner {
+
+    // 指数滑动平均的权重
+    private static final double DEPTH_ALPHA = 0.1;
+    private static final double RECALL_ALPHA = 0.2;
+    // 召回率高于目标该值以上时才减小倍数，避免来回抖动
+    private static final double RECALL_MARGIN = 0.03;
+    // num_candidates 的上限（es 限制为 10000）
+    private static final int MAX_NUM_CANDIDATES = 10000;
+
+    private final int topK;
+    private final int maxLegSize;
+    private final double recallTarget;
+    private final double minFactor;
+    private final double maxFactor;
+
+    private double legSize;
+    private double factor;
+    // 用到的最深排名 / 每一路的返回个数
+    private double depthEwma = 0.5;
+    private double recallEwma = Double.NaN;
+    private long queries;
+    private long recallSamples;
+
+    public CandidateTuner(int topK, int maxLegFactor, double recallTarget,
+                          double initialFactor, double minFactor, double maxFactor) {
+        this.topK = topK;
+        this.maxLegSize = topK * Math.max(1, maxLegFactor);
+        this.recallTarget = recallTarget;
+        this.minFactor = minFactor;
+        this.maxFactor = maxFactor;
+        this.legSize = Math.min(maxLegSize, topK * 2);
+        this.factor = Math.max(minFactor, Math.min(maxFactor, initialFactor));
+    }
+
+    public synchronized int legSize() {
+        return (int) Math.ceil(legSize);
+    }
+
+    public synchronized int numCandidates() {
+        int k = (int) Math.ceil(legSize);
+        return Math.max(k, Math.min(MAX_NUM_CANDIDATES, (int) Math.round(k * factor)));
+    }
+
+    /**
+     * 记录一次融合结果用到的最深排名（从 1 开始），0 表示没有结果
+     */
+    public synchronized void recordDepth(int deepestRank, int legSize) {
+        queries++;
+        if (deepestRank <= 0 || legSize <= 0) {
+            return;
+        }
+        depthEwma += DEPTH_ALPHA * ((double) deepestRank / legSize - depthEwma);
+        if (depthEwma > 0.8) {
+            this.legSize = Math.min(maxLegSize, this.legSize * 1.1);
+        } else if (depthEwma < 0.5) {
+            this.legSize = Math.max(topK, this.legSize * 0.97);
+        }
+    }
+
+    /**
+     * 记录一次抽样得到的 kNN 召回率（近似结果与精确结果的交集 / 精确结果数）
+     */
+    public synchronized void recordRecall(double recall) {
+        recallSamples++;
+        recallEwma = Double.isNaN(recallEwma) ? recall : recallEwma + RECALL_ALPHA * (recall - recallEwma);
+        if (recallEwma < recallTarget) {
+            factor = Math.min(maxFactor, factor * 1.25);
+        } else if (recallEwma > recallTarget + RECALL_MARGIN) {
+            factor = Math.max(minFactor, factor * 0.95);
+        }
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("topK", topK);
+        stats.put("legSize", legSize());
+        stats.put("numCandidates", numCandidates());
+        stats.put("candidateFactor", Math.round(factor * 100) / 100.0);
+        stats.put("depthRatio", Math.round(depthEwma * 1000) / 1000.0);
+        stats.put("recall", Double.isNaN(recallEwma) ? null : Math.round(recallEwma * 1000) / 1000.0);
+        stats.put("queries", queries);
+        stats.put("recallSamples", recallSamples);
+        return stats;
+    }
+}
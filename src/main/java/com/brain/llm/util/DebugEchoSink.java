@@ -0,0 +1,64 @@
+package com.brain.llm.util;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 调试用的控制台回显：把思考过程和回答内容异步写到标准输出
+ * 调用方只入队，由单独的后台线程批量写出并在队列清空时 flush；队列满时直接丢弃
+ * 默认关闭，关闭时 echo 不做任何事
+ */
+public class DebugEchoSink {
+
+    private final boolean enabled;
+    private final BlockingQueue<String> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8);
+
+    public DebugEchoSink(boolean enabled, int capacity) {
+        this.enabled = enabled;
+        this.queue = enabled ? new ArrayBlockingQueue<>(capacity) : null;
+        if (enabled) {
+            Thread writer = new Thread(this::drain, "debug-echo");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void echo(String text) {
+        if (enabled && !queue.offer(text)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // 队列满被丢弃的条数
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                out.print(queue.take());
+                String next;
+                while ((next = queue.poll()) != null) {
+                    out.print(next);
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.brain.llm.util;
+
+import com.brain.llm.domain.TokenUsage;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * deepseek（OpenAI 兼容）SSE 流解码器
+ * 直接在字节层面按行切分，用 Jackson 流式 JsonParser 只读取 choices[0].delta 的
+ * reasoning_content / content 以及 usage，其余字段跳过，不构建 Map 或 JsonNode
+ */
+public class DeepSeekStreamDecoder implements HttpResponse.BodySubscriber<Void> {
+
+    public interface Listener {
+        // 思考过程增量
+        void onReasoning(String reasoningContent) throws IOException;
+
+        // 回答内容增量
+        void onContent(String content) throws IOException;
+
+        // 流末尾的 token 统计（请求需带上 stream_options.include_usage）
+        default void onUsage(TokenUsage usage) {
+        }
+
+        // 收到 data: [DONE]，流完整结束
+        default void onDone() {
+        }
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final byte[] DATA_PREFIX = "data:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DONE = "[DONE]".getBytes(StandardCharsets.US_ASCII);
+
+    private final Listener listener;
+    private final CompletableFuture<Void> body = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+    // 未处理完的字节（最后一行可能不完整）
+    private byte[] buffer = new byte[8192];
+    private int length;
+    private boolean done;
+
+    public DeepSeekStreamDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public CompletionStage<Void> getBody() {
+        return body;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> items) {
+        if (body.isDone()) {
+            return;
+        }
+        try {
+            for (ByteBuffer item : items) {
+                append(item);
+            }
+            processLines();
+            subscription.request(1);
+        } catch (Exception e) {
+            // 前端断开或解析失败，停止消费上游
+            subscription.cancel();
+            body.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        body.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        try {
+            // 最后一行没有换行符
+            if (length > 0) {
+                processLine(0, length);
+                length = 0;
+            }
+            // 连接提前关闭时上游不会发送 [DONE]，截断的回答不能当作正常结束
+            if (!done) {
+                throw new IOException("stream ended before [DONE]");
+            }
+            body.complete(null);
+        } catch (Exception e) {
+            body.completeExceptionally(e);
+        }
+    }
+
+    private void append(ByteBuffer item) {
+        int remaining = item.remaining();
+        if (length + remaining > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + remaining));
+        }
+        item.get(buffer, length, remaining);
+        length += remaining;
+    }
+
+    // 处理所有完整的行，剩余的半行移到缓冲区开头
+    private void processLines() throws IOException {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '\n') {
+                processLine(start, i - start);
+                start = i + 1;
+            }
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, length - start);
+            length -= start;
+        }
+    }
+
+    private void processLine(int offset, int lineLength) throws IOException {
+        if (lineLength > 0 && buffer[offset + lineLength - 1] == '\r') {
+            lineLength--;
+        }
+        // 空行、keep-alive 注释以及 [DONE] 之后的内容都忽略
+        if (done || lineLength < DATA_PREFIX.length
+                || !Arrays.equals(buffer, offset, offset + DATA_PREFIX.length, DATA_PREFIX, 0, DATA_PREFIX.length)) {
+            return;
+        }
+        int start = offset + DATA_PREFIX.length;
+        int end = offset + lineLength;
+        if (start < end && buffer[start] == ' ') {
+            start++;
+        }
+        if (Arrays.equals(buffer, start, end, DONE, 0, DONE.length)) {
+            done = true;
+            listener.onDone();
+            return;
+        }
+        parseChunk(start, end - start);
+    }
+
+    private void parseChunk(int offset, int chunkLength) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(buffer, offset, chunkLength)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("choices".equals(field) && value == JsonToken.START_ARRAY) {
+                    parseChoices(parser);
+                } else if ("usage".equals(field) && value == JsonToken.START_OBJECT) {
+                    listener.onUsage(parseUsage(parser));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    // 只处理第一个 choice
+    private void parseChoices(JsonParser parser) throws IOException {
+        boolean first = true;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            if (!first) {
+                parser.skipChildren();
+                continue;
+            }
+            first = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("delta".equals(field) && value == JsonToken.START_OBJECT) {
+                    parseDelta(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void parseDelta(JsonParser parser) throws IOException {
+        String reasoningContent = null;
+        String content = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_STRING && "reasoning_content".equals(field)) {
+                reasoningContent = parser.getText();
+            } else if (value == JsonToken.VALUE_STRING && "content".equals(field)) {
+                content = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        // 先思考过程，后回答内容
+        if (reasoningContent != null) {
+            listener.onReasoning(reasoningContent);
+        }
+        if (content != null) {
+            listener.onContent(content);
+        }
+    }
+
+    private TokenUsage parseUsage(JsonParser parser) throws IOException {
+        TokenUsage usage = new TokenUsage();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NUMBER_INT) {
+                switch (field) {
+                    case "prompt_tokens" -> usage.setPromptTokens(parser.getIntValue());
+                    case "completion_tokens" -> usage.setCompletionTokens(parser.getIntValue());
+                    case "total_tokens" -> usage.setTotalTokens(parser.getIntValue());
+                    case "prompt_cache_hit_tokens" -> usage.setPromptCacheHitTokens(parser.getIntValue());
+                    case "prompt_cache_miss_tokens" -> usage.setPromptCacheMissTokens(parser.getIntValue());
+                    default -> {
+                    }
+                }
+            } else if (value == JsonToken.START_OBJECT && "completion_tokens_details".equals(field)) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String detail = parser.currentName();
+                    JsonToken detailValue = parser.nextToken();
+                    if (detailValue == JsonToken.VALUE_NUMBER_INT && "reasoning_tokens".equals(detail)) {
+                        usage.setReasoningTokens(parser.getIntValue());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return usage;
+    }
+}
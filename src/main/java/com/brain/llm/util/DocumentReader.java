@@ -0,0 +1,107 @@
+package com.brain.llm.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 流式读取知识库文档，每次只解析一个文档，文件大小不受内存限制
+ * 支持 JSON 数组（[{...}, {...}]）和 NDJSON（每行一个 {...}）两种格式，
+ * 字符串、数字和布尔字段按文本返回，嵌套的对象和数组忽略
+ */
+public class DocumentReader implements Closeable {
+
+    private final JsonParser parser;
+    // 是否为 JSON 数组格式，读取第一个 token 后确定
+    private Boolean array;
+    private boolean finished;
+    // 已读取（包括跳过）的文档数
+    private long position;
+
+    public DocumentReader(InputStream input, JsonFactory jsonFactory) throws IOException {
+        this.parser = jsonFactory.createParser(input);
+    }
+
+    /**
+     * 读取下一个文档，没有更多文档时返回 null
+     */
+    public Map<String, String> next() throws IOException {
+        if (!advanceToDocument()) {
+            return null;
+        }
+        Map<String, String> document = new LinkedHashMap<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_OBJECT) {
+            if (token == null) {
+                throw new IOException("Unexpected end of input in document " + position);
+            }
+            String field = parser.currentName();
+            token = parser.nextToken();
+            if (token.isScalarValue()) {
+                if (token != JsonToken.VALUE_NULL) {
+                    document.put(field, parser.getText());
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        position++;
+        return document;
+    }
+
+    /**
+     * 跳过前 count 个文档（断点续传），只做词法扫描，不创建对象
+     * @return 实际跳过的文档数
+     */
+    public long skip(long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count && advanceToDocument()) {
+            parser.skipChildren();
+            position++;
+            skipped++;
+        }
+        return skipped;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    // 已读取（包括跳过）的文档在输入中结束的字节偏移，用于校验断点之前的内容是否变化
+    public long getByteOffset() {
+        return parser.currentLocation().getByteOffset();
+    }
+
+    // 移动到下一个文档的 START_OBJECT
+    private boolean advanceToDocument() throws IOException {
+        if (finished) {
+            return false;
+        }
+        JsonToken token = parser.nextToken();
+        if (array == null) {
+            array = token == JsonToken.START_ARRAY;
+            if (array) {
+                token = parser.nextToken();
+            }
+        }
+        if (token == null || (array && token == JsonToken.END_ARRAY)) {
+            finished = true;
+            return false;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object for document " + position + ", got " + token);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
@@ -0,0 +1,122 @@
+package com.brain.llm.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 流式解析 es 搜索响应中的 hits.hits，每个命中直接拼成参考信息文本（元数据逐行在前，内容在后），
+ * 不生成 SearchResponse、JsonNode 或 _source 的 Map
+ */
+public final class EsHits {
+
+    private EsHits() {
+    }
+
+    public static final class Hit {
+        private final String id;
+        // 拼好的参考信息，没有内容字段（或未请求 _source）时为 null
+        private final String text;
+
+        public Hit(String id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    public static List<Hit> parse(InputStream body, JsonFactory jsonFactory, String contentField,
+                                  List<String> metadataFields) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected search response");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if (token != JsonToken.FIELD_NAME) {
+                    continue;
+                }
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("hits".equals(name) && value == JsonToken.START_OBJECT) {
+                    // 进入外层 hits 对象
+                    continue;
+                }
+                if ("hits".equals(name) && value == JsonToken.START_ARRAY) {
+                    return readHits(parser, contentField, metadataFields);
+                }
+                parser.skipChildren();
+            }
+            // filter_path 过滤后没有命中时响应为 {}
+            return List.of();
+        }
+    }
+
+    private static List<Hit> readHits(JsonParser parser, String contentField, List<String> metadataFields) throws IOException {
+        List<Hit> hits = new ArrayList<>();
+        String[] metadata = new String[metadataFields.size()];
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            String id = null;
+            String content = null;
+            boolean hasSource = false;
+            Arrays.fill(metadata, null);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("_id".equals(name)) {
+                    id = parser.getText();
+                } else if ("_source".equals(name) && value == JsonToken.START_OBJECT) {
+                    hasSource = true;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.currentName();
+                        JsonToken fieldValue = parser.nextToken();
+                        if (!fieldValue.isScalarValue() || fieldValue == JsonToken.VALUE_NULL) {
+                            parser.skipChildren();
+                        } else if (field.equals(contentField)) {
+                            content = parser.getText();
+                        } else {
+                            int index = metadataFields.indexOf(field);
+                            if (index >= 0) {
+                                metadata[index] = parser.getText();
+                            }
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            hits.add(new Hit(id, hasSource && content != null ? format(metadata, content) : null));
+        }
+        return hits;
+    }
+
+    // 与原来 vectorSearch 的拼接方式一致：每个非空元数据一行，最后是内容
+    private static String format(String[] metadata, String content) {
+        int length = content.length() + 1;
+        for (String value : metadata) {
+            if (value != null) {
+                length += value.length() + 1;
+            }
+        }
+        StringBuilder text = new StringBuilder(length);
+        for (String value : metadata) {
+            if (value != null) {
+                text.append(value).append('\n');
+            }
+        }
+        return text.append(content).append('\n').toString();
+    }
+}
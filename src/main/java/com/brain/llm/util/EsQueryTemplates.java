@@ -0,0 +1,108 @@
+package com.brain.llm.util;
+
+import java.util.List;
+
+/**
+ * 预先拼好的 es 查询模板，每次只在固定位置填入问题、向量和个数，
+ * 不经过 XContentBuilder、Strings.toString 和 wrapperQuery 的二次解析
+ * 所有查询都通过 _source 过滤只取回拼装参考信息需要的字段，向量字段不随结果返回
+ */
+public class EsQueryTemplates {
+
+    // ,"_source":{"includes":[...],"excludes":[...]}
+    private final String sourceFilter;
+    private final String bm25Prefix;
+    private final String bm25Suffix;
+    private final String knnPrefix;
+    private final String filteredKnnPrefix;
+    private final String filteredKnnSuffix;
+    private final String exactPrefix;
+
+    /**
+     * @param sourceFields       需要返回的字段（内容和元数据字段）
+     * @param matchType          带过滤的 kNN 使用的匹配方式，一般为 match
+     * @param operator           带过滤的 kNN 的匹配逻辑
+     * @param minimumShouldMatch 单词匹配比例，如 45%
+     */
+    public EsQueryTemplates(String contentField, String vectorField, List<String> sourceFields,
+                            String matchType, String operator, String minimumShouldMatch) {
+        StringBuilder source = new StringBuilder(",\"_source\":{\"includes\":[");
+        for (int i = 0; i < sourceFields.size(); i++) {
+            if (i > 0) {
+                source.append(',');
+            }
+            appendString(source, sourceFields.get(i));
+        }
+        source.append("],\"excludes\":[");
+        appendString(source, vectorField);
+        this.sourceFilter = source.append("]}").toString();
+
+        this.bm25Prefix = ",\"query\":{\"match\":{" + string(contentField) + ":{\"query\":";
+        this.bm25Suffix = ",\"minimum_should_match\":" + string(minimumShouldMatch) + "}}}}";
+        this.knnPrefix = ",\"query\":{\"knn\":{\"field\":" + string(vectorField) + ",\"query_vector\":";
+        this.filteredKnnPrefix = ",\"filter\":{" + string(matchType) + ":{" + string(contentField) + ":{\"query\":";
+        this.filteredKnnSuffix = ",\"operator\":" + string(operator)
+                + ",\"minimum_should_match\":" + string(minimumShouldMatch) + "}}}}}}";
+        this.exactPrefix = ",\"_source\":false,\"query\":{\"script_score\":{\"query\":{\"match_all\":{}},\"script\":{\"source\":"
+                + string("dotProduct(params.query_vector, '" + vectorField + "') + 1.0")
+                + ",\"params\":{\"query_vector\":";
+    }
+
+    // 全文匹配（BM25）
+    public String bm25(String msg, int size) {
+        StringBuilder query = new StringBuilder(bm25Prefix.length() + msg.length() + 160);
+        query.append("{\"size\":").append(size).append(sourceFilter).append(bm25Prefix);
+        SseFrames.appendJsonString(query, msg);
+        return query.append(bm25Suffix).toString();
+    }
+
+    // 不带过滤条件的 kNN
+    public String knn(float[] vector, int k, int numCandidates) {
+        StringBuilder query = knnQuery(vector, k, numCandidates);
+        return query.append("}}}").toString();
+    }
+
+    // 带全文匹配过滤的 kNN（esKnn.mode=knn）
+    public String filteredKnn(float[] vector, int k, int numCandidates, String msg) {
+        StringBuilder query = knnQuery(vector, k, numCandidates);
+        query.append(filteredKnnPrefix);
+        SseFrames.appendJsonString(query, msg);
+        return query.append(filteredKnnSuffix).toString();
+    }
+
+    // 全量精确检索（script_score 点积），只返回 _id，用于召回率抽样
+    public String exact(float[] vector, int size) {
+        StringBuilder query = new StringBuilder(vector.length * 12 + 256);
+        query.append("{\"size\":").append(size).append(exactPrefix);
+        appendVector(query, vector);
+        return query.append("}}}}}").toString();
+    }
+
+    private StringBuilder knnQuery(float[] vector, int k, int numCandidates) {
+        StringBuilder query = new StringBuilder(vector.length * 12 + 384);
+        query.append("{\"size\":").append(k).append(sourceFilter).append(knnPrefix);
+        appendVector(query, vector);
+        return query.append(",\"k\":").append(k).append(",\"num_candidates\":").append(numCandidates);
+    }
+
+    private static void appendVector(StringBuilder out, float[] vector) {
+        out.append('[');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(vector[i]);
+        }
+        out.append(']');
+    }
+
+    private static String string(String value) {
+        StringBuilder out = new StringBuilder(value.length() + 2);
+        appendString(out, value);
+        return out.toString();
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        SseFrames.appendJsonString(out, value);
+    }
+}
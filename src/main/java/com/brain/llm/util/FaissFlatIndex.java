@@ -0,0 +1,120 @@
+package com.brain.llm.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 以内存映射方式读取 faiss 的 IndexFlatIP 索引文件（faiss.write_index 的输出）
+ * 文件格式：IxFI | d(int32) | ntotal(int64) | 2 x int64 | is_trained(uint8) | metric_type(int32) | 向量个数 x d(int64) | float32 数据
+ * 超过 2GB 的索引按整行切分为多段映射
+ */
+public class FaissFlatIndex implements HnswIndex.VectorStore {
+
+    private static final int METRIC_INNER_PRODUCT = 0;
+
+    private final int dim;
+    private final int size;
+    private final int rowBytes;
+    private final int rowsPerSegment;
+    private final ByteBuffer[] segments;
+
+    private FaissFlatIndex(int dim, int size, ByteBuffer[] segments, int rowsPerSegment) {
+        this.dim = dim;
+        this.size = size;
+        this.rowBytes = dim * Float.BYTES;
+        this.segments = segments;
+        this.rowsPerSegment = rowsPerSegment;
+    }
+
+    public static FaissFlatIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 64))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[4];
+            header.get(magic);
+            if (!"IxFI".equals(new String(magic, StandardCharsets.US_ASCII))) {
+                throw new IOException("Unsupported faiss index type: " + new String(magic, StandardCharsets.US_ASCII));
+            }
+            int dim = header.getInt();
+            long total = header.getLong();
+            header.getLong();
+            header.getLong();
+            header.get();
+            int metricType = header.getInt();
+            if (metricType != METRIC_INNER_PRODUCT) {
+                throw new IOException("Unsupported faiss metric type: " + metricType);
+            }
+            long floats = header.getLong();
+            if (floats != total * dim) {
+                throw new IOException("Corrupted faiss index: expected " + total * dim + " floats but found " + floats);
+            }
+            long dataOffset = header.position();
+            if (dataOffset + floats * Float.BYTES > channel.size()) {
+                throw new IOException("Corrupted faiss index: truncated vector data");
+            }
+
+            int rowBytes = dim * Float.BYTES;
+            int rowsPerSegment = Integer.MAX_VALUE / rowBytes;
+            int segmentCount = (int) ((total + rowsPerSegment - 1) / rowsPerSegment);
+            ByteBuffer[] segments = new ByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long rows = Math.min(rowsPerSegment, total - (long) i * rowsPerSegment);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                        dataOffset + (long) i * rowsPerSegment * rowBytes, rows * rowBytes);
+                segments[i] = segment.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new FaissFlatIndex(dim, (int) total, segments, rowsPerSegment);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int dim() {
+        return dim;
+    }
+
+    @Override
+    public float dot(float[] query, int row) {
+        return VectorMath.dot(query, segments[row / rowsPerSegment], (row % rowsPerSegment) * rowBytes);
+    }
+
+    @Override
+    public float[] vector(int row) {
+        ByteBuffer segment = segments[row / rowsPerSegment];
+        int offset = (row % rowsPerSegment) * rowBytes;
+        float[] vector = new float[dim];
+        for (int i = 0; i < dim; i++) {
+            vector[i] = segment.getFloat(offset + i * Float.BYTES);
+        }
+        return vector;
+    }
+
+    /**
+     * 暴力检索：计算与所有向量的内积，返回分数最高的 k 个，按分数从高到低排列
+     * 结果编码为 long（高 32 位为可排序的分数，低 32 位为行号），避免装箱
+     */
+    public long[] search(float[] query, int k) {
+        k = Math.min(k, size);
+        LongMinHeap heap = new LongMinHeap(k);
+        for (int row = 0; row < size; row++) {
+            float score = dot(query, row);
+            long key = ScoredIds.encode(score, row);
+            if (heap.size() < k) {
+                heap.push(key);
+            } else if (key > heap.peek()) {
+                heap.replaceTop(key);
+            }
+        }
+        return heap.drainDescending();
+    }
+}
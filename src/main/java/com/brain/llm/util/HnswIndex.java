@@ -0,0 +1,207 @@
+package com.brain.llm.util;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * 基于内积相似度的 HNSW 近似最近邻索引
+ * 向量本身不复制，由 VectorStore 提供（例如内存映射的 faiss 索引）；构建完成后只读，可并发检索
+ * 邻接表 links[node][level] 的第 0 位保存邻居个数，其后为邻居 id
+ */
+public class HnswIndex {
+
+    public interface VectorStore {
+        int size();
+
+        int dim();
+
+        float dot(float[] query, int id);
+
+        float[] vector(int id);
+    }
+
+    private final VectorStore store;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final int[][][] links;
+    private final ThreadLocal<VisitedSet> visited;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    private HnswIndex(VectorStore store, int m, int efConstruction) {
+        this.store = store;
+        this.m = m;
+        this.maxM0 = m * 2;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1 / Math.log(m);
+        this.links = new int[store.size()][][];
+        this.visited = ThreadLocal.withInitial(() -> new VisitedSet(store.size()));
+    }
+
+    public static HnswIndex build(VectorStore store, int m, int efConstruction) {
+        HnswIndex index = new HnswIndex(store, m, efConstruction);
+        // 固定随机种子，同一份数据每次构建出相同的图
+        SplittableRandom random = new SplittableRandom(42);
+        for (int node = 0; node < store.size(); node++) {
+            index.insert(node, random);
+        }
+        return index;
+    }
+
+    /**
+     * 检索与 query 内积最大的 k 个向量，按分数从高到低返回（编码见 ScoredIds）
+     */
+    public long[] search(float[] query, int k, int ef) {
+        if (entryPoint < 0) {
+            return new long[0];
+        }
+        long best = ScoredIds.encode(store.dot(query, entryPoint), entryPoint);
+        for (int level = maxLevel; level > 0; level--) {
+            best = greedySearch(query, best, level);
+        }
+        LongMinHeap results = searchLayer(query, best, Math.max(ef, k), 0);
+        while (results.size() > k) {
+            results.poll();
+        }
+        return results.drainDescending();
+    }
+
+    private void insert(int node, SplittableRandom random) {
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[(l == 0 ? maxM0 : m) + 1];
+        }
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        float[] vector = store.vector(node);
+        long best = ScoredIds.encode(store.dot(vector, entryPoint), entryPoint);
+        for (int l = maxLevel; l > level; l--) {
+            best = greedySearch(vector, best, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            long[] candidates = searchLayer(vector, best, efConstruction, l).drainDescending();
+            int maxConnections = l == 0 ? maxM0 : m;
+            int count = Math.min(m, candidates.length);
+            int[] own = links[node][l];
+            own[0] = count;
+            for (int i = 0; i < count; i++) {
+                own[i + 1] = ScoredIds.id(candidates[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                addLink(ScoredIds.id(candidates[i]), node, ScoredIds.score(candidates[i]), l, maxConnections);
+            }
+            best = candidates[0];
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    // 给 target 增加一条指向 node 的边，邻居已满时只保留内积最大的 maxConnections 个
+    private void addLink(int target, int node, float score, int level, int maxConnections) {
+        int[] neighbors = links[target][level];
+        if (neighbors[0] < maxConnections) {
+            neighbors[++neighbors[0]] = node;
+            return;
+        }
+        float[] targetVector = store.vector(target);
+        LongMinHeap kept = new LongMinHeap(maxConnections + 1);
+        kept.push(ScoredIds.encode(score, node));
+        for (int i = 1; i <= neighbors[0]; i++) {
+            kept.push(ScoredIds.encode(store.dot(targetVector, neighbors[i]), neighbors[i]));
+            if (kept.size() > maxConnections) {
+                kept.poll();
+            }
+        }
+        long[] sorted = kept.drainDescending();
+        neighbors[0] = sorted.length;
+        for (int i = 0; i < sorted.length; i++) {
+            neighbors[i + 1] = ScoredIds.id(sorted[i]);
+        }
+    }
+
+    // 在单层上贪心移动到内积最大的邻居
+    private long greedySearch(float[] query, long best, int level) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] neighbors = links[ScoredIds.id(best)][level];
+            for (int i = 1; i <= neighbors[0]; i++) {
+                long candidate = ScoredIds.encode(store.dot(query, neighbors[i]), neighbors[i]);
+                if (candidate > best) {
+                    best = candidate;
+                    changed = true;
+                }
+            }
+        }
+        return best;
+    }
+
+    // 单层 beam search，返回保存 ef 个最佳结果的小顶堆
+    private LongMinHeap searchLayer(float[] query, long entry, int ef, int level) {
+        VisitedSet visitedSet = visited.get();
+        visitedSet.reset();
+        visitedSet.visit(ScoredIds.id(entry));
+        // 候选集按分数从高到低展开，取反后放入小顶堆即为大顶堆
+        LongMinHeap candidates = new LongMinHeap(ef * 2);
+        LongMinHeap results = new LongMinHeap(ef + 1);
+        candidates.push(~entry);
+        results.push(entry);
+        while (!candidates.isEmpty()) {
+            long current = ~candidates.poll();
+            if (results.size() >= ef && current < results.peek()) {
+                break;
+            }
+            int[] neighbors = links[ScoredIds.id(current)][level];
+            for (int i = 1; i <= neighbors[0]; i++) {
+                int neighbor = neighbors[i];
+                if (!visitedSet.visit(neighbor)) {
+                    continue;
+                }
+                long key = ScoredIds.encode(store.dot(query, neighbor), neighbor);
+                if (results.size() < ef || key > results.peek()) {
+                    candidates.push(~key);
+                    results.push(key);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    // 按代数标记已访问节点，每次检索不需要清空数组
+    private static class VisitedSet {
+        private final int[] marks;
+        private int generation;
+
+        VisitedSet(int size) {
+            this.marks = new int[size];
+        }
+
+        void reset() {
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        // 首次访问返回 true
+        boolean visit(int id) {
+            if (marks[id] == generation) {
+                return false;
+            }
+            marks[id] = generation;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.brain.llm.util;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.nio.entity.NStringEntity;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * es 客户端，第一次使用时才创建 RestHighLevelClient（检索用它的底层 RestClient，两者共用同一个连接池）
+ * es 客户端的类型只出现在这个类中：Spring 反射 bean 的字段和方法签名时会加载其中用到的类，
+ * 持有这个类的 bean 在客户端初始化之前不会加载 es 客户端
+ */
+public class LazyEsClient {
+
+    private final List<String> hosts;
+    private final String username;
+    private final String password;
+    private volatile RestHighLevelClient client;
+
+    /**
+     * @param hosts    es 地址，例如 http://localhost:9200
+     * @param username 为空时不认证
+     */
+    public LazyEsClient(List<String> hosts, String username, String password) {
+        this.hosts = hosts;
+        this.username = username;
+        this.password = password;
+    }
+
+    public RestHighLevelClient get() {
+        RestHighLevelClient current = client;
+        if (current == null) {
+            synchronized (this) {
+                current = client;
+                if (current == null) {
+                    current = create();
+                    client = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    public boolean isInitialized() {
+        return client != null;
+    }
+
+    /**
+     * 异步发送 POST 查询，响应体在 es 客户端的 IO 线程上交给 parser 解析
+     * @param filterPath 为空时返回完整响应
+     */
+    public <T> CompletableFuture<T> search(String endpoint, String filterPath, String query, BodyParser<T> parser, Cancellation cancellation) {
+        Request request = new Request("POST", endpoint);
+        if (filterPath != null) {
+            request.addParameter("filter_path", filterPath);
+        }
+        request.setEntity(new NStringEntity(query, ContentType.APPLICATION_JSON));
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Cancellable cancellable = get().getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                try (InputStream body = response.getEntity().getContent()) {
+                    future.complete(parser.parse(body));
+                } catch (IOException | RuntimeException e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        cancellation.onCancel(cancellable::cancel);
+        return future;
+    }
+
+    public void close() throws IOException {
+        RestHighLevelClient current = client;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private RestHighLevelClient create() {
+        HttpHost[] httpHosts = hosts.stream().map(String::trim).map(HttpHost::create).toArray(HttpHost[]::new);
+        RestClientBuilder builder = RestClient.builder(httpHosts);
+        if (username != null && !username.isEmpty()) {
+            // 初始化带认证的ES客户端
+            CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+            builder.setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+                    .setDefaultCredentialsProvider(credentialsProvider));
+        }
+        System.out.println("es 客户端已初始化: " + hosts);
+        return new RestHighLevelClient(builder);
+    }
+
+    public interface BodyParser<T> {
+        T parse(InputStream body) throws IOException;
+    }
+}
@@ -0,0 +1,84 @@
+package com.brain.llm.util;
+
+import java.util.Arrays;
+
+/**
+ * long 类型的二叉小顶堆，容量不足时自动扩容
+ */
+public class LongMinHeap {
+
+    private long[] heap;
+    private int size;
+
+    public LongMinHeap(int initialCapacity) {
+        this.heap = new long[Math.max(1, initialCapacity)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long peek() {
+        return heap[0];
+    }
+
+    public void push(long value) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = value;
+    }
+
+    public long poll() {
+        long top = heap[0];
+        long last = heap[--size];
+        if (size > 0) {
+            siftDown(last);
+        }
+        return top;
+    }
+
+    // 替换堆顶（比 poll + push 少一次调整）
+    public void replaceTop(long value) {
+        siftDown(value);
+    }
+
+    // 取出全部元素，按从大到小排列
+    public long[] drainDescending() {
+        long[] result = new long[size];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = poll();
+        }
+        return result;
+    }
+
+    private void siftDown(long value) {
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (value <= heap[child]) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+    }
+}
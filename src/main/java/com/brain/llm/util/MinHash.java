@@ -0,0 +1,79 @@
+package com.brain.llm.util;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 文本近似重复检测：按字符切分 shingle（中文没有空格分词，直接取连续的 n 个字符），
+ * 计算 MinHash 签名，两个签名相同位置取值相等的比例即 Jaccard 相似度的估计
+ * 每次只比较一个请求内的几十条结果，两两比较签名即可，不需要 LSH 分桶
+ */
+public final class MinHash {
+
+    private MinHash() {
+    }
+
+    /**
+     * 归一化：全半角统一、忽略大小写，去掉空白和标点，只保留字母、数字和汉字等
+     * 归一化后相同的两段文本视为完全重复
+     */
+    public static String normalize(String text) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder result = new StringBuilder(normalized.length());
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param normalized   normalize 之后的文本
+     * @param shingleSize  每个 shingle 的字符数，文本更短时整段作为一个 shingle
+     * @param numHashes    签名长度，越长估计越准，误差约为 1 / sqrt(numHashes)
+     */
+    public static int[] signature(String normalized, int shingleSize, int numHashes) {
+        int[] signature = new int[numHashes];
+        Arrays.fill(signature, -1);
+        int shingles = Math.max(1, normalized.length() - shingleSize + 1);
+        for (int start = 0; start < shingles; start++) {
+            int end = Math.min(normalized.length(), start + shingleSize);
+            long hash = 0xcbf29ce484222325L;
+            for (int i = start; i < end; i++) {
+                hash = (hash ^ normalized.charAt(i)) * 0x100000001b3L;
+            }
+            hash = mix(hash);
+            // 两个独立的哈希线性组合出 numHashes 个哈希函数（Kirsch-Mitzenmacher）
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < numHashes; i++) {
+                int value = h1 + i * h2;
+                if (Integer.compareUnsigned(value, signature[i]) < 0) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    // 估计的 Jaccard 相似度
+    public static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / a.length;
+    }
+
+    // splitmix64 的最终混合步骤，打散 FNV 的低位
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
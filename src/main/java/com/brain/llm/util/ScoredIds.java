@@ -0,0 +1,27 @@
+package com.brain.llm.util;
+
+/**
+ * 把 (分数, id) 编码为一个 long：高 32 位为保序转换后的 float 分数，低 32 位为 id
+ * 按 long 比较大小即按分数比较，便于用原始类型的堆做 top-k
+ */
+public final class ScoredIds {
+
+    private ScoredIds() {
+    }
+
+    public static long encode(float score, int id) {
+        int bits = Float.floatToIntBits(score);
+        // 负数翻转除符号位外的所有位，使 int 比较顺序与 float 一致
+        int sortable = bits ^ ((bits >> 31) & 0x7fffffff);
+        return ((long) sortable << 32) | (id & 0xffffffffL);
+    }
+
+    public static float score(long key) {
+        int sortable = (int) (key >>> 32);
+        return Float.intBitsToFloat(sortable ^ ((sortable >> 31) & 0x7fffffff));
+    }
+
+    public static int id(long key) {
+        return (int) key;
+    }
+}
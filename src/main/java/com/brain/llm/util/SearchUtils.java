@@ -7,6 +7,7 @@ import okhttp3.*;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -18,86 +19,135 @@ public class SearchUtils {
     private final ObjectMapper objectMapper;
 
     public SearchUtils(String searxngInstance,String apiKey) {
-        this.baseUrl = searxngInstance;
-        this.apiKey = apiKey;
-        this.client = new OkHttpClient.Builder()
+        this(searxngInstance, apiKey, new OkHttpClient.Builder()
                 .connectTimeout(30, TimeUnit.SECONDS)
                 .readTimeout(30, TimeUnit.SECONDS)
-                .build();
+                .build());
+    }
+
+    // 使用共享的 OkHttpClient，复用连接池和调度线程
+    public SearchUtils(String searxngInstance, String apiKey, OkHttpClient client) {
+        this.baseUrl = searxngInstance;
+        this.apiKey = apiKey;
+        this.client = client;
         this.objectMapper = new ObjectMapper();
     }
 
+    // 连接池统计
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", "search");
+        stats.put("connections", client.connectionPool().connectionCount());
+        stats.put("idleConnections", client.connectionPool().idleConnectionCount());
+        stats.put("runningCalls", client.dispatcher().runningCallsCount());
+        stats.put("queuedCalls", client.dispatcher().queuedCallsCount());
+        stats.put("maxRequests", client.dispatcher().getMaxRequests());
+        return stats;
+    }
+
+    // 出错时返回空列表
     public List<Map<String, String>> searXNG(String query, int numResults) {
-        List<Map<String, String>> results = new ArrayList<>();
         try {
-            HttpUrl url = HttpUrl.parse(baseUrl + "/search").newBuilder()
-                    .addQueryParameter("q", query)
-                    .addQueryParameter("format", "json")
-                    .addQueryParameter("pageno", "1")
-                    .addQueryParameter("language", "zh-CN")
-                    .addQueryParameter("categories", "general")
-                    .addQueryParameter("engines", "baidu,sogou,bing")
-                    .build();
-
-            Request request = new Request.Builder()
-                    .url(url)
-                    .header("User-Agent", "Mozilla/5.0")
-                    .build();
-
-            try (Response response = client.newCall(request).execute()) {
-                if (!response.isSuccessful()) throw new IOException("请求失败: " + response);
-
-                Map<String, Object> responseData = objectMapper.readValue(response.body().string(), Map.class);
-                List<Map<String, Object>> searchResults = (List<Map<String, Object>>) responseData.get("results");
-
-                if (searchResults != null) {
-                    for (int i = 0; i < Math.min(numResults, searchResults.size()); i++) {
-                        Map<String, Object> result = searchResults.get(i);
-                        Map<String, String> processedResult = new HashMap<>();
-                        processedResult.put("title", (String) result.get("title"));
-                        processedResult.put("url", (String) result.get("url"));
-                        processedResult.put("snippet", (String) result.get("content"));
-                        results.add(processedResult);
-                    }
-                }
-            }
+            return searXNG(query, numResults, Cancellation.none());
         } catch (Exception e) {
             System.err.println("搜索时发生错误: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * 请求取消时中止正在进行的搜索；失败、超时和取消都抛出异常，由调用方决定是否缓存结果
+     */
+    public List<Map<String, String>> searXNG(String query, int numResults, Cancellation cancellation) throws IOException {
+        HttpUrl url = HttpUrl.parse(baseUrl + "/search").newBuilder()
+                .addQueryParameter("q", query)
+                .addQueryParameter("format", "json")
+                .addQueryParameter("pageno", "1")
+                .addQueryParameter("language", "zh-CN")
+                .addQueryParameter("categories", "general")
+                .addQueryParameter("engines", "baidu,sogou,bing")
+                .build();
+
+        Request request = new Request.Builder()
+                .url(url)
+                .header("User-Agent", "Mozilla/5.0")
+                .build();
+
+        Call call = client.newCall(request);
+        cancellation.onCancel(call::cancel);
+        try (Response response = call.execute()) {
+            if (!response.isSuccessful()) throw new IOException("请求失败: " + response);
+
+            return parseSearXNG(response.body().string(), numResults);
         }
-        return results;
     }
 
+    // 出错时返回空列表
     public List<Map<String, String>> tavilySearch(String query) {
-        List<Map<String, String>> results = new ArrayList<>();
         try {
-            Map<String,String> requestBody = new HashMap<String, String>();
-            requestBody.put("query", query);
-            Request request = new Request.Builder()
-                    .url(baseUrl)
-                    .post(RequestBody.create(MediaType.parse("application/json"), objectMapper.writeValueAsString(requestBody)))
-                    .header("Content-Type", "application/json")
-                    .header("Authorization", "Bearer" + apiKey)
-                    .build();
-
-
-            try (Response response = client.newCall(request).execute()) {
-                if (!response.isSuccessful()) throw new IOException("请求失败: " + response);
-
-                JsonNode jsonNode = objectMapper.readTree(response.body().string()).get("results");
-
-                if (!jsonNode.isEmpty()) {
-                    jsonNode.forEach(data -> {
-                        Map<String, String> processedResult = new HashMap<>();
-                        processedResult.put("title", data.get("title").toString());
-                        processedResult.put("url", data.get("url").toString());
-                        processedResult.put("content", data.get("content").toString());
-                        results.add(processedResult);
-                    });
-                }
-            }
+            return tavilySearch(query, Cancellation.none());
         } catch (Exception e) {
             System.err.println("搜索时发生错误: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * 请求取消时中止正在进行的搜索；失败、超时和取消都抛出异常，由调用方决定是否缓存结果
+     */
+    public List<Map<String, String>> tavilySearch(String query, Cancellation cancellation) throws IOException {
+        Map<String,String> requestBody = new HashMap<String, String>();
+        requestBody.put("query", query);
+        Request request = new Request.Builder()
+                .url(baseUrl)
+                .post(RequestBody.create(MediaType.parse("application/json"), objectMapper.writeValueAsString(requestBody)))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer" + apiKey)
+                .build();
+
+
+        Call call = client.newCall(request);
+        cancellation.onCancel(call::cancel);
+        try (Response response = call.execute()) {
+            if (!response.isSuccessful()) throw new IOException("请求失败: " + response);
+
+            return parseTavily(response.body().string());
+        }
+    }
+
+    // 解析 searXNG 返回的 json，取前 numResults 条
+    List<Map<String, String>> parseSearXNG(String body, int numResults) throws IOException {
+        List<Map<String, String>> results = new ArrayList<>();
+        Map<String, Object> responseData = objectMapper.readValue(body, Map.class);
+        List<Map<String, Object>> searchResults = (List<Map<String, Object>>) responseData.get("results");
+
+        if (searchResults != null) {
+            for (int i = 0; i < Math.min(numResults, searchResults.size()); i++) {
+                Map<String, Object> result = searchResults.get(i);
+                Map<String, String> processedResult = new HashMap<>();
+                processedResult.put("title", (String) result.get("title"));
+                processedResult.put("url", (String) result.get("url"));
+                processedResult.put("snippet", (String) result.get("content"));
+                results.add(processedResult);
+            }
+        }
+        return results;
+    }
+
+    // 解析 tavily 返回的 json
+    List<Map<String, String>> parseTavily(String body) throws IOException {
+        List<Map<String, String>> results = new ArrayList<>();
+        JsonNode jsonNode = objectMapper.readTree(body).get("results");
+
+        if (!jsonNode.isEmpty()) {
+            jsonNode.forEach(data -> {
+                Map<String, String> processedResult = new HashMap<>();
+                processedResult.put("title", data.get("title").toString());
+                processedResult.put("url", data.get("url").toString());
+                processedResult.put("content", data.get("content").toString());
+                results.add(processedResult);
+            });
         }
         return results;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package com.brain.llm.util;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 基于 JDK Vector API 的内积实现，只能通过 VectorMath 调用，
+ * 未加载 jdk.incubator.vector 模块时不会触发本类加载
+ */
+final class SimdVectorMath {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private SimdVectorMath() {
+    }
+
+    static float dot(float[] query, ByteBuffer buffer, int offset) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(query.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector q = FloatVector.fromArray(SPECIES, query, i);
+            FloatVector v = FloatVector.fromByteBuffer(SPECIES, buffer, offset + i * Float.BYTES, ByteOrder.LITTLE_ENDIAN);
+            acc = q.fma(v, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < query.length; i++) {
+            sum += query[i] * buffer.getFloat(offset + i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    static float dot(float[] a, float[] b) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(a.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            acc = FloatVector.fromArray(SPECIES, a, i).fma(FloatVector.fromArray(SPECIES, b, i), acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,71 @@
+package com.brain.llm.util;
+
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * 预先拼好的 SSE 帧：event:xxx\ndata:{"field":"..."}\n\n
+ * 与 SseEmitter.event().name(xxx).data(Map.of(field, text)) 的输出完全一致，
+ * 但不经过 Jackson 序列化，一个帧只写一次、flush 一次
+ */
+public final class SseFrames {
+
+    private static final MediaType TEXT_PLAIN_UTF8 = new MediaType("text", "plain", StandardCharsets.UTF_8);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private SseFrames() {
+    }
+
+    // 单个字符串字段的 json 数据帧
+    public static String frame(String event, String field, CharSequence text) {
+        StringBuilder frame = new StringBuilder(event.length() + field.length() + text.length() + 24);
+        frame.append("event:").append(event).append("\ndata:{\"").append(field).append("\":");
+        appendJsonString(frame, text);
+        return frame.append("}\n\n").toString();
+    }
+
+    public static void send(SseEmitter emitter, String frame) throws IOException {
+        emitter.send(Set.of(new ResponseBodyEmitter.DataWithMediaType(frame, TEXT_PLAIN_UTF8)));
+    }
+
+    // 写入带引号的 json 字符串，转义引号、反斜杠和控制字符（data 行中不会出现换行）
+    public static void appendJsonString(StringBuilder out, CharSequence text) {
+        out.append('"');
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                case '\b' -> out.append("\\b");
+                case '\f' -> out.append("\\f");
+                default -> {
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    // UTF-8 编码后的字节数估算（不区分代理对，按 3 字节计）
+    public static int utf8Length(CharSequence text) {
+        int bytes = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return bytes;
+    }
+}
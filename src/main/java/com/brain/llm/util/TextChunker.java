@@ -0,0 +1,64 @@
+package com.brain.llm.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按字符数切分长文本，尽量在句子或换行处断开，相邻片段保留一段重叠，避免一句话被拆散后检索不到
+ */
+public final class TextChunker {
+
+    private TextChunker() {
+    }
+
+    /**
+     * @param maxChars 每段的最大字符数
+     * @param overlap  相邻片段的重叠字符数，小于 maxChars / 2
+     */
+    public static List<String> chunk(String text, int maxChars, int overlap) {
+        List<String> chunks = new ArrayList<>();
+        if (text == null) {
+            return chunks;
+        }
+        String trimmed = text.strip();
+        if (trimmed.isEmpty()) {
+            return chunks;
+        }
+        if (maxChars <= 0 || trimmed.length() <= maxChars) {
+            chunks.add(trimmed);
+            return chunks;
+        }
+        overlap = Math.max(0, Math.min(overlap, maxChars / 2 - 1));
+        int start = 0;
+        int length = trimmed.length();
+        while (start < length) {
+            int end = Math.min(start + maxChars, length);
+            if (end < length) {
+                end = boundary(trimmed, start + maxChars / 2, end);
+            }
+            String chunk = trimmed.substring(start, end).strip();
+            if (!chunk.isEmpty()) {
+                chunks.add(chunk);
+            }
+            if (end == length) {
+                break;
+            }
+            start = Math.max(start + 1, end - overlap);
+        }
+        return chunks;
+    }
+
+    // 在 [from, to) 中从后往前找句末标点或换行，返回其后的位置；找不到时在 to 处硬切
+    private static int boundary(String text, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            switch (text.charAt(i)) {
+                case '\n', '。', '！', '？', '；', '.', '!', '?', ';' -> {
+                    return i + 1;
+                }
+                default -> {
+                }
+            }
+        }
+        return to;
+    }
+}
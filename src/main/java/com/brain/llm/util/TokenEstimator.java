@@ -0,0 +1,46 @@
+package com.brain.llm.util;
+
+import java.util.Map;
+
+/**
+ * 粗略估算 token 数，不依赖分词器
+ * 参考 deepseek 官方换算：1 个中文字符约 0.6 token，1 个英文字符约 0.3 token
+ */
+public final class TokenEstimator {
+
+    // 每条消息的 role 等格式开销
+    private static final int MESSAGE_OVERHEAD = 4;
+
+    private TokenEstimator() {
+    }
+
+    public static int estimate(CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        long tenths = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            // CJK 及全角字符
+            tenths += c >= 0x2E80 ? 6 : 3;
+        }
+        return (int) ((tenths + 9) / 10);
+    }
+
+    // 估算值不超过 maxTokens 的最长前缀的字符数
+    public static int fit(CharSequence text, int maxTokens) {
+        long budget = maxTokens * 10L;
+        long tenths = 0;
+        for (int i = 0; i < text.length(); i++) {
+            tenths += text.charAt(i) >= 0x2E80 ? 6 : 3;
+            if (tenths > budget) {
+                return i;
+            }
+        }
+        return text.length();
+    }
+
+    public static int estimateMessage(Map<String, String> message) {
+        return estimate(message.get("content")) + MESSAGE_OVERHEAD;
+    }
+}
@@ -0,0 +1,344 @@
+package com.brain.llm.util;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个上游共享的 HTTP 客户端，复用连接（keep-alive / HTTP/2 多路复用），
+ * 并提供并发上限、首字节超时、读取超时以及请求统计
+ */
+public class UpstreamHttpClient {
+
+    // 所有上游共用的读取超时和排队超时检测线程，取消的排队超时任务立即移出定时队列
+    private static final ScheduledThreadPoolExecutor TIMEOUT_SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "upstream-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMEOUT_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final String name;
+    private final HttpClient client;
+    private final Duration firstByteTimeout;
+    private final Duration readTimeout;
+    private final int maxConnections;
+    // 空闲的并发名额和排队等待名额的请求，在 synchronized (this) 下访问
+    private int available;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong totalRequests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public UpstreamHttpClient(String name, HttpClient client, Duration firstByteTimeout, Duration readTimeout, int maxConnections) {
+        this.name = name;
+        this.client = client;
+        this.firstByteTimeout = firstByteTimeout;
+        this.readTimeout = readTimeout;
+        this.maxConnections = maxConnections;
+        this.available = maxConnections;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // 创建请求，已带上首字节超时（JDK 的 request timeout 只作用到收到响应头为止）
+    public HttpRequest.Builder newRequest(URI uri) {
+        return HttpRequest.newBuilder(uri).timeout(firstByteTimeout);
+    }
+
+    // 同步请求
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        acquire();
+        try {
+            return client.send(request, withReadTimeout(handler));
+        } catch (IOException e) {
+            recordFailure(e);
+            throw e;
+        } finally {
+            release();
+        }
+    }
+
+    // 可取消的同步请求，取消后立即中止上游请求并抛出 IOException
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler, Cancellation cancellation)
+            throws IOException, InterruptedException {
+        CompletableFuture<HttpResponse<T>> future = sendAsync(request, handler);
+        cancellation.onCancel(() -> future.cancel(true));
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            throw new IOException(name + " request cancelled", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(name + " request failed", e.getCause());
+        }
+    }
+
+    /**
+     * 异步请求，返回的 future 在响应体消费完毕后完成，此时才释放并发名额
+     * 名额不足时排队等待，不阻塞调用线程（调用方可能是单线程的合并或定时线程）
+     * 取消返回的 future 会退出排队，或中止底层的 HTTP 交换（包括正在读取的响应流）
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        CompletableFuture<Void> permit = acquireAsync();
+        permit.whenComplete((ignored, acquireError) -> {
+            if (acquireError != null) {
+                result.completeExceptionally(acquireError);
+                return;
+            }
+            if (result.isDone()) {
+                // 排队期间已被取消
+                release();
+                return;
+            }
+            CompletableFuture<HttpResponse<T>> exchange;
+            try {
+                exchange = client.sendAsync(request, withReadTimeout(handler));
+            } catch (RuntimeException e) {
+                release();
+                result.completeExceptionally(e);
+                return;
+            }
+            exchange.whenComplete((response, e) -> {
+                if (e != null && !(e instanceof CancellationException)) {
+                    recordFailure(e);
+                }
+                release();
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(response);
+                }
+            });
+            result.whenComplete((response, e) -> {
+                if (result.isCancelled()) {
+                    exchange.cancel(true);
+                }
+            });
+        });
+        result.whenComplete((response, e) -> {
+            if (result.isCancelled()) {
+                permit.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    // 可以立即获得的并发名额数，有请求排队时为 0
+    public synchronized int availablePermits() {
+        return waiters.isEmpty() ? available : 0;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", name);
+        stats.put("version", client.version().name());
+        stats.put("maxConnections", maxConnections);
+        stats.put("active", active.get());
+        synchronized (this) {
+            stats.put("waiting", waiters.size());
+        }
+        stats.put("totalRequests", totalRequests.get());
+        stats.put("failedRequests", failedRequests.get());
+        stats.put("timeouts", timeouts.get());
+        stats.put("rejected", rejected.get());
+        return stats;
+    }
+
+    // 同步获取并发名额，最多等待一个首字节超时
+    private void acquire() throws IOException, InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync();
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            // 取消失败说明已经拿到名额
+            if (!permit.cancel(false) && !permit.isCompletedExceptionally()) {
+                release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(name + " failed to acquire a connection", e.getCause());
+        }
+    }
+
+    /**
+     * 异步获取并发名额：有空闲名额且没有人排队时立即完成，否则按先来先得排队，
+     * 最多等待一个首字节超时；取消返回的 future 即退出排队
+     */
+    private CompletableFuture<Void> acquireAsync() {
+        CompletableFuture<Void> waiter;
+        synchronized (this) {
+            if (available > 0 && waiters.isEmpty()) {
+                available--;
+                active.incrementAndGet();
+                totalRequests.incrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+            waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+        }
+        ScheduledFuture<?> timeout = TIMEOUT_SCHEDULER.schedule(() -> {
+            if (waiter.completeExceptionally(new IOException(name + " connection pool exhausted (" + maxConnections + ")"))) {
+                rejected.incrementAndGet();
+            }
+        }, firstByteTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        waiter.whenComplete((ignored, e) -> {
+            timeout.cancel(false);
+            if (e != null) {
+                synchronized (this) {
+                    waiters.remove(waiter);
+                }
+            }
+        });
+        return waiter;
+    }
+
+    // 名额直接交给排队最久的请求，已超时或取消的跳过
+    private void release() {
+        active.decrementAndGet();
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = waiters.poll();
+                if (next == null) {
+                    available++;
+                    return;
+                }
+            }
+            active.incrementAndGet();
+            if (next.complete(null)) {
+                totalRequests.incrementAndGet();
+                return;
+            }
+            active.decrementAndGet();
+        }
+    }
+
+    private void recordFailure(Throwable e) {
+        failedRequests.incrementAndGet();
+        Throwable cause = e.getCause() != null ? e.getCause() : e;
+        if (e instanceof HttpTimeoutException || cause instanceof HttpTimeoutException) {
+            timeouts.incrementAndGet();
+        }
+    }
+
+    private <T> HttpResponse.BodyHandler<T> withReadTimeout(HttpResponse.BodyHandler<T> handler) {
+        return responseInfo -> new ReadTimeoutSubscriber<>(handler.apply(responseInfo), readTimeout);
+    }
+
+    /**
+     * 读取超时：响应体两次数据之间超过 readTimeout 则取消请求
+     * onNext 只记录时间戳，由定时任务按剩余时间检查，避免每个数据块都重建定时器
+     */
+    private static class ReadTimeoutSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+        private final HttpResponse.BodySubscriber<T> delegate;
+        private final long timeoutNanos;
+        private final CompletableFuture<T> body = new CompletableFuture<>();
+        // 收到 onComplete / onError 或已超时
+        private final AtomicBoolean terminated = new AtomicBoolean();
+        private volatile long lastRead;
+        private volatile Flow.Subscription subscription;
+
+        ReadTimeoutSubscriber(HttpResponse.BodySubscriber<T> delegate, Duration timeout) {
+            this.delegate = delegate;
+            this.timeoutNanos = timeout.toNanos();
+            delegate.getBody().whenComplete((value, e) -> {
+                if (e != null) {
+                    body.completeExceptionally(e);
+                } else {
+                    body.complete(value);
+                }
+            });
+        }
+
+        @Override
+        public CompletionStage<T> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            this.lastRead = System.nanoTime();
+            schedule(timeoutNanos);
+            delegate.onSubscribe(subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            lastRead = System.nanoTime();
+            if (!terminated.get()) {
+                delegate.onNext(item);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if (terminated.compareAndSet(false, true)) {
+                delegate.onError(throwable);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (terminated.compareAndSet(false, true)) {
+                delegate.onComplete();
+            }
+        }
+
+        private void schedule(long delayNanos) {
+            TIMEOUT_SCHEDULER.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void check() {
+            if (terminated.get()) {
+                return;
+            }
+            long idle = System.nanoTime() - lastRead;
+            if (idle < timeoutNanos) {
+                schedule(timeoutNanos - idle);
+                return;
+            }
+            if (terminated.compareAndSet(false, true)) {
+                subscription.cancel();
+                HttpTimeoutException e = new HttpTimeoutException("read timed out after " + Duration.ofNanos(timeoutNanos));
+                delegate.onError(e);
+                body.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.brain.llm.util;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.time.Duration;
+
+/**
+ * 上游返回非 200 状态码，带上状态码和 Retry-After，供调度器判断是否过载、是否重试
+ */
+public class UpstreamStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final Duration retryAfter;
+
+    public UpstreamStatusException(int statusCode, Duration retryAfter, String message) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    // 上游要求的重试间隔，未返回时为 null
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+
+    // 429 和 503 表示上游容量不足
+    public boolean isOverload() {
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    public boolean isRetryable() {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    // 只解析秒数形式的 Retry-After
+    public static Duration retryAfter(HttpHeaders headers) {
+        return headers.firstValue("Retry-After")
+                .map(value -> {
+                    try {
+                        return Duration.ofSeconds(Long.parseLong(value.trim()));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                })
+                .orElse(null);
+    }
+}
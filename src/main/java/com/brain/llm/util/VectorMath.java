@@ -0,0 +1,38 @@
+package com.brain.llm.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 向量内积计算
+ * 启动参数带上 --add-modules jdk.incubator.vector 时使用 SIMD 实现，否则退回标量循环
+ */
+public final class VectorMath {
+
+    public static final boolean SIMD_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private VectorMath() {
+    }
+
+    // 查询向量与 buffer 中 offset 处开始的向量（小端 float）的内积
+    public static float dot(float[] query, ByteBuffer buffer, int offset) {
+        if (SIMD_AVAILABLE) {
+            return SimdVectorMath.dot(query, buffer, offset);
+        }
+        float sum = 0f;
+        for (int i = 0; i < query.length; i++) {
+            sum += query[i] * buffer.getFloat(offset + i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    public static float dot(float[] a, float[] b) {
+        if (SIMD_AVAILABLE) {
+            return SimdVectorMath.dot(a, b);
+        }
+        float sum = 0f;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+}
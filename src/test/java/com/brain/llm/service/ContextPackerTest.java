@@ -0,0 +1,126 @@
+package com.brain.llm.service;
+
+import com.brain.llm.domain.Passage;
+import com.brain.llm.util.TokenEstimator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContextPackerTest {
+
+    private static final String VECTOR = "向量检索先把问题转换成嵌入向量，再在索引中查找距离最近的片段。";
+    private static final String HYBRID = "混合检索同时使用关键词匹配和向量相似度，并用倒数排名融合合并结果。"
+            + "召回的片段按相关度排序。超出预算的部分在句子结尾处截断。";
+    private static final String LONG = "Elasticsearch 的混合检索同时使用 BM25 关键词匹配和 kNN 向量相似度，"
+            + "两路结果按倒数排名融合（RRF）合并，原始分数不可比时这样比直接相加更稳定。"
+            + "召回的片段再按检索源权重排序，超出 token 预算的部分在句子结尾处截断。";
+
+    @Test
+    void exactDuplicateIsKeptOnce() {
+        ContextPacker packer = packer(3000);
+        ContextPacker.Packed packed = packer.pack(sources(
+                List.of(search(0, "Spring Boot，是一个框架！")),
+                List.of(rag(0, "spring boot 是一个框架"), rag(1, VECTOR))), false);
+
+        // 知识库权重更高，保留知识库的那条
+        assertThat(packed.getContext()).contains("spring boot 是一个框架").doesNotContain("联网搜索结果").contains(VECTOR);
+        assertThat(packer.stats()).containsEntry("exactDuplicates", 1L).containsEntry("nearDuplicates", 0L);
+        assertThat(packed.getContextTokens()).isLessThan(packed.getCandidateTokens());
+    }
+
+    @Test
+    void nearDuplicateIsRemoved() {
+        ContextPacker packer = packer(3000);
+        String edited = LONG.replace("更稳定", "更可靠");
+        ContextPacker.Packed packed = packer.pack(sources(
+                List.of(search(0, edited), search(1, VECTOR)),
+                List.of(rag(0, LONG))), false);
+
+        assertThat(packed.getContext()).contains(LONG).doesNotContain(edited).contains(VECTOR);
+        assertThat(packer.stats()).containsEntry("exactDuplicates", 0L).containsEntry("nearDuplicates", 1L);
+    }
+
+    @Test
+    void overflowIsTruncatedAtSentenceEndWithinBudget() {
+        int budget = 50;
+        ContextPacker packer = packer(budget);
+        ContextPacker.Packed packed = packer.pack(sources(List.of(), List.of(rag(0, VECTOR), rag(1, HYBRID))), false);
+
+        assertThat(packed.getContext())
+                .contains(VECTOR)
+                .contains("混合检索同时使用关键词匹配和向量相似度，并用倒数排名融合合并结果。\n")
+                .doesNotContain("召回的片段");
+        assertThat(packed.getContextTokens()).isLessThanOrEqualTo(budget).isEqualTo(TokenEstimator.estimate(packed.getContext()));
+        assertThat(packer.stats()).containsEntry("truncated", 1L).containsEntry("dropped", 0L);
+    }
+
+    @Test
+    void passageWithoutSentenceInBudgetIsDropped() {
+        ContextPacker packer = packer(30);
+        ContextPacker.Packed packed = packer.pack(sources(List.of(), List.of(rag(0, VECTOR), rag(1, HYBRID))), false);
+
+        assertThat(packed.getContext()).contains(VECTOR).doesNotContain("混合检索");
+        assertThat(packer.stats()).containsEntry("truncated", 0L).containsEntry("dropped", 1L);
+    }
+
+    @Test
+    void maxToggleUsesItsOwnBudget() {
+        ContextPacker packer = packer(20);
+        ContextPacker.Packed packed = packer.pack(sources(List.of(), List.of(rag(0, VECTOR), rag(1, HYBRID))), true);
+
+        assertThat(packed.getContext()).contains(VECTOR).contains(HYBRID);
+    }
+
+    @Test
+    void truncateStopsAtLastSentenceEndWithinBudget() {
+        String text = "第一句。第二句。第三句。";
+        // 每个汉字约 0.6 token，5 个 token 放得下 8 个字
+        assertThat(ContextPacker.truncate(text, 5)).isEqualTo("第一句。第二句。");
+        assertThat(ContextPacker.truncate(text, 100)).isEqualTo(text);
+        assertThat(ContextPacker.truncate(text, 2)).isNull();
+        assertThat(ContextPacker.truncate(text, 0)).isNull();
+    }
+
+    @Test
+    void truncateDoesNotSplitDecimalsOrUrls() {
+        assertThat(ContextPacker.truncate("Version 3.14 is out. See example.com/a.b for details", 8))
+                .isEqualTo("Version 3.14 is out.");
+        assertThat(ContextPacker.truncate("pi is 3.14159 approximately", 5)).isNull();
+    }
+
+    private static ContextPacker packer(int maxTokens) {
+        ContextPacker packer = new ContextPacker();
+        ReflectionTestUtils.setField(packer, "enabled", true);
+        ReflectionTestUtils.setField(packer, "maxTokens", maxTokens);
+        ReflectionTestUtils.setField(packer, "maxToggleMaxTokens", 6000);
+        ReflectionTestUtils.setField(packer, "nearDuplicateThreshold", 0.8);
+        ReflectionTestUtils.setField(packer, "shingleSize", 3);
+        ReflectionTestUtils.setField(packer, "minHashSize", 64);
+        ReflectionTestUtils.setField(packer, "minTruncatedTokens", 10);
+        ReflectionTestUtils.setField(packer, "ragWeight", 1.0);
+        ReflectionTestUtils.setField(packer, "searchWeight", 0.8);
+        ReflectionTestUtils.setField(packer, "chatMetrics", new ChatMetrics(new SimpleMeterRegistry()));
+        return packer;
+    }
+
+    private static Map<String, List<Passage>> sources(List<Passage> search, List<Passage> rag) {
+        Map<String, List<Passage>> sources = new LinkedHashMap<>();
+        sources.put(RetrievalService.SOURCE_SEARCH, search);
+        sources.put(RetrievalService.SOURCE_RAG, rag);
+        return sources;
+    }
+
+    private static Passage search(int rank, String text) {
+        return new Passage(RetrievalService.SOURCE_SEARCH, rank, "标题" + rank, "https://example.com/" + rank, text);
+    }
+
+    private static Passage rag(int rank, String text) {
+        return new Passage(RetrievalService.SOURCE_RAG, rank, null, null, text);
+    }
+}
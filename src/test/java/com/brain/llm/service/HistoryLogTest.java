@@ -0,0 +1,141 @@
+package com.brain.llm.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistoryLogTest {
+
+    private static final String SESSION = "session-1";
+
+    @TempDir
+    Path dir;
+
+    private final List<HistoryLog> logs = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        for (HistoryLog log : logs) {
+            log.shutdown();
+        }
+    }
+
+    @Test
+    void replayStopsAtCorruptedTail() throws Exception {
+        HistoryLog log = open();
+        log.append(SESSION, message("user", "第一条"));
+        log.append(SESSION, message("assistant", "second"));
+        log.append(SESSION, message("user", "第三条"));
+        assertThat(log.load(SESSION)).hasSize(3);
+        log.shutdown();
+
+        // 破坏最后一条记录的内容，模拟写到一半时进程退出
+        Path file = dir.resolve(HistoryLog.fileName(SESSION));
+        byte[] bytes = Files.readAllBytes(file);
+        int last = recordOffsets(bytes).get(2);
+        bytes[last + 12] ^= 0x7F;
+        Files.write(file, bytes);
+
+        HistoryLog reopened = open();
+        assertThat(reopened.load(SESSION)).containsExactly(message("user", "第一条"), message("assistant", "second"));
+
+        // 新记录从有效内容的末尾写起，覆盖损坏的记录
+        reopened.append(SESSION, message("user", "again"));
+        assertThat(reopened.load(SESSION))
+                .containsExactly(message("user", "第一条"), message("assistant", "second"), message("user", "again"));
+    }
+
+    @Test
+    void replayIgnoresRecordWithoutLength() throws Exception {
+        HistoryLog log = open();
+        log.append(SESSION, message("user", "kept"));
+        log.append(SESSION, message("assistant", "torn"));
+        assertThat(log.load(SESSION)).hasSize(2);
+        log.shutdown();
+
+        // 长度最后写入，长度仍为 0 的记录视为没有写完
+        Path file = dir.resolve(HistoryLog.fileName(SESSION));
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(recordOffsets(bytes).get(1), 0);
+        Files.write(file, bytes);
+
+        assertThat(open().load(SESSION)).containsExactly(message("user", "kept"));
+    }
+
+    @Test
+    void trimIsReplayedAndSurvivesCompaction() throws Exception {
+        HistoryLog log = open();
+        for (int i = 0; i < 10; i++) {
+            log.append(SESSION, message(i % 2 == 0 ? "user" : "assistant", "message " + i));
+        }
+        log.trim(SESSION, 8);
+        List<Map<String, String>> expected = List.of(message("user", "message 8"), message("assistant", "message 9"));
+        assertThat(log.load(SESSION)).isEqualTo(expected);
+
+        ReflectionTestUtils.invokeMethod(log, "compactAndExpire");
+        assertThat(log.stats()).containsEntry("compactions", 1L).containsEntry("writeErrors", 0L);
+        assertThat(log.load(SESSION)).isEqualTo(expected);
+        assertThat(dir.resolve(HistoryLog.fileName(SESSION) + ".tmp")).doesNotExist();
+
+        // 压缩后的日志只剩有效记录，继续追加、裁剪后重启读取
+        log.append(SESSION, message("user", "message 10"));
+        log.trim(SESSION, 1);
+        log.shutdown();
+        assertThat(open().load(SESSION)).containsExactly(message("assistant", "message 9"), message("user", "message 10"));
+    }
+
+    @Test
+    void clearRemovesLog() throws Exception {
+        HistoryLog log = open();
+        log.append(SESSION, message("user", "hello"));
+        assertThat(log.load(SESSION)).hasSize(1);
+        log.clear(SESSION);
+        assertThat(log.load(SESSION)).isEmpty();
+        assertThat(dir.resolve(HistoryLog.fileName(SESSION))).doesNotExist();
+    }
+
+    // 后台任务的间隔设得很长，写入只在 load、压缩和 shutdown 时发生
+    private HistoryLog open() throws Exception {
+        HistoryLog log = new HistoryLog();
+        ReflectionTestUtils.setField(log, "enabled", true);
+        ReflectionTestUtils.setField(log, "dir", dir);
+        ReflectionTestUtils.setField(log, "flushInterval", Duration.ofHours(1));
+        ReflectionTestUtils.setField(log, "syncInterval", Duration.ZERO);
+        ReflectionTestUtils.setField(log, "compactRatio", 2.0);
+        ReflectionTestUtils.setField(log, "compactMinBytes", 0L);
+        ReflectionTestUtils.setField(log, "compactInterval", Duration.ofHours(1));
+        ReflectionTestUtils.setField(log, "maxOpenLogs", 16);
+        ReflectionTestUtils.setField(log, "retention", Duration.ofDays(7));
+        log.start();
+        logs.add(log);
+        return log;
+    }
+
+    // 按记录头中的长度依次找出每条记录的起始位置
+    private static List<Integer> recordOffsets(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        List<Integer> offsets = new ArrayList<>();
+        int position = 0;
+        int length;
+        while (position + 4 <= bytes.length && (length = buffer.getInt(position)) > 0) {
+            offsets.add(position);
+            position += 8 + length;
+        }
+        return offsets;
+    }
+
+    private static Map<String, String> message(String role, String content) {
+        return PromptAssembler.message(role, content);
+    }
+}
@@ -0,0 +1,222 @@
+package com.brain.llm.service;
+
+import com.brain.llm.config.RoutingProperties;
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.DebugEchoSink;
+import com.brain.llm.util.DeepSeekStreamDecoder;
+import com.brain.llm.util.UpstreamHttpClient;
+import com.brain.llm.util.UpstreamStatusException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ModelRouterTest {
+
+    private static final int MAX_CONNECTIONS = 4;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private UpstreamHttpClient client;
+    private final List<ModelRouter> routers = new ArrayList<>();
+    // 慢端点在连接被关闭前一直不输出内容
+    private final CountDownLatch slowReleased = new CountDownLatch(1);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        client = new UpstreamHttpClient("test", HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build(),
+                Duration.ofSeconds(5), Duration.ofSeconds(5), MAX_CONNECTIONS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        routers.forEach(ModelRouter::shutdown);
+        slowReleased.countDown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void hedgeLoserIsCancelledAndItsConnectionReturned() throws Exception {
+        AtomicInteger slowRequests = new AtomicInteger();
+        server.createContext("/slow", exchange -> {
+            slowRequests.incrementAndGet();
+            startStream(exchange);
+            try {
+                slowReleased.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+        server.createContext("/fast", exchange -> {
+            startStream(exchange);
+            writeChunk(exchange.getResponseBody(), "fast");
+            writeDone(exchange.getResponseBody());
+            exchange.close();
+        });
+        ModelRouter router = router(true, endpoint("slow"), endpoint("fast"));
+
+        StringBuilder answer = new StringBuilder();
+        router.stream("{}", Map.of(), listener(answer), permit(), new Cancellation()).get(5, TimeUnit.SECONDS);
+
+        assertThat(answer.toString()).isEqualTo("fast");
+        assertThat(slowRequests.get()).isEqualTo(1);
+        assertThat(router.stats()).containsEntry("hedges", 1L).containsEntry("hedgeWins", 1L)
+                .containsEntry("failovers", 0L);
+        // 落后方的请求被取消，占用的连接名额归还
+        awaitIdle();
+    }
+
+    @Test
+    void failsOverToNextEndpointBeforeFirstToken() throws Exception {
+        server.createContext("/broken", exchange -> {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        server.createContext("/fast", exchange -> {
+            startStream(exchange);
+            writeChunk(exchange.getResponseBody(), "fallback");
+            writeDone(exchange.getResponseBody());
+            exchange.close();
+        });
+        ModelRouter router = router(false, endpoint("broken"), endpoint("fast"));
+
+        StringBuilder answer = new StringBuilder();
+        router.stream("{}", Map.of(), listener(answer), permit(), new Cancellation()).get(5, TimeUnit.SECONDS);
+
+        assertThat(answer.toString()).isEqualTo("fallback");
+        assertThat(router.stats()).containsEntry("failovers", 1L).containsEntry("hedges", 0L);
+        awaitIdle();
+    }
+
+    @Test
+    void doesNotFailOverAfterFirstToken() throws Exception {
+        server.createContext("/torn", exchange -> {
+            startStream(exchange);
+            // 输出一段内容后断开，没有 [DONE]
+            writeChunk(exchange.getResponseBody(), "partial");
+            exchange.getResponseBody().write("data: {\"choices\":[".getBytes(StandardCharsets.UTF_8));
+            exchange.getResponseBody().flush();
+            exchange.close();
+        });
+        AtomicInteger fallbackRequests = new AtomicInteger();
+        server.createContext("/fast", exchange -> {
+            fallbackRequests.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        ModelRouter router = router(false, endpoint("torn"), endpoint("fast"));
+
+        StringBuilder answer = new StringBuilder();
+        CompletableFuture<?> result = router.stream("{}", Map.of(), listener(answer), permit(), new Cancellation());
+        Throwable error = result.handle((response, e) -> e).get(5, TimeUnit.SECONDS);
+
+        // 已经输出给前端的内容不能由另一个端点重新生成
+        assertThat(answer.toString()).isEqualTo("partial");
+        assertThat(error).isNotNull().isNotInstanceOf(UpstreamStatusException.class);
+        assertThat(fallbackRequests.get()).isZero();
+        assertThat(router.stats()).containsEntry("failovers", 0L);
+        awaitIdle();
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (client.availablePermits() != MAX_CONNECTIONS && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(client.availablePermits()).isEqualTo(MAX_CONNECTIONS);
+        assertThat(client.stats()).containsEntry("active", 0);
+    }
+
+    // 对冲延迟固定为 50ms，预算足够发出对冲
+    private ModelRouter router(boolean hedged, RoutingProperties.Endpoint... endpoints) {
+        RoutingProperties properties = new RoutingProperties();
+        properties.setEndpoints(List.of(endpoints));
+        RoutingProperties.Hedge hedge = properties.getHedge();
+        hedge.setEnabled(hedged);
+        hedge.setInitialDelay(Duration.ofMillis(50));
+        hedge.setMinDelay(Duration.ofMillis(50));
+        hedge.setMaxDelay(Duration.ofMillis(50));
+        hedge.setBudgetBurst(10);
+
+        ModelRouter router = new ModelRouter();
+        ReflectionTestUtils.setField(router, "properties", properties);
+        ReflectionTestUtils.setField(router, "deepseekClient", client);
+        ReflectionTestUtils.setField(router, "debugEchoSink", new DebugEchoSink(false, 10));
+        router.init();
+        routers.add(router);
+        return router;
+    }
+
+    private RoutingProperties.Endpoint endpoint(String name) {
+        RoutingProperties.Endpoint endpoint = new RoutingProperties.Endpoint();
+        endpoint.setName(name);
+        endpoint.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/" + name);
+        return endpoint;
+    }
+
+    private static UpstreamScheduler.Permit permit() {
+        UpstreamScheduler scheduler = new UpstreamScheduler();
+        ReflectionTestUtils.setField(scheduler, "chatMetrics", new ChatMetrics(new SimpleMeterRegistry()));
+        return scheduler.new Permit(0);
+    }
+
+    private static DeepSeekStreamDecoder.Listener listener(StringBuilder answer) {
+        return new DeepSeekStreamDecoder.Listener() {
+            @Override
+            public void onReasoning(String reasoningContent) {
+            }
+
+            @Override
+            public void onContent(String content) {
+                synchronized (answer) {
+                    answer.append(content);
+                }
+            }
+        };
+    }
+
+    private static void startStream(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        exchange.getResponseBody().flush();
+    }
+
+    private static void writeChunk(OutputStream out, String content) throws IOException {
+        out.write(("data: {\"choices\":[{\"delta\":{\"content\":\"" + content + "\"}}]}\n\n")
+                .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void writeDone(OutputStream out) throws IOException {
+        out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
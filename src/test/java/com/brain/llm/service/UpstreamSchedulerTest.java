@@ -0,0 +1,242 @@
+package com.brain.llm.service;
+
+import com.brain.llm.util.Cancellation;
+import com.brain.llm.util.UpstreamStatusException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UpstreamSchedulerTest {
+
+    private final List<UpstreamScheduler> schedulers = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        schedulers.forEach(UpstreamScheduler::shutdown);
+    }
+
+    @Test
+    void permitIsReleasedOnSuccessAndFailure() throws Exception {
+        UpstreamScheduler scheduler = scheduler(2, 1);
+
+        assertThat(scheduler.submit("s", new Cancellation(), position -> {
+        }, permit -> CompletableFuture.completedFuture("ok"), () -> false).get(1, TimeUnit.SECONDS)).isEqualTo("ok");
+        assertThat(scheduler.stats()).containsEntry("inflight", 0);
+
+        CompletableFuture<Object> failed = scheduler.submit("s", new Cancellation(), position -> {
+        }, permit -> CompletableFuture.failedFuture(new IllegalStateException("boom")), () -> false);
+        assertThatThrownBy(() -> failed.get(1, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(scheduler.stats()).containsEntry("inflight", 0);
+
+        // 发起调用时直接抛出
+        CompletableFuture<Object> thrown = scheduler.submit("s", new Cancellation(), position -> {
+        }, permit -> {
+            throw new IllegalStateException("thrown");
+        }, () -> false);
+        assertThatThrownBy(() -> thrown.get(1, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(scheduler.stats()).containsEntry("inflight", 0).containsEntry("granted", 3L);
+    }
+
+    @Test
+    void cancelWhileQueuedLeavesQueueWithoutCallingUpstream() throws Exception {
+        UpstreamScheduler scheduler = scheduler(1, 1);
+        CompletableFuture<String> holder = new CompletableFuture<>();
+        CompletableFuture<String> first = scheduler.submit("a", new Cancellation(), position -> {
+        }, permit -> holder, () -> false);
+
+        Cancellation cancellation = new Cancellation();
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> queued = scheduler.submit("b", cancellation, position -> {
+        }, permit -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("b");
+        }, () -> false);
+        assertThat(scheduler.stats()).containsEntry("queued", 1).containsEntry("inflight", 1);
+
+        cancellation.cancel();
+        assertThatThrownBy(() -> queued.get(1, TimeUnit.SECONDS)).isInstanceOf(CancellationException.class);
+        assertThat(scheduler.stats()).containsEntry("queued", 0);
+        // 排队超时任务已随出队移除，只剩推送位置的周期任务
+        assertThat(timer(scheduler).getQueue()).hasSize(1);
+
+        holder.complete("a");
+        assertThat(first.get(1, TimeUnit.SECONDS)).isEqualTo("a");
+        assertThat(scheduler.stats()).containsEntry("inflight", 0);
+        assertThat(calls).hasValue(0);
+    }
+
+    @Test
+    void queueTimeoutFailsWaiterAndKeepsPermitCount() throws Exception {
+        UpstreamScheduler scheduler = scheduler(1, 1);
+        ReflectionTestUtils.setField(scheduler, "queueTimeout", Duration.ofMillis(50));
+        CompletableFuture<String> holder = new CompletableFuture<>();
+        scheduler.submit("a", new Cancellation(), position -> {
+        }, permit -> holder, () -> false);
+
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> queued = scheduler.submit("b", new Cancellation(), position -> {
+        }, permit -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("b");
+        }, () -> false);
+        assertThatThrownBy(() -> queued.get(1, TimeUnit.SECONDS)).hasCauseInstanceOf(TimeoutException.class);
+        assertThat(scheduler.stats()).containsEntry("queued", 0).containsEntry("queueTimeouts", 1L);
+
+        holder.complete("a");
+        assertThat(scheduler.stats()).containsEntry("inflight", 0);
+        assertThat(calls).hasValue(0);
+    }
+
+    @Test
+    void queueRejectsBeyondPerSessionLimit() {
+        UpstreamScheduler scheduler = scheduler(1, 1);
+        ReflectionTestUtils.setField(scheduler, "maxQueuedPerSession", 1);
+        scheduler.submit("a", new Cancellation(), position -> {
+        }, permit -> new CompletableFuture<>(), () -> false);
+        scheduler.submit("a", new Cancellation(), position -> {
+        }, permit -> CompletableFuture.completedFuture("queued"), () -> false);
+
+        CompletableFuture<String> rejected = scheduler.submit("a", new Cancellation(), position -> {
+        }, permit -> CompletableFuture.completedFuture("rejected"), () -> false);
+        assertThatThrownBy(rejected::join).hasCauseInstanceOf(RejectedExecutionException.class);
+        // 其他会话不受影响
+        assertThat(scheduler.submit("b", new Cancellation(), position -> {
+        }, permit -> CompletableFuture.completedFuture("b"), () -> false)).isNotDone();
+        assertThat(scheduler.stats()).containsEntry("queued", 2).containsEntry("rejected", 1L);
+    }
+
+    @Test
+    void sessionsAreServedInRotation() throws Exception {
+        UpstreamScheduler scheduler = scheduler(1, 1);
+        List<String> order = new ArrayList<>();
+        List<CompletableFuture<String>> running = new ArrayList<>();
+        CompletableFuture<String> holder = new CompletableFuture<>();
+        scheduler.submit("x", new Cancellation(), position -> {
+        }, permit -> holder, () -> false);
+
+        List<Integer> positions = new ArrayList<>();
+        for (String label : List.of("a1", "a2", "a3", "b1", "c1")) {
+            scheduler.submit(label.substring(0, 1), new Cancellation(), positions::add, permit -> {
+                order.add(label);
+                CompletableFuture<String> call = new CompletableFuture<>();
+                running.add(call);
+                return call;
+            }, () -> false);
+        }
+        // 轮转调度下的排队位置
+        assertThat(positions).containsExactly(1, 2, 3, 2, 3);
+
+        holder.complete("x");
+        for (int i = 0; i < 5; i++) {
+            assertThat(order).hasSize(i + 1);
+            running.get(i).complete("done");
+        }
+        assertThat(order).containsExactly("a1", "b1", "c1", "a2", "a3");
+        assertThat(scheduler.stats()).containsEntry("inflight", 0).containsEntry("queued", 0);
+    }
+
+    @Test
+    void retriesOnlyBeforeStreamStarted() throws Exception {
+        UpstreamScheduler scheduler = scheduler(4, 3);
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> retried = scheduler.submit("s", new Cancellation(), position -> {
+        }, permit -> {
+            calls.incrementAndGet();
+            return CompletableFuture.failedFuture(new IOException("connection reset"));
+        }, () -> false);
+        assertThatThrownBy(() -> retried.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class);
+        assertThat(calls).hasValue(3);
+        assertThat(scheduler.stats()).containsEntry("retries", 2L).containsEntry("inflight", 0);
+
+        // 已经向前端输出过内容，失败后不再重试
+        calls.set(0);
+        CompletableFuture<String> started = scheduler.submit("s", new Cancellation(), position -> {
+        }, permit -> {
+            calls.incrementAndGet();
+            return CompletableFuture.failedFuture(new IOException("stream ended before [DONE]"));
+        }, () -> true);
+        assertThatThrownBy(() -> started.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(IOException.class);
+        assertThat(calls).hasValue(1);
+        assertThat(scheduler.stats()).containsEntry("retries", 2L).containsEntry("inflight", 0);
+    }
+
+    @Test
+    void nonRetryableStatusIsNotRetried() {
+        UpstreamScheduler scheduler = scheduler(4, 3);
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> result = scheduler.submit("s", new Cancellation(), position -> {
+        }, permit -> {
+            calls.incrementAndGet();
+            return CompletableFuture.failedFuture(new UpstreamStatusException(400, null, "bad request"));
+        }, () -> false);
+        assertThatThrownBy(result::join).hasCauseInstanceOf(UpstreamStatusException.class);
+        assertThat(calls).hasValue(1);
+    }
+
+    @Test
+    void overloadResponsesDecreaseLimit() throws Exception {
+        UpstreamScheduler scheduler = scheduler(16, 1);
+        fail(scheduler, new UpstreamStatusException(429, Duration.ofSeconds(1), "too many requests"));
+        assertThat(scheduler.stats()).containsEntry("limit", 12).containsEntry("overloads", 1L);
+
+        UpstreamScheduler timedOut = scheduler(16, 1);
+        fail(timedOut, new HttpTimeoutException("request timed out"));
+        assertThat(timedOut.stats()).containsEntry("limit", 12).containsEntry("overloads", 1L);
+
+        // 普通的 5xx 和客户端断开不算过载
+        UpstreamScheduler serverError = scheduler(16, 1);
+        fail(serverError, new UpstreamStatusException(500, null, "internal error"));
+        fail(serverError, new CancellationException("client disconnected"));
+        assertThat(serverError.stats()).containsEntry("limit", 16).containsEntry("overloads", 0L);
+    }
+
+    private static void fail(UpstreamScheduler scheduler, Throwable error) throws Exception {
+        CompletableFuture<String> result = scheduler.submit("s", new Cancellation(), position -> {
+        }, permit -> CompletableFuture.failedFuture(error), () -> false);
+        assertThat(result.handle((value, e) -> e).get(1, TimeUnit.SECONDS)).isSameAs(error);
+    }
+
+    // 重试在调用线程上直接执行，推送位置的间隔设得很长
+    private UpstreamScheduler scheduler(int limit, int maxAttempts) {
+        UpstreamScheduler scheduler = new UpstreamScheduler();
+        ReflectionTestUtils.setField(scheduler, "initialLimit", limit);
+        ReflectionTestUtils.setField(scheduler, "minLimit", 1);
+        ReflectionTestUtils.setField(scheduler, "maxLimit", Math.max(limit, 16));
+        ReflectionTestUtils.setField(scheduler, "backoffRatio", 0.75);
+        ReflectionTestUtils.setField(scheduler, "latencyTolerance", 3.0);
+        ReflectionTestUtils.setField(scheduler, "maxQueued", 100);
+        ReflectionTestUtils.setField(scheduler, "maxQueuedPerSession", 8);
+        ReflectionTestUtils.setField(scheduler, "queueTimeout", Duration.ofSeconds(30));
+        ReflectionTestUtils.setField(scheduler, "queueNotifyInterval", Duration.ofHours(1));
+        ReflectionTestUtils.setField(scheduler, "maxAttempts", maxAttempts);
+        ReflectionTestUtils.setField(scheduler, "retryBaseDelay", Duration.ofMillis(2));
+        ReflectionTestUtils.setField(scheduler, "retryMaxDelay", Duration.ofMillis(10));
+        ReflectionTestUtils.setField(scheduler, "backgroundShare", 0.5);
+        ReflectionTestUtils.setField(scheduler, "chatExecutor", (java.util.concurrent.Executor) Runnable::run);
+        ReflectionTestUtils.setField(scheduler, "chatMetrics", new ChatMetrics(new SimpleMeterRegistry()));
+        scheduler.init();
+        schedulers.add(scheduler);
+        return scheduler;
+    }
+
+    private static ScheduledThreadPoolExecutor timer(UpstreamScheduler scheduler) {
+        return (ScheduledThreadPoolExecutor) ReflectionTestUtils.getField(scheduler, "timer");
+    }
+}
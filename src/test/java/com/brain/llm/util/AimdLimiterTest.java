@@ -0,0 +1,81 @@
+package com.brain.llm.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AimdLimiterTest {
+
+    @Test
+    void overloadDecreasesMultiplicatively() throws InterruptedException {
+        AimdLimiter limiter = new AimdLimiter(16, 2, 128, 0.5, 3.0);
+        limiter.onOverload();
+        int afterFirst = limiter.getLimit();
+        // 同一批并发请求的 429 只下降一次
+        limiter.onOverload();
+        int afterSecond = limiter.getLimit();
+        assertThat(afterFirst).isEqualTo(8);
+        assertThat(afterSecond).isEqualTo(8);
+
+        Thread.sleep(150);
+        limiter.onOverload();
+        assertThat(limiter.getLimit()).isEqualTo(4);
+    }
+
+    @Test
+    void decreaseStopsAtMinLimit() throws InterruptedException {
+        AimdLimiter limiter = new AimdLimiter(4, 3, 128, 0.5, 3.0);
+        limiter.onOverload();
+        assertThat(limiter.getLimit()).isEqualTo(3);
+        Thread.sleep(150);
+        limiter.onOverload();
+        assertThat(limiter.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    void slowFirstByteCountsAsOverload() {
+        AimdLimiter limiter = new AimdLimiter(16, 2, 128, 0.5, 3.0);
+        limiter.onSuccess(100, 16);
+        int limit = limiter.getLimit();
+
+        // 超过基线 3 倍且超出 100ms 以上
+        limiter.onSuccess(1000, 16);
+        assertThat(limiter.getLimit()).isLessThan(limit);
+    }
+
+    @Test
+    void smallJitterAboveTinyBaselineIsNotOverload() {
+        AimdLimiter limiter = new AimdLimiter(16, 2, 128, 0.5, 3.0);
+        limiter.onSuccess(5, 16);
+        limiter.onSuccess(50, 16);
+        assertThat(limiter.getLimit()).isEqualTo(16);
+    }
+
+    @Test
+    void growsAdditivelyOnlyWhenLoaded() {
+        AimdLimiter limiter = new AimdLimiter(4, 2, 8, 0.5, 3.0);
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess(100, 1);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(4);
+
+        // 每次成功 +1/limit，满载的一个往返约 +1
+        for (int i = 0; i < 5; i++) {
+            limiter.onSuccess(100, 4);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(5);
+
+        for (int i = 0; i < 1000; i++) {
+            limiter.onSuccess(100, 8);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(8);
+    }
+
+    @Test
+    void rejectsInvalidConfiguration() {
+        assertThatThrownBy(() -> new AimdLimiter(4, 0, 8, 0.5, 3.0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AimdLimiter(4, 8, 2, 0.5, 3.0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new AimdLimiter(4, 2, 8, 1.0, 3.0)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
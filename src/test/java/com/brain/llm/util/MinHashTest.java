@@ -0,0 +1,45 @@
+package com.brain.llm.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MinHashTest {
+
+    private static final String TEXT = "Elasticsearch 的混合检索同时使用 BM25 关键词匹配和 kNN 向量相似度，"
+            + "两路结果按倒数排名融合（RRF）合并，原始分数不可比时这样比直接相加更稳定。"
+            + "召回的片段再按检索源权重排序，超出 token 预算的部分在句子结尾处截断。";
+
+    @Test
+    void normalizeIgnoresWidthCaseWhitespaceAndPunctuation() {
+        assertThat(MinHash.normalize("Ｓｐｒｉｎｇ Boot，是一个 框架！"))
+                .isEqualTo(MinHash.normalize("spring boot 是一个框架"))
+                .isEqualTo("springboot是一个框架");
+    }
+
+    @Test
+    void identicalTextHasSimilarityOne() {
+        String normalized = MinHash.normalize(TEXT);
+        assertThat(MinHash.similarity(MinHash.signature(normalized, 3, 64), MinHash.signature(normalized, 3, 64)))
+                .isEqualTo(1.0);
+    }
+
+    @Test
+    void smallEditStaysAboveThreshold() {
+        int[] original = MinHash.signature(MinHash.normalize(TEXT), 3, 64);
+        int[] edited = MinHash.signature(MinHash.normalize(TEXT.replace("更稳定", "更可靠")), 3, 64);
+        assertThat(MinHash.similarity(original, edited)).isGreaterThanOrEqualTo(0.8);
+    }
+
+    @Test
+    void unrelatedTextStaysBelowThreshold() {
+        int[] original = MinHash.signature(MinHash.normalize(TEXT), 3, 64);
+        int[] other = MinHash.signature(MinHash.normalize("会话历史按会话写入只追加的日志文件，后台线程批量落盘，重启后按需读取。"), 3, 64);
+        assertThat(MinHash.similarity(original, other)).isLessThan(0.2);
+    }
+
+    @Test
+    void textShorterThanShingleIsOneShingle() {
+        assertThat(MinHash.signature("ab", 3, 16)).isEqualTo(MinHash.signature("ab", 3, 16)).doesNotContain(-1);
+    }
+}